@@ -0,0 +1,80 @@
+package co.uk.cogitolearning.benchmarks;
+
+import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how batch evaluation scales with the number of threads.
+ *
+ * <p>The parallel benchmark runs with a ForkJoinPool of every size in threads, compare
+ * its score with the single threaded batch to see the speedup. Pass for example
+ * -p threads=1,2,4,8,16,32 to match the machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+    private static final String EXPRESSION = "3*x^2 + sin(y)/(1+x*x) - sqrt(x*x+y*y)";
+
+    @Param({"1000000"})
+    private int rows;
+
+    @Param({"1", "2", "4", "8"})
+    private int threads;
+
+    private CompiledExpression expression;
+    private double[][] columns;
+    private double[] out;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        expression = new Calculator().compile(EXPRESSION);
+        Random random = new Random(42);
+        columns = new double[expression.getVariables().size()][rows];
+        for (double[] column : columns) {
+            for (int row = 0; row < rows; row++) {
+                column[row] = random.nextDouble() * 10 - 5;
+            }
+        }
+        out = new double[rows];
+        pool = new ForkJoinPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public double[] sequentialBatch() {
+        expression.evaluateBatch(columns, out);
+        return out;
+    }
+
+    @Benchmark
+    public double[] parallelBatch() {
+        expression.evaluateBatchParallel(columns, out, pool);
+        return out;
+    }
+}
@@ -0,0 +1,71 @@
+package co.uk.cogitolearning.benchmarks;
+
+import co.uk.cogitolearning.calculator.Backend;
+import co.uk.cogitolearning.calculator.CalculationVisitor;
+import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.DoubleEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the evaluation backends of a compiled expression on a single row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluatorBenchmark {
+    private static final String EXPRESSION = "3*x^2 + sin(y)/(1+x*x) - sqrt(x*x+y*y)";
+
+    private CompiledExpression expression;
+    private CalculationVisitor visitor;
+    private DoubleEvaluator interpreter;
+    private DoubleEvaluator closure;
+    private DoubleEvaluator bytecode;
+    private double[] values;
+
+    @Setup
+    public void setUp() {
+        expression = new Calculator().compile(EXPRESSION);
+        values = new double[]{1.5, 0.25};
+        visitor = new CalculationVisitor();
+        visitor.addVariable("x", values[expression.slotOf("x")]);
+        visitor.addVariable("y", values[expression.slotOf("y")]);
+        interpreter = expression.evaluator(Backend.INTERPRETER);
+        closure = expression.evaluator(Backend.CLOSURE);
+        bytecode = expression.evaluator(Backend.BYTECODE);
+    }
+
+    @Benchmark
+    public double visitor() {
+        return expression.evaluate(visitor);
+    }
+
+    @Benchmark
+    public double interpreter() {
+        return interpreter.evaluate(values);
+    }
+
+    @Benchmark
+    public double closure() {
+        return closure.evaluate(values);
+    }
+
+    @Benchmark
+    public double bytecode() {
+        return bytecode.evaluate(values);
+    }
+}
@@ -0,0 +1,113 @@
+package co.uk.cogitolearning.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Generates random expression strings for the benchmarks.
+ *
+ * <p>The same parameters and seed always give the same expression, so runs of the
+ * benchmarks can be compared with each other.
+ */
+public final class ExpressionGenerator {
+    /**
+     * The operators an expression is made of.
+     */
+    public enum OperatorMix {
+        /**
+         * Only +, -, * and /.
+         */
+        ARITHMETIC("+-*/", 0),
+        /**
+         * +, -, * and / with some ^.
+         */
+        POWER("+-*/^", 0),
+        /**
+         * +, -, * and / with about one function call per four operators.
+         */
+        FUNCTIONS("+-*/", 4);
+
+        private final String operators;
+        private final int functionRate;
+
+        OperatorMix(final String operators, final int functionRate) {
+            this.operators = operators;
+            this.functionRate = functionRate;
+        }
+    }
+
+    private static final String[] FUNCTIONS = {"sin", "cos", "atan", "sqrt", "exp", "ln", "log2"};
+
+    private final Random random;
+    private final OperatorMix mix;
+    private final int variables;
+
+    private ExpressionGenerator(final long seed, final OperatorMix mix, final int variables) {
+        this.random = new Random(seed);
+        this.mix = mix;
+        this.variables = variables;
+    }
+
+    /**
+     * Generate an expression.
+     *
+     * @param size      the number of binary operators
+     * @param depth     the maximum bracket nesting depth, deeper parts are flat chains
+     * @param mix       the operators to use
+     * @param variables the number of distinct variables x0, x1, ..., 0 for constants only
+     * @param seed      the seed of the random generator
+     * @return the expression string
+     */
+    public static String generate(final int size, final int depth, final OperatorMix mix, final int variables,
+                                  final long seed) {
+        StringBuilder builder = new StringBuilder();
+        new ExpressionGenerator(seed, mix, variables).append(builder, size, depth);
+        return builder.toString();
+    }
+
+    /**
+     * Get the name of a variable used by generated expressions.
+     *
+     * @param index the index of the variable
+     * @return the variable name
+     */
+    public static String variable(final int index) {
+        return "x" + index;
+    }
+
+    private void append(final StringBuilder builder, final int operators, final int depth) {
+        if (operators == 0) {
+            appendOperand(builder);
+            return;
+        }
+        if (depth == 0) {
+            appendOperand(builder);
+            for (int i = 0; i < operators; i++) {
+                builder.append(operator());
+                appendOperand(builder);
+            }
+            return;
+        }
+        boolean function = mix.functionRate > 0 && random.nextInt(mix.functionRate) == 0;
+        if (function) {
+            builder.append(FUNCTIONS[random.nextInt(FUNCTIONS.length)]);
+        }
+        builder.append('(');
+        int left = random.nextInt(operators);
+        append(builder, left, depth - 1);
+        builder.append(operator());
+        append(builder, operators - 1 - left, depth - 1);
+        builder.append(')');
+    }
+
+    private char operator() {
+        return mix.operators.charAt(random.nextInt(mix.operators.length()));
+    }
+
+    private void appendOperand(final StringBuilder builder) {
+        if (variables > 0 && random.nextBoolean()) {
+            builder.append(variable(random.nextInt(variables)));
+        } else {
+            builder.append(1 + random.nextInt(9)).append('.').append(random.nextInt(10));
+        }
+    }
+}
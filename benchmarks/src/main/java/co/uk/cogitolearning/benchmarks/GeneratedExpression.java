@@ -0,0 +1,96 @@
+package co.uk.cogitolearning.benchmarks;
+
+import co.uk.cogitolearning.benchmarks.ExpressionGenerator.OperatorMix;
+import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.lexer.Lexer;
+import co.uk.cogitolearning.calculator.lexer.Token;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * A generated expression shared by the parameterized benchmarks.
+ *
+ * <p>Every combination of the parameters is a separate benchmark run. Narrow them down
+ * on the command line, for example -p size=100 -p mix=ARITHMETIC.
+ */
+@State(Scope.Benchmark)
+public class GeneratedExpression {
+    private static final long SEED = 42;
+
+    /**
+     * The number of binary operators.
+     */
+    @Param({"10", "100", "1000"})
+    private int size;
+
+    /**
+     * The maximum bracket nesting depth.
+     */
+    @Param({"4", "16"})
+    private int depth;
+
+    @Param({"ARITHMETIC", "POWER", "FUNCTIONS"})
+    private OperatorMix mix;
+
+    /**
+     * The number of distinct variables. Without variables the simplifier folds the
+     * whole expression to a constant, so at least one is used.
+     */
+    @Param({"1", "4"})
+    private int variables;
+
+    private String source;
+    private List<Token> tokens;
+    private Calculator calculator;
+    private CompiledExpression expression;
+    private double[] values;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = ExpressionGenerator.generate(size, depth, mix, variables, SEED);
+        tokens = Lexer.getInstance().tokenize(source);
+        calculator = new Calculator();
+        for (int i = 0; i < variables; i++) {
+            calculator.withVariable(ExpressionGenerator.variable(i), 0.5 + i);
+        }
+        expression = calculator.compile(source);
+        values = new double[expression.getVariables().size()];
+        for (int i = 0; i < variables; i++) {
+            int slot = expression.slotOf(ExpressionGenerator.variable(i));
+            if (slot >= 0) {
+                values[slot] = 0.5 + i;
+            }
+        }
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public List<Token> getTokens() {
+        return tokens;
+    }
+
+    public Calculator getCalculator() {
+        return calculator;
+    }
+
+    public CompiledExpression getExpression() {
+        return expression;
+    }
+
+    /**
+     * Get the variable values indexed by slot of the compiled expression.
+     *
+     * @return the values, the same ones the calculator holds by name
+     */
+    public double[] getValues() {
+        return values;
+    }
+}
@@ -0,0 +1,47 @@
+package co.uk.cogitolearning.benchmarks;
+
+import co.uk.cogitolearning.calculator.lexer.Lexer;
+import co.uk.cogitolearning.calculator.lexer.Token;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the shared Lexer with one thread and with all available cores.
+ *
+ * <p>Since tokenize keeps no shared mutable state, the throughput of tokenizeAllThreads
+ * should grow linearly with the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+    private static final String EXPRESSION = "6*(3+sin(pi/2))^5 - log2(x*y) / sqrt(a*a+b*b) + 1.5e-3";
+
+    private final Lexer lexer = Lexer.getInstance();
+
+    @Benchmark
+    @Threads(1)
+    public List<Token> tokenizeSingleThread() {
+        return lexer.tokenize(EXPRESSION);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public List<Token> tokenizeAllThreads() {
+        return lexer.tokenize(EXPRESSION);
+    }
+}
@@ -0,0 +1,89 @@
+package co.uk.cogitolearning.benchmarks;
+
+import co.uk.cogitolearning.calculator.Bindings;
+import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.math.MathPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the STRICT and FAST math policies, function by function and on a mix.
+ *
+ * <p>evaluate runs one row through Bindings, batch evaluates a block of rows with
+ * evaluateBatch. x is uniform in [-5, 5) and y in (0, 100), the argument of the
+ * logarithms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MathPolicyBenchmark {
+    private static final int ROWS = 10000;
+
+    @Param({"STRICT", "FAST"})
+    private MathPolicy policy;
+
+    @Param({"sin(x)", "cos(x)", "tan(x)", "exp(x)", "ln(y)", "log(y)", "log2(y)", "sin(x)*cos(x)+exp(x)-ln(y)"})
+    private String expression;
+
+    private CompiledExpression compiled;
+    private double[][] columns;
+    private double[] out;
+
+    /**
+     * Per thread evaluation state, Bindings are not thread safe.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private Bindings bindings;
+
+        @Setup(Level.Trial)
+        public void setUp(final MathPolicyBenchmark benchmark) {
+            bindings = benchmark.compiled.newBindings();
+            for (String name : benchmark.compiled.getVariables()) {
+                bindings.set(name, "x".equals(name) ? 1.25 : 42.5);
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        compiled = new Calculator().withMathPolicy(policy).compile(expression);
+        Random random = new Random(42);
+        columns = new double[compiled.getVariables().size()][ROWS];
+        for (String name : compiled.getVariables()) {
+            double[] column = columns[compiled.slotOf(name)];
+            for (int row = 0; row < ROWS; row++) {
+                column[row] = "x".equals(name) ? random.nextDouble() * 10 - 5 : 100 - random.nextDouble() * 100;
+            }
+        }
+        out = new double[ROWS];
+    }
+
+    @Benchmark
+    public double evaluate(final ThreadState state) {
+        return state.bindings.evaluate();
+    }
+
+    @Benchmark
+    public double[] batch() {
+        compiled.evaluateBatch(columns, out);
+        return out;
+    }
+}
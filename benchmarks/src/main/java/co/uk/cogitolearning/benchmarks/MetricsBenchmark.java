@@ -0,0 +1,93 @@
+package co.uk.cogitolearning.benchmarks;
+
+import co.uk.cogitolearning.calculator.Bindings;
+import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.lexer.Lexer;
+import co.uk.cogitolearning.calculator.lexer.Token;
+import co.uk.cogitolearning.calculator.metrics.CalculatorMetrics;
+import co.uk.cogitolearning.calculator.program.Program;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the CalculatorMetrics instrumentation.
+ *
+ * <p>programEvaluate runs the program directly, without any instrumentation, and is
+ * the baseline for bindingsEvaluate with metrics disabled: their difference is the
+ * overhead of the disabled metrics plus the checks of evaluate(Bindings).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    private static final String EXPRESSION = "3*x^2 + sin(y)/(1+x*x) - sqrt(x*x+y*y)";
+
+    @Param({"false", "true"})
+    private boolean enabled;
+
+    private CompiledExpression expression;
+    private Program program;
+
+    /**
+     * Per thread evaluation state, Bindings are not thread safe.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private Bindings bindings;
+        private double[] values;
+        private double[] stack;
+
+        @Setup(Level.Trial)
+        public void setUp(final MetricsBenchmark benchmark) {
+            bindings = benchmark.expression.newBindings().set("x", 1.5).set("y", 0.25);
+            values = new double[]{1.5, 0.25};
+            stack = benchmark.program.newStack();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        CalculatorMetrics.getInstance().setEnabled(enabled);
+        expression = new Calculator().compile(EXPRESSION);
+        program = expression.getProgram();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CalculatorMetrics.getInstance().setEnabled(false);
+        CalculatorMetrics.getInstance().reset();
+    }
+
+    @Benchmark
+    public double programEvaluate(final ThreadState state) {
+        return program.evaluate(state.values, state.stack);
+    }
+
+    @Benchmark
+    public double bindingsEvaluate(final ThreadState state) {
+        return state.bindings.evaluate();
+    }
+
+    @Benchmark
+    public List<Token> tokenize() {
+        return Lexer.getInstance().tokenize(EXPRESSION);
+    }
+}
@@ -0,0 +1,56 @@
+package co.uk.cogitolearning.benchmarks;
+
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.lexer.Lexer;
+import co.uk.cogitolearning.calculator.lexer.Token;
+import co.uk.cogitolearning.calculator.parser.Parser;
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures every stage from an expression string to its value on generated expressions.
+ *
+ * <p>calculate hits the expression cache of the Calculator after the first call, while
+ * compileAndCalculate pays for lexing, parsing, simplifying and compiling every time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Benchmark
+    public List<Token> tokenize(final GeneratedExpression input) {
+        return Lexer.getInstance().tokenize(input.getSource());
+    }
+
+    @Benchmark
+    public ExpressionNode parse(final GeneratedExpression input) {
+        return Parser.parse(input.getTokens());
+    }
+
+    @Benchmark
+    public CompiledExpression compile(final GeneratedExpression input) {
+        return input.getCalculator().compile(input.getSource());
+    }
+
+    @Benchmark
+    public double calculate(final GeneratedExpression input) {
+        return input.getCalculator().calculate(input.getSource());
+    }
+
+    @Benchmark
+    public double compileAndCalculate(final GeneratedExpression input) {
+        return input.getCalculator().calculate(input.getCalculator().compile(input.getSource()));
+    }
+}
@@ -0,0 +1,73 @@
+package co.uk.cogitolearning.benchmarks;
+
+import co.uk.cogitolearning.calculator.Backend;
+import co.uk.cogitolearning.calculator.CalculationVisitor;
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.DoubleEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the evaluation strategies on generated expressions of different shapes.
+ *
+ * <p>Backends that cannot compile an expression, for example bytecode for a very large
+ * one, fall back to the interpreter, so their score is then the interpreter's.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StrategyBenchmark {
+    private CompiledExpression expression;
+    private CalculationVisitor visitor;
+    private DoubleEvaluator interpreter;
+    private DoubleEvaluator closure;
+    private DoubleEvaluator bytecode;
+    private double[] values;
+
+    @Setup(Level.Trial)
+    public void setUp(final GeneratedExpression input) {
+        expression = input.getExpression();
+        values = input.getValues();
+        visitor = new CalculationVisitor();
+        for (String name : expression.getVariables()) {
+            visitor.addVariable(name, values[expression.slotOf(name)]);
+        }
+        interpreter = expression.evaluator(Backend.INTERPRETER);
+        closure = expression.evaluator(Backend.CLOSURE);
+        bytecode = expression.evaluator(Backend.BYTECODE);
+    }
+
+    @Benchmark
+    public double visitor() {
+        return expression.evaluate(visitor);
+    }
+
+    @Benchmark
+    public double interpreter() {
+        return interpreter.evaluate(values);
+    }
+
+    @Benchmark
+    public double closure() {
+        return closure.evaluate(values);
+    }
+
+    @Benchmark
+    public double bytecode() {
+        return bytecode.evaluate(values);
+    }
+}
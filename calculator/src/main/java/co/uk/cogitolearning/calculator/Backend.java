@@ -0,0 +1,21 @@
+package co.uk.cogitolearning.calculator;
+
+/**
+ * The ways a CompiledExpression can be turned into a DoubleEvaluator.
+ */
+public enum Backend {
+    /**
+     * Run the postfix Program with the switch based interpreter.
+     */
+    INTERPRETER,
+    /**
+     * Compile the tree into nested functional objects, one per node. Falls back to the
+     * interpreter for very deeply nested trees.
+     */
+    CLOSURE,
+    /**
+     * Generate a JVM class with straight-line code for the expression. Falls back to the
+     * interpreter if the class cannot be generated or loaded.
+     */
+    BYTECODE
+}
@@ -0,0 +1,124 @@
+package co.uk.cogitolearning.calculator;
+
+import co.uk.cogitolearning.calculator.program.Program;
+
+import java.util.Arrays;
+
+/**
+ * Variable values for one CompiledExpression, stored by slot.
+ *
+ * <p>Variable names are resolved to slots when the expression is compiled, so binding
+ * a value is a single array store and evaluation does not look up or unbox anything.
+ * A Bindings object also owns the operand stack of the program, so evaluating with
+ * it does not allocate.
+ *
+ * <p>Instances are created by CompiledExpression.newBindings or CompiledExpression.bind
+ * and are not thread safe, use one per thread.
+ */
+public final class Bindings {
+    private final CompiledExpression expression;
+    private final double[] values;
+    private final boolean[] bound;
+    private final double[] stack;
+    private int unbound;
+
+    Bindings(final CompiledExpression expression) {
+        Program program = expression.getProgram();
+        this.expression = expression;
+        this.values = new double[program.getVariableCount()];
+        this.bound = new boolean[values.length];
+        this.stack = program.newStack();
+        this.unbound = values.length;
+    }
+
+    /**
+     * Set the value of the variable in a slot.
+     *
+     * @param slot  the slot, see CompiledExpression.slotOf
+     * @param value the value
+     * @return this object
+     */
+    public Bindings set(final int slot, final double value) {
+        values[slot] = value;
+        if (!bound[slot]) {
+            bound[slot] = true;
+            unbound--;
+        }
+        return this;
+    }
+
+    /**
+     * Set the value of a variable by name.
+     *
+     * @param name  the variable name
+     * @param value the value
+     * @return this object
+     * @throws EvaluationException if the expression does not reference the variable
+     */
+    public Bindings set(final String name, final double value) {
+        int slot = expression.slotOf(name);
+        if (slot < 0) {
+            throw new EvaluationException("Variable '" + name + "' is not used by " + expression + ".");
+        }
+        return set(slot, value);
+    }
+
+    /**
+     * Set the values of all variables at once.
+     *
+     * @param slotValues the values indexed by slot
+     * @return this object
+     */
+    public Bindings setAll(final double[] slotValues) {
+        if (slotValues.length != values.length) {
+            throw new EvaluationException("Expected " + values.length + " variable values but got "
+                    + slotValues.length + ".");
+        }
+        System.arraycopy(slotValues, 0, values, 0, values.length);
+        Arrays.fill(bound, true);
+        unbound = 0;
+        return this;
+    }
+
+    /**
+     * Check whether every variable of the expression has a value.
+     *
+     * @return true if the expression can be evaluated
+     */
+    public boolean isComplete() {
+        return unbound == 0;
+    }
+
+    /**
+     * Evaluate the expression with the bound values.
+     *
+     * @return the value of the expression
+     */
+    public double evaluate() {
+        return expression.evaluate(this);
+    }
+
+    CompiledExpression getExpression() {
+        return expression;
+    }
+
+    double[] getValues() {
+        return values;
+    }
+
+    double[] getStack() {
+        return stack;
+    }
+
+    /**
+     * Get the name of the first variable without a value.
+     */
+    String firstUnbound() {
+        for (int slot = 0; slot < bound.length; slot++) {
+            if (!bound[slot]) {
+                return expression.getProgram().getVariable(slot);
+            }
+        }
+        return null;
+    }
+}
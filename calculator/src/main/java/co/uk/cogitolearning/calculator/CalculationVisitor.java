@@ -1,6 +1,9 @@
 package co.uk.cogitolearning.calculator;
 
 
+import co.uk.cogitolearning.calculator.math.FastMath;
+import co.uk.cogitolearning.calculator.math.MathFunctions;
+import co.uk.cogitolearning.calculator.math.MathPolicy;
 import co.uk.cogitolearning.calculator.tree.AdditionNode;
 import co.uk.cogitolearning.calculator.tree.ConstantNode;
 import co.uk.cogitolearning.calculator.tree.DivNode;
@@ -11,9 +14,9 @@ import co.uk.cogitolearning.calculator.tree.MultiplicationNode;
 import co.uk.cogitolearning.calculator.tree.SubtractionNode;
 import co.uk.cogitolearning.calculator.tree.VariableNode;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Stack;
 
 import static co.uk.cogitolearning.calculator.tree.FunctionNode.ACOS;
 import static co.uk.cogitolearning.calculator.tree.FunctionNode.ASIN;
@@ -27,36 +30,116 @@ import static co.uk.cogitolearning.calculator.tree.FunctionNode.SIN;
 import static co.uk.cogitolearning.calculator.tree.FunctionNode.SQRT;
 import static co.uk.cogitolearning.calculator.tree.FunctionNode.TAN;
 
+/**
+ * Evaluates an expression by visiting its nodes in reverse polish notation.
+ *
+ * <p>Operands are kept on a growable primitive stack, so evaluating does not box
+ * intermediate results. A visitor is not thread safe, but it can be reused for any
+ * number of evaluations; call reset before starting a new one.
+ */
 public final class CalculationVisitor implements ExpressionNodeVisitor<Void> {
-    private final Stack<Double> stack = new Stack<>();
+    private static final int INITIAL_CAPACITY = 16;
 
-    private final Map<String, Double> variable = new HashMap<>();
+    private double[] stack = new double[INITIAL_CAPACITY];
+
+    private int size;
+
+    /**
+     * The values of nodes with several parents, see store and load.
+     */
+    private double[] temporaries = new double[INITIAL_CAPACITY];
+
+    private final Map<String, Double> variable;
+
+    private final MathPolicy policy;
+
+    public CalculationVisitor() {
+        this(new HashMap<>());
+    }
+
+    /**
+     * Create a visitor that reads variable values from an existing map.
+     *
+     * @param variable the variable values, the map is not copied
+     */
+    public CalculationVisitor(final Map<String, Double> variable) {
+        this(variable, MathPolicy.STRICT);
+    }
+
+    /**
+     * Create a visitor that reads variable values from an existing map and computes
+     * functions with a math policy.
+     *
+     * @param variable the variable values, the map is not copied
+     * @param policy   how functions are computed
+     */
+    public CalculationVisitor(final Map<String, Double> variable, final MathPolicy policy) {
+        this.variable = variable;
+        this.policy = policy;
+    }
+
+    private void push(final double value) {
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
+        }
+        stack[size++] = value;
+    }
+
+    private double pop() {
+        if (size == 0) {
+            throw new EvaluationException("Missing operand.");
+        }
+        return stack[--size];
+    }
 
     @Override
     public Void visit(final VariableNode node) {
-        if (!variable.containsKey(node.getName())) {
+        Double value = variable.get(node.getName());
+        if (value == null) {
             throw new EvaluationException("Variable '" + node.getName() + "' was not initialized.");
         }
 
-        stack.push(variable.get(node.getName()));
+        push(value);
         return null;
     }
 
     @Override
     public Void visit(final ExponentiationNode node) {
-        double base = stack.pop();
-        double exponent = stack.pop();
-        stack.push(Math.pow(base, exponent));
+        double base = pop();
+        double exponent = pop();
+        push(Math.pow(base, exponent));
         return null;
     }
 
     @Override
     public Void visit(final FunctionNode node) {
-        double operand1 = stack.pop();
-        stack.push(functionGetValue(node.getFunction(), operand1));
+        double operand1 = pop();
+        push(policy == MathPolicy.FAST
+                ? fastFunctionGetValue(node.getFunction(), operand1) : functionGetValue(node.getFunction(), operand1));
         return null;
     }
 
+    private static double fastFunctionGetValue(final int function, final double argument) {
+        switch (function) {
+            case SIN:
+                return FastMath.sin(argument);
+            case COS:
+                return FastMath.cos(argument);
+            case TAN:
+                return FastMath.tan(argument);
+            case EXP:
+                return FastMath.exp(argument);
+            case LN:
+                return FastMath.log(argument);
+            case LOG:
+                return FastMath.log10(argument);
+            case LOG2:
+                return FastMath.log2(argument);
+            default:
+                return functionGetValue(function, argument);
+        }
+    }
+
     private static double functionGetValue(final int function, final double argument) {
         switch (function) {
             case SIN:
@@ -80,7 +163,7 @@ public final class CalculationVisitor implements ExpressionNodeVisitor<Void> {
             case LOG:
                 return Math.log10(argument);
             case LOG2:
-                return Math.log10(argument) / Math.log10(2); // Change of base
+                return MathFunctions.log2(argument);
             default:
                 throw new EvaluationException("Invalid function id " + function + "!");
 
@@ -89,49 +172,80 @@ public final class CalculationVisitor implements ExpressionNodeVisitor<Void> {
 
     @Override
     public Void visit(final ConstantNode node) {
-        stack.push(node.getValue());
+        push(node.getValue());
         return null;
     }
 
     @Override
     public Void visit(final AdditionNode node) {
-        double operand1 = stack.pop();
-        double operand2 = stack.pop();
+        double operand1 = pop();
+        double operand2 = pop();
 
-        stack.push(operand1 + operand2);
+        push(operand1 + operand2);
         return null;
     }
 
     @Override
     public Void visit(final SubtractionNode node) {
-        double operand1 = stack.pop();
-        double operand2 = stack.pop();
+        double operand1 = pop();
+        double operand2 = pop();
 
-        stack.push(operand1 - operand2);
+        push(operand1 - operand2);
         return null;
     }
 
     @Override
     public Void visit(final MultiplicationNode node) {
-        double operand1 = stack.pop();
-        double operand2 = stack.pop();
-        stack.push(operand1 * operand2);
+        double operand1 = pop();
+        double operand2 = pop();
+        push(operand1 * operand2);
         return null;
     }
 
     @Override
     public Void visit(final DivNode node) {
-        double operand1 = stack.pop();
-        double operand2 = stack.pop();
-        stack.push(operand1 / operand2);
+        double operand1 = pop();
+        double operand2 = pop();
+        push(operand1 / operand2);
         return null;
     }
 
+    /**
+     * Keep the operand on top of the stack in a temporary, without removing it.
+     *
+     * @param temporary the index of the temporary
+     */
+    void store(final int temporary) {
+        if (size == 0) {
+            throw new EvaluationException("Missing operand.");
+        }
+        if (temporary >= temporaries.length) {
+            temporaries = Arrays.copyOf(temporaries, Math.max(temporary + 1, temporaries.length * 2));
+        }
+        temporaries[temporary] = stack[size - 1];
+    }
+
+    /**
+     * Push the value of a temporary.
+     *
+     * @param temporary the index of a temporary set by store
+     */
+    void load(final int temporary) {
+        push(temporaries[temporary]);
+    }
+
     public void addVariable(final String name, final Double value) {
         this.variable.put(name, value);
     }
 
     public double getValue() {
-        return stack.pop();
+        return pop();
+    }
+
+    /**
+     * Discard any operands left over from a previous evaluation.
+     */
+    public void reset() {
+        size = 0;
     }
 }
@@ -24,16 +24,59 @@
 
 package co.uk.cogitolearning.calculator;
 
+import co.uk.cogitolearning.calculator.cache.BoundedCache;
+import co.uk.cogitolearning.calculator.cache.CacheStats;
 import co.uk.cogitolearning.calculator.lexer.Lexer;
+import co.uk.cogitolearning.calculator.math.MathPolicy;
+import co.uk.cogitolearning.calculator.metrics.CalculatorMetrics;
+import co.uk.cogitolearning.calculator.metrics.Phase;
+import co.uk.cogitolearning.calculator.optimizer.Simplification;
+import co.uk.cogitolearning.calculator.optimizer.SimplificationMode;
+import co.uk.cogitolearning.calculator.optimizer.Simplifier;
 import co.uk.cogitolearning.calculator.parser.Parser;
+import co.uk.cogitolearning.calculator.program.Program;
+import co.uk.cogitolearning.calculator.program.ProgramCompiler;
 import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import co.uk.cogitolearning.calculator.tree.HashConsingNodeFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 public final class Calculator {
 
-    private final CalculationVisitor visitor = new CalculationVisitor();
+    /**
+     * The default maximum number of cached compiled expressions.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 1024;
+    /**
+     * The default maximum estimated size of all cached compiled expressions in bytes.
+     */
+    public static final long DEFAULT_CACHE_WEIGHT = 16L * 1024 * 1024;
+
+    private static final CalculatorMetrics METRICS = CalculatorMetrics.getInstance();
+
+    private final Map<String, Double> variables = new HashMap<>();
+
+    private SimplificationMode simplification = SimplificationMode.SAFE;
+
+    private MathPolicy mathPolicy = MathPolicy.STRICT;
+
+    /**
+     * The compiled form of recently calculated expression strings.
+     */
+    private BoundedCache<String, CompiledExpression> cache =
+            new BoundedCache<>(DEFAULT_CACHE_SIZE, DEFAULT_CACHE_WEIGHT, CompiledExpression::getEstimatedSize);
+
+    /**
+     * Compiles the expressions missing from the cache, created once because a method
+     * reference written in calculate would be allocated on every call.
+     */
+    private final Function<String, CompiledExpression> compiler = this::compile;
 
     static double calculateTree(final ExpressionNode expr, final CalculationVisitor visitor) {
         ArrayList<ExpressionNode> polishNotationList = new ArrayList<>();
@@ -55,15 +98,171 @@ public final class Calculator {
         return visitor.getValue();
     }
 
+    /**
+     * Tokenize and parse an expression once so that it can be evaluated many times.
+     *
+     * <p>The tree is simplified before it is compiled, see withSimplification. Identical
+     * subtrees are then merged, so repeated subexpressions are computed only once per
+     * evaluation. Functions are computed with the math policy, see withMathPolicy.
+     *
+     * @param expresion the expression to compile
+     * @return an immutable, reusable compiled expression
+     */
+    public CompiledExpression compile(final String expresion) {
+        long start = METRICS.start();
+        try {
+            ExpressionNode expr = Parser.parse(Lexer.getInstance().tokenize(expresion));
+            Simplification simplified = Simplifier.simplify(expr, simplification);
+            ExpressionNode dag = new HashConsingNodeFactory().intern(simplified.getTree());
+            CompiledExpression compiled = new CompiledExpression(expresion, dag, mathPolicy,
+                    simplified.getRemovedNodes());
+            METRICS.stop(Phase.COMPILE, start, compiled.getProgram().getCodeLength());
+            return compiled;
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.COMPILE, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Compile several expressions into one set that evaluates all of them at once.
+     *
+     * <p>Every expression is simplified like in compile, then all of them are merged
+     * with one HashConsingNodeFactory, so a subexpression that occurs in several of
+     * them is computed only once per evaluation of the set.
+     *
+     * @param expresions the expressions to compile
+     * @return an immutable, reusable formula set
+     */
+    public FormulaSet compileAll(final List<String> expresions) {
+        long start = METRICS.start();
+        try {
+            HashConsingNodeFactory factory = new HashConsingNodeFactory();
+            List<ExpressionNode> trees = new ArrayList<>(expresions.size());
+            for (String expresion : expresions) {
+                ExpressionNode expr = Parser.parse(Lexer.getInstance().tokenize(expresion));
+                trees.add(factory.intern(Simplifier.simplify(expr, simplification).getTree()));
+            }
+            Program program = ProgramCompiler.compileAll(trees, mathPolicy);
+            METRICS.stop(Phase.COMPILE, start, program.getCodeLength());
+            return new FormulaSet(new ArrayList<>(expresions), program);
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.COMPILE, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Compile several expressions into one set that evaluates all of them at once,
+     * see compileAll(List).
+     *
+     * @param expresions the expressions to compile
+     * @return an immutable, reusable formula set
+     */
+    public FormulaSet compileAll(final String... expresions) {
+        return compileAll(Arrays.asList(expresions));
+    }
+
+    /**
+     * Calculate the value of an expression with the variables set on this calculator.
+     *
+     * <p>The compiled form of the expression is cached, so calculating the same
+     * expression string again skips lexing, parsing and compiling and, once the
+     * thread has warmed up, does not allocate.
+     *
+     * @param expresion the expression
+     * @return the value of the expression
+     */
     public double calculate(final String expresion) {
-        Lexer lexer = Lexer.getInstance();
-        lexer.tokenize(expresion);
-        ExpressionNode expr = Parser.parse(lexer.getTokens());
-        return calculateTree(expr, visitor);
+        return cache.get(expresion, compiler).evaluate(variables);
+    }
+
+    /**
+     * Evaluate a compiled expression with the variables set on this calculator.
+     *
+     * @param expression the compiled expression
+     * @return the value of the expression
+     */
+    public double calculate(final CompiledExpression expression) {
+        return expression.evaluate(variables);
+    }
+
+    /**
+     * Evaluate an expression for many rows at once.
+     *
+     * <p>Variables without a column take the value set on this calculator for every row.
+     *
+     * @param expression the compiled expression
+     * @param columns    the values of the variables by name, indexed by row
+     * @param rows       the number of rows
+     * @return the result of every row
+     */
+    public double[] calculateBatch(final CompiledExpression expression, final Map<String, double[]> columns,
+                                   final int rows) {
+        Map<String, double[]> allColumns = new HashMap<>(columns);
+        for (String name : expression.getVariables()) {
+            Double value = variables.get(name);
+            if (value != null && !allColumns.containsKey(name)) {
+                double[] column = new double[rows];
+                Arrays.fill(column, value);
+                allColumns.put(name, column);
+            }
+        }
+        double[] out = new double[rows];
+        expression.evaluateBatch(allColumns, out);
+        return out;
+    }
+
+    /**
+     * Choose how compile simplifies expressions. The default SAFE mode never changes
+     * a result, but variables that are simplified away, like x in x^0, no longer need
+     * a value.
+     *
+     * @param mode the simplification mode
+     * @return this calculator
+     */
+    public Calculator withSimplification(final SimplificationMode mode) {
+        this.simplification = mode;
+        cache.invalidateAll();
+        return this;
+    }
+
+    /**
+     * Choose how compiled expressions compute functions. The default STRICT policy uses
+     * java.lang.Math, FAST trades accuracy for speed, see FastMath for the error bounds.
+     *
+     * @param policy the math policy
+     * @return this calculator
+     */
+    public Calculator withMathPolicy(final MathPolicy policy) {
+        this.mathPolicy = policy;
+        cache.invalidateAll();
+        return this;
+    }
+
+    /**
+     * Replace the expression cache used by calculate with one of a different size.
+     *
+     * @param maximumSize   the maximum number of cached expressions
+     * @param maximumWeight the maximum estimated size of all cached expressions in bytes
+     * @return this calculator
+     */
+    public Calculator withCache(final long maximumSize, final long maximumWeight) {
+        this.cache = new BoundedCache<>(maximumSize, maximumWeight, CompiledExpression::getEstimatedSize);
+        return this;
+    }
+
+    /**
+     * Get the statistics of the expression cache, for example to size it.
+     *
+     * @return the hit, miss, eviction and load time statistics
+     */
+    public CacheStats getCacheStats() {
+        return cache.stats();
     }
 
     public Calculator withVariable(final String variable, final double value) {
-        visitor.addVariable(variable, value);
+        variables.put(variable, value);
         return this;
     }
 }
@@ -0,0 +1,616 @@
+package co.uk.cogitolearning.calculator;
+
+import co.uk.cogitolearning.calculator.closure.ClosureCompiler;
+import co.uk.cogitolearning.calculator.codegen.BytecodeCompiler;
+import co.uk.cogitolearning.calculator.math.MathPolicy;
+import co.uk.cogitolearning.calculator.metrics.CalculatorMetrics;
+import co.uk.cogitolearning.calculator.metrics.Phase;
+import co.uk.cogitolearning.calculator.program.Program;
+import co.uk.cogitolearning.calculator.program.ProgramCompiler;
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import co.uk.cogitolearning.calculator.tree.ExpressionNodeIterator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * An expression that has been tokenized, parsed and prepared for evaluation.
+ *
+ * <p>The lexing and parsing cost is paid once in Calculator.compile, after which
+ * the expression can be evaluated any number of times with different variable
+ * values. Instances are immutable and can be shared between threads.
+ *
+ * <p>The tree is compiled into a flat postfix Program which is run by a switch
+ * based interpreter. The tree itself can still be evaluated with a
+ * CalculationVisitor.
+ *
+ * <p>Variable names are resolved to integer slots at compile time. Values are bound
+ * either through a double[] indexed by slot or through a reusable Bindings object,
+ * missing variables are reported when binding, not in the middle of evaluation.
+ *
+ * <p>Once a thread has warmed up, evaluate with a map, a double[] or Bindings and
+ * evaluateGradient do not allocate: the operand stack comes from the bindings or from
+ * per thread scratch arrays and no value is boxed. The batch methods allocate one
+ * stack per call, the evaluator returned for Backend.INTERPRETER does not allocate.
+ *
+ * <p>The evaluate methods are measured by CalculatorMetrics as Phase.EVALUATE, the
+ * evaluators returned by evaluator are not.
+ */
+public final class CompiledExpression {
+    private static final CalculatorMetrics METRICS = CalculatorMetrics.getInstance();
+
+    /**
+     * The source text the expression was compiled from.
+     */
+    private final String source;
+    /**
+     * The root of the abstract syntax tree.
+     */
+    private final ExpressionNode tree;
+    /**
+     * The number of distinct tree nodes, a node with several parents counts once.
+     */
+    private final int nodeCount;
+    /**
+     * The steps of evaluate(CalculationVisitor), created on first use.
+     */
+    private volatile VisitOrder visitOrder;
+    /**
+     * The compiled postfix program.
+     */
+    private final Program program;
+    /**
+     * The referenced variables in slot order.
+     */
+    private final Set<String> variables;
+    /**
+     * The slot of every referenced variable.
+     */
+    private final Map<String, Integer> slots;
+    /**
+     * The number of nodes the simplifier removed from the parsed tree.
+     */
+    private final int removedNodes;
+
+    CompiledExpression(final String source, final ExpressionNode tree, final MathPolicy policy,
+                       final int removedNodes) {
+        this(source, tree, ProgramCompiler.compile(tree, policy), removedNodes);
+    }
+
+    CompiledExpression(final String source, final ExpressionNode tree, final Program program,
+                       final int removedNodes) {
+        this.source = source;
+        this.removedNodes = removedNodes;
+        this.tree = tree;
+        this.nodeCount = countNodes(tree);
+        this.program = program;
+        Set<String> names = new LinkedHashSet<>();
+        Map<String, Integer> slotIndex = new HashMap<>();
+        for (int slot = 0; slot < program.getVariableCount(); slot++) {
+            names.add(program.getVariable(slot));
+            slotIndex.put(program.getVariable(slot), slot);
+        }
+        this.variables = Collections.unmodifiableSet(names);
+        this.slots = slotIndex;
+    }
+
+    private static int countNodes(final ExpressionNode tree) {
+        Set<ExpressionNode> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        ExpressionNodeIterator it = ExpressionNodeIterator.preOrder(tree, nodes::add);
+        while (it.hasNext()) {
+            it.next();
+        }
+        return nodes.size();
+    }
+
+    /**
+     * Evaluate an expression that does not reference any variables.
+     *
+     * @return the value of the expression
+     */
+    public double evaluate() {
+        return evaluate(Collections.emptyMap());
+    }
+
+    /**
+     * Evaluate the expression with the given variable values.
+     *
+     * @param variables the values of the variables referenced by the expression
+     * @return the value of the expression
+     */
+    public double evaluate(final Map<String, Double> variables) {
+        long start = METRICS.start();
+        try {
+            double value = run(variables);
+            METRICS.stop(Phase.EVALUATE, start, 1);
+            return value;
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.EVALUATE, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Bind the variable values into the scratch array of the thread, unlike bind this
+     * does not create Bindings.
+     */
+    private double run(final Map<String, Double> variables) {
+        Scratch scratch = Scratch.get();
+        double[] values = scratch.values(program.getVariableCount());
+        for (int slot = 0; slot < program.getVariableCount(); slot++) {
+            Double value = variables.get(program.getVariable(slot));
+            if (value == null) {
+                throw new EvaluationException("Variable '" + program.getVariable(slot) + "' was not initialized.");
+            }
+            values[slot] = value;
+        }
+        return program.evaluate(values, scratch.stack(program.getStackSize()));
+    }
+
+    /**
+     * Evaluate the expression with variable values indexed by slot.
+     *
+     * @param values the value of every variable, see slotOf
+     * @return the value of the expression
+     */
+    public double evaluate(final double[] values) {
+        long start = METRICS.start();
+        try {
+            double value = run(values);
+            METRICS.stop(Phase.EVALUATE, start, 1);
+            return value;
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.EVALUATE, start, e);
+            throw e;
+        }
+    }
+
+    private double run(final double[] values) {
+        if (values.length < program.getVariableCount()) {
+            throw new EvaluationException("Expected " + program.getVariableCount() + " variable values but got "
+                    + values.length + ".");
+        }
+        return program.evaluate(values, Scratch.get().stack(program.getStackSize()));
+    }
+
+    /**
+     * Evaluate the expression with bound variable values. The operand stack of the
+     * bindings is reused, so this does not allocate.
+     *
+     * @param bindings bindings created for this expression
+     * @return the value of the expression
+     */
+    public double evaluate(final Bindings bindings) {
+        long start = METRICS.start();
+        try {
+            double value = run(bindings);
+            METRICS.stop(Phase.EVALUATE, start, 1);
+            return value;
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.EVALUATE, start, e);
+            throw e;
+        }
+    }
+
+    private double run(final Bindings bindings) {
+        if (bindings.getExpression() != this) {
+            throw new EvaluationException("The bindings were created for " + bindings.getExpression() + ".");
+        }
+        if (!bindings.isComplete()) {
+            throw new EvaluationException("Variable '" + bindings.firstUnbound() + "' was not initialized.");
+        }
+        return program.evaluate(bindings.getValues(), bindings.getStack());
+    }
+
+    /**
+     * Evaluate the expression for many rows of variable values.
+     *
+     * <p>The program is run once per block of rows and every operator is applied to
+     * the whole block in a tight loop, which is much faster than evaluating row by row.
+     *
+     * @param columns the values of every variable indexed by slot, then by row
+     * @param out     receives the result of every row, its length is the number of rows
+     */
+    public void evaluateBatch(final double[][] columns, final double[] out) {
+        long start = METRICS.start();
+        try {
+            runBatch(columns, out);
+            METRICS.stop(Phase.EVALUATE, start, out.length);
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.EVALUATE, start, e);
+            throw e;
+        }
+    }
+
+    private void runBatch(final double[][] columns, final double[] out) {
+        checkColumns(columns, out.length);
+        program.evaluateBatch(columns, 0, out.length, out, program.newBlockStack());
+    }
+
+    /**
+     * Evaluate the expression for many rows of variable values.
+     *
+     * @param columns the values of every variable by name, indexed by row
+     * @param out     receives the result of every row, its length is the number of rows
+     * @throws EvaluationException if a referenced variable has no column
+     */
+    public void evaluateBatch(final Map<String, double[]> columns, final double[] out) {
+        long start = METRICS.start();
+        try {
+            runBatch(toSlotColumns(columns), out);
+            METRICS.stop(Phase.EVALUATE, start, out.length);
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.EVALUATE, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Evaluate the expression for many rows in parallel in the common ForkJoinPool.
+     *
+     * @param columns the values of every variable indexed by slot, then by row
+     * @param out     receives the result of every row, its length is the number of rows
+     */
+    public void evaluateBatchParallel(final double[][] columns, final double[] out) {
+        evaluateBatchParallel(columns, out, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Evaluate the expression for many rows in parallel in a ForkJoinPool.
+     *
+     * <p>The results are the same as those of evaluateBatch, whatever the number of threads.
+     *
+     * @param columns the values of every variable indexed by slot, then by row
+     * @param out     receives the result of every row, its length is the number of rows
+     * @param pool    the pool to run in
+     */
+    public void evaluateBatchParallel(final double[][] columns, final double[] out, final ForkJoinPool pool) {
+        long start = METRICS.start();
+        try {
+            checkColumns(columns, out.length);
+            program.evaluateBatch(columns, 0, out.length, out, pool);
+            METRICS.stop(Phase.EVALUATE, start, out.length);
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.EVALUATE, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Evaluate the expression for many rows in parallel with an executor.
+     *
+     * @param columns     the values of every variable indexed by slot, then by row
+     * @param out         receives the result of every row, its length is the number of rows
+     * @param executor    the executor to run in
+     * @param parallelism the number of threads of the executor
+     */
+    public void evaluateBatchParallel(final double[][] columns, final double[] out, final Executor executor,
+                                      final int parallelism) {
+        long start = METRICS.start();
+        try {
+            checkColumns(columns, out.length);
+            program.evaluateBatch(columns, 0, out.length, out, executor, parallelism);
+            METRICS.stop(Phase.EVALUATE, start, out.length);
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.EVALUATE, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Evaluate the expression and its gradient in a single pass.
+     *
+     * <p>The derivatives are computed exactly by forward mode automatic differentiation,
+     * not approximated by finite differences. At points where the expression is not
+     * differentiable, for example ln(x) at 0, the derivatives are infinite or NaN.
+     *
+     * @param values   the value of every variable, see slotOf
+     * @param gradient receives the partial derivative with respect to every variable, indexed by slot
+     * @return the value of the expression
+     */
+    public double evaluateGradient(final double[] values, final double[] gradient) {
+        long start = METRICS.start();
+        try {
+            if (values.length < program.getVariableCount() || gradient.length < program.getVariableCount()) {
+                throw new EvaluationException("Expected " + program.getVariableCount()
+                        + " variable values and derivatives but got " + values.length + " and " + gradient.length
+                        + ".");
+            }
+            double value = program.evaluateGradient(values, gradient,
+                    Scratch.get().stack(program.getGradientStackSize()));
+            METRICS.stop(Phase.EVALUATE, start, 1);
+            return value;
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.EVALUATE, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Evaluate the expression and its gradient for many rows of variable values.
+     *
+     * @param columns   the values of every variable indexed by slot, then by row
+     * @param out       receives the result of every row, its length is the number of rows
+     * @param gradients receives the partial derivatives indexed by slot, then by row
+     */
+    public void evaluateGradientBatch(final double[][] columns, final double[] out, final double[][] gradients) {
+        long start = METRICS.start();
+        try {
+            checkColumns(columns, out.length);
+            checkColumns(gradients, out.length);
+            program.evaluateGradientBatch(columns, 0, out.length, out, gradients, program.newGradientStack());
+            METRICS.stop(Phase.EVALUATE, start, out.length);
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.EVALUATE, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Order columns given by name by slot.
+     */
+    double[][] toSlotColumns(final Map<String, double[]> columns) {
+        double[][] slotColumns = new double[program.getVariableCount()][];
+        for (int slot = 0; slot < slotColumns.length; slot++) {
+            slotColumns[slot] = columns.get(program.getVariable(slot));
+            if (slotColumns[slot] == null) {
+                throw new EvaluationException("Variable '" + program.getVariable(slot) + "' was not initialized.");
+            }
+        }
+        return slotColumns;
+    }
+
+    void checkColumns(final double[][] columns, final int rows) {
+        if (columns.length < program.getVariableCount()) {
+            throw new EvaluationException("Expected " + program.getVariableCount() + " variable columns but got "
+                    + columns.length + ".");
+        }
+        for (int slot = 0; slot < program.getVariableCount(); slot++) {
+            if (columns[slot].length < rows) {
+                throw new EvaluationException("The column of variable '" + program.getVariable(slot) + "' has "
+                        + columns[slot].length + " rows but " + rows + " are required.");
+            }
+        }
+    }
+
+    /**
+     * Create an evaluator for the expression.
+     *
+     * <p>The evaluator takes the variable values indexed by slot, like evaluate(double[]).
+     * If a backend other than the interpreter cannot compile the expression, for example
+     * because it is too large or class generation is not permitted, the interpreter is
+     * used instead.
+     *
+     * @param backend the backend to compile with
+     * @return a thread safe evaluator
+     */
+    public DoubleEvaluator evaluator(final Backend backend) {
+        try {
+            switch (backend) {
+                case BYTECODE:
+                    return BytecodeCompiler.compile(program);
+                case CLOSURE:
+                    return ClosureCompiler.compile(tree, this::slotOf, program.getMathPolicy());
+                default:
+                    break;
+            }
+        } catch (RuntimeException | LinkageError e) {
+            // fall back to the interpreter
+        }
+        return this::run;
+    }
+
+    /**
+     * Create empty bindings for this expression.
+     *
+     * @return bindings without any values
+     */
+    public Bindings newBindings() {
+        return new Bindings(this);
+    }
+
+    /**
+     * Bind the values of all referenced variables from a map.
+     *
+     * @param variables the variable values, may contain variables the expression does not use
+     * @return complete bindings
+     * @throws EvaluationException if a referenced variable has no value
+     */
+    public Bindings bind(final Map<String, Double> variables) {
+        Bindings bindings = new Bindings(this);
+        for (int slot = 0; slot < program.getVariableCount(); slot++) {
+            Double value = variables.get(program.getVariable(slot));
+            if (value == null) {
+                throw new EvaluationException("Variable '" + program.getVariable(slot) + "' was not initialized.");
+            }
+            bindings.set(slot, value);
+        }
+        return bindings;
+    }
+
+    /**
+     * Get the variables the expression references, in slot order.
+     *
+     * @return an unmodifiable set of variable names
+     */
+    public Set<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Get the slot of a variable.
+     *
+     * @param name the variable name
+     * @return the slot, or -1 if the expression does not reference the variable
+     */
+    public int slotOf(final String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Evaluate the expression with a caller supplied visitor.
+     *
+     * <p>The visitor provides the variable values and its operand stack is reused,
+     * so repeated evaluations with the same visitor do not allocate. A node with
+     * several parents is visited once and its value reused.
+     *
+     * @param visitor the visitor to evaluate with
+     * @return the value of the expression
+     */
+    public double evaluate(final CalculationVisitor visitor) {
+        long start = METRICS.start();
+        try {
+            VisitOrder order = visitOrder;
+            if (order == null) {
+                order = new VisitOrder(tree);
+                visitOrder = order;
+            }
+            visitor.reset();
+            for (int step = 0; step < order.nodes.length; step++) {
+                if (order.expanded[step]) {
+                    order.nodes[step].accept(visitor);
+                    if (order.temporaries[step] >= 0) {
+                        visitor.store(order.temporaries[step]);
+                    }
+                } else {
+                    visitor.load(order.temporaries[step]);
+                }
+            }
+            double value = visitor.getValue();
+            METRICS.stop(Phase.EVALUATE, start, 1);
+            return value;
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.EVALUATE, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the source text the expression was compiled from.
+     *
+     * @return the expression string
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Get the abstract syntax tree of the expression.
+     *
+     * @return the root node of the tree
+     */
+    public ExpressionNode getTree() {
+        return tree;
+    }
+
+    /**
+     * Get the compiled postfix program.
+     *
+     * @return the program
+     */
+    public Program getProgram() {
+        return program;
+    }
+
+    /**
+     * Estimate the memory retained by this object, used to weigh cache entries.
+     *
+     * <p>The estimate assumes compressed references: 24 bytes per distinct tree node
+     * and array headers of 16 bytes, plus the source text, the code and the constant
+     * pool. The steps of evaluate(CalculationVisitor) are only counted once created.
+     *
+     * @return the estimated size in bytes
+     */
+    public long getEstimatedSize() {
+        VisitOrder order = visitOrder;
+        return 64 // this object and the string header
+                + 2L * source.length()
+                + 24L * nodeCount
+                + (order == null ? 0 : 3 * 16 + 9L * order.nodes.length)
+                + 16 + 4L * program.getCodeLength()
+                + 16 + 8L * program.getConstantCount()
+                + 48L * variables.size(); // slot map and variable set entries
+    }
+
+    /**
+     * Get the number of nodes the simplifier removed from the parsed tree.
+     *
+     * @return the number of removed nodes, 0 if the expression was not simplified
+     */
+    public int getRemovedNodes() {
+        return removedNodes;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * The nodes of the tree in reverse polish notation, the order in which a
+     * CalculationVisitor evaluates them.
+     *
+     * <p>A node with several parents is expanded only once, where it is first
+     * evaluated, and its value is kept in a temporary of the visitor. Its other uses
+     * load the temporary, so the steps are linear in the size of the DAG, not in the
+     * size of the tree it stands for.
+     */
+    private static final class VisitOrder {
+        private final ExpressionNode[] nodes;
+        /**
+         * Whether a step visits its node or loads the value of an earlier visit.
+         */
+        private final boolean[] expanded;
+        /**
+         * The temporary a step stores its value in or loads it from, -1 for none.
+         */
+        private final int[] temporaries;
+
+        VisitOrder(final ExpressionNode tree) {
+            // count the parents of every node, walking every node once
+            Map<ExpressionNode, Integer> parents = new IdentityHashMap<>();
+            Set<ExpressionNode> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            ExpressionNodeIterator it = ExpressionNodeIterator.preOrder(tree, seen::add);
+            while (it.hasNext()) {
+                parents.merge(it.next(), 1, Integer::sum);
+            }
+            // reverse polish notation is pre-order reversed, so expand a node at its last
+            // use in pre-order, which becomes its first use once reversed
+            Map<ExpressionNode, Integer> remaining = new IdentityHashMap<>(parents);
+            List<ExpressionNode> order = new ArrayList<>();
+            List<Boolean> expand = new ArrayList<>();
+            it = ExpressionNodeIterator.preOrder(tree, node -> remaining.get(node) == 1);
+            while (it.hasNext()) {
+                ExpressionNode node = it.next();
+                int left = remaining.merge(node, -1, Integer::sum);
+                order.add(node);
+                expand.add(left == 0);
+            }
+            int steps = order.size();
+            nodes = new ExpressionNode[steps];
+            expanded = new boolean[steps];
+            temporaries = new int[steps];
+            Map<ExpressionNode, Integer> temporaryOf = new IdentityHashMap<>();
+            for (int step = 0; step < steps; step++) {
+                ExpressionNode node = order.get(steps - 1 - step);
+                nodes[step] = node;
+                expanded[step] = expand.get(steps - 1 - step);
+                if (expanded[step]) {
+                    temporaries[step] = parents.get(node) > 1 ? temporaryOf.computeIfAbsent(node,
+                            n -> temporaryOf.size()) : -1;
+                } else {
+                    temporaries[step] = temporaryOf.get(node);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package co.uk.cogitolearning.calculator;
+
+/**
+ * A compiled form of an expression that evaluates it from variable values indexed by slot.
+ *
+ * <p>Implementations are created by CompiledExpression.evaluator and are thread safe.
+ */
+@FunctionalInterface
+public interface DoubleEvaluator {
+    /**
+     * Evaluate the expression.
+     *
+     * @param vars the value of every variable, indexed by slot
+     * @return the value of the expression
+     */
+    double evaluate(double[] vars);
+}
@@ -0,0 +1,66 @@
+package co.uk.cogitolearning.calculator;
+
+import co.uk.cogitolearning.calculator.program.Program;
+import co.uk.cogitolearning.calculator.program.ProgramCodec;
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import co.uk.cogitolearning.calculator.tree.NodeFactory;
+import lombok.experimental.UtilityClass;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compact, versioned binary encoding of CompiledExpressions.
+ *
+ * <p>An encoded expression is a format version byte, the source text and the program
+ * as written by ProgramCodec: the code, the constant pool and the variable table.
+ * Decoding does not lex, parse, simplify or compile anything. The tree is rebuilt
+ * from the program, sharing the subexpressions the program keeps in temporaries, so
+ * a decoded expression evaluates exactly like the one that was encoded. The number
+ * of nodes removed by the simplifier is not stored, it is 0 after decoding.
+ */
+@UtilityClass
+public class ExpressionCodec {
+    /**
+     * The version of the encoding written by encode.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * Encode an expression.
+     *
+     * @param expression the expression
+     * @return the encoded expression
+     */
+    public static byte[] encode(final CompiledExpression expression) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(FORMAT_VERSION);
+        ProgramCodec.writeString(out, expression.getSource());
+        ProgramCodec.write(expression.getProgram(), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode an expression.
+     *
+     * @param in the buffer, positioned at the encoded expression and advanced past it
+     * @return the expression
+     * @throws IllegalArgumentException if the input is not an encoded expression or was
+     *                                  written by an unsupported version
+     */
+    public static CompiledExpression decode(final ByteBuffer in) {
+        try {
+            int version = in.get() & 0xFF;
+            if (version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported expression format version " + version);
+            }
+            String source = ProgramCodec.readString(in);
+            Program program = ProgramCodec.read(in);
+            ExpressionNode tree = ProgramCodec.toTree(program, NodeFactory.DEFAULT);
+            return new CompiledExpression(source, tree, program, 0);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated expression", e);
+        }
+    }
+}
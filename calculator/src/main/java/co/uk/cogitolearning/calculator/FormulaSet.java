@@ -0,0 +1,154 @@
+package co.uk.cogitolearning.calculator;
+
+import co.uk.cogitolearning.calculator.metrics.CalculatorMetrics;
+import co.uk.cogitolearning.calculator.metrics.Phase;
+import co.uk.cogitolearning.calculator.program.Program;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Several expressions compiled into one program, see Calculator.compileAll.
+ *
+ * <p>The expressions share their variable slots and every subexpression that occurs
+ * in more than one of them, like sin(x*y) in sin(x*y)+1 and 2*sin(x*y), is computed
+ * only once per evaluation. One evaluation fills the result of every expression.
+ * Instances are immutable and can be shared between threads.
+ *
+ * <p>Evaluating into a caller supplied results array does not allocate once the
+ * thread has warmed up, the operand stack is a per thread scratch array.
+ *
+ * <p>The evaluate methods are measured by CalculatorMetrics as Phase.EVALUATE, one
+ * item per evaluation of the whole set.
+ */
+public final class FormulaSet {
+    private static final CalculatorMetrics METRICS = CalculatorMetrics.getInstance();
+
+    /**
+     * The source text of every expression.
+     */
+    private final List<String> sources;
+    /**
+     * The compiled program with one OUTPUT per expression.
+     */
+    private final Program program;
+    /**
+     * The variables referenced by any of the expressions in slot order.
+     */
+    private final Set<String> variables;
+    /**
+     * The slot of every referenced variable.
+     */
+    private final Map<String, Integer> slots;
+
+    FormulaSet(final List<String> sources, final Program program) {
+        this.sources = Collections.unmodifiableList(sources);
+        this.program = program;
+        Set<String> names = new LinkedHashSet<>();
+        Map<String, Integer> slotIndex = new HashMap<>();
+        for (int slot = 0; slot < program.getVariableCount(); slot++) {
+            names.add(program.getVariable(slot));
+            slotIndex.put(program.getVariable(slot), slot);
+        }
+        this.variables = Collections.unmodifiableSet(names);
+        this.slots = slotIndex;
+    }
+
+    /**
+     * Evaluate every expression with the given variable values.
+     *
+     * @param variables the values of the variables referenced by the expressions
+     * @return the value of every expression, in the order they were compiled
+     */
+    public double[] evaluate(final Map<String, Double> variables) {
+        double[] values = new double[program.getVariableCount()];
+        for (int slot = 0; slot < values.length; slot++) {
+            Double value = variables.get(program.getVariable(slot));
+            if (value == null) {
+                throw new EvaluationException("Variable '" + program.getVariable(slot) + "' was not initialized.");
+            }
+            values[slot] = value;
+        }
+        double[] results = new double[sources.size()];
+        evaluate(values, results);
+        return results;
+    }
+
+    /**
+     * Evaluate every expression with variable values indexed by slot.
+     *
+     * @param values  the value of every variable, see slotOf
+     * @param results receives the value of every expression, in the order they were compiled
+     */
+    public void evaluate(final double[] values, final double[] results) {
+        long start = METRICS.start();
+        try {
+            if (values.length < program.getVariableCount() || results.length < sources.size()) {
+                throw new EvaluationException("Expected " + program.getVariableCount() + " variable values and "
+                        + sources.size() + " results but got " + values.length + " and " + results.length + ".");
+            }
+            program.evaluateAll(values, Scratch.get().stack(program.getStackSize()), results);
+            METRICS.stop(Phase.EVALUATE, start, 1);
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.EVALUATE, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the number of expressions in the set.
+     *
+     * @return the number of results of an evaluation
+     */
+    public int size() {
+        return sources.size();
+    }
+
+    /**
+     * Get the source text of one expression.
+     *
+     * @param index the position of the expression
+     * @return the expression string
+     */
+    public String getSource(final int index) {
+        return sources.get(index);
+    }
+
+    /**
+     * Get the variables any of the expressions reference, in slot order.
+     *
+     * @return an unmodifiable set of variable names
+     */
+    public Set<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Get the slot of a variable.
+     *
+     * @param name the variable name
+     * @return the slot, or -1 if no expression references the variable
+     */
+    public int slotOf(final String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Get the compiled program, run it with Program.evaluateAll.
+     *
+     * @return the program
+     */
+    public Program getProgram() {
+        return program;
+    }
+
+    @Override
+    public String toString() {
+        return String.join("; ", sources);
+    }
+}
@@ -0,0 +1,54 @@
+package co.uk.cogitolearning.calculator;
+
+/**
+ * Per thread arrays for evaluations whose caller does not supply the variable values
+ * or the operand stack, like CompiledExpression.evaluate(Map).
+ *
+ * <p>The arrays only grow, so once they fit the largest program a thread runs,
+ * evaluating does not allocate. An evaluation never starts another one on the same
+ * thread, so the arrays are not used twice at the same time.
+ */
+final class Scratch {
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private double[] values = new double[16];
+    private double[] stack = new double[64];
+
+    private Scratch() {
+    }
+
+    /**
+     * Get the arrays of the current thread.
+     *
+     * @return the scratch arrays
+     */
+    static Scratch get() {
+        return SCRATCH.get();
+    }
+
+    /**
+     * Get an array for variable values, its contents are undefined.
+     *
+     * @param length the minimum length
+     * @return the array
+     */
+    double[] values(final int length) {
+        if (values.length < length) {
+            values = new double[Math.max(length, 2 * values.length)];
+        }
+        return values;
+    }
+
+    /**
+     * Get an array for an operand stack, its contents are undefined.
+     *
+     * @param length the minimum length
+     * @return the array
+     */
+    double[] stack(final int length) {
+        if (stack.length < length) {
+            stack = new double[Math.max(length, 2 * stack.length)];
+        }
+        return stack;
+    }
+}
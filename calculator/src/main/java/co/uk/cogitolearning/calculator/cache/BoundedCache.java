@@ -0,0 +1,248 @@
+package co.uk.cogitolearning.calculator.cache;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread safe cache with a maximum number of entries and a maximum total weight.
+ *
+ * <p>The keys are spread over a fixed number of segments by their hash code. Every
+ * segment has its own lock and its own share of the limits, so threads working on
+ * different segments never contend. Because the limits are enforced per segment, a
+ * segment that receives more than its share of the keys evicts while the cache as a
+ * whole is still below its limits; with a maximum size of 16 every segment holds a
+ * single entry. Small caches should therefore be sized with some headroom.
+ *
+ * <p>Lookups do not lock: the entries of a segment are in a ConcurrentHashMap, and a
+ * hit only sets the referenced flag of the entry. Eviction approximates least recently
+ * used with the second chance algorithm: under the lock of the segment, the entries
+ * are kept in insertion order, and when the segment exceeds its limits the oldest
+ * entry is evicted unless it was referenced since it was last looked at, in which case
+ * its flag is cleared and it moves to the back. A value heavier than the weight limit
+ * of its segment is returned but not cached. Values are loaded outside of the lock, so
+ * a slow load does not block other lookups; if two threads load the same key at the
+ * same time, the first value stored wins.
+ *
+ * <p>Statistics are kept in LongAdders and can be read with stats at any time.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public final class BoundedCache<K, V> {
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<K, V>[] segments;
+    private final ToLongFunction<? super V> weigher;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loadTime = new LongAdder();
+
+    /**
+     * Create a cache.
+     *
+     * @param maximumSize   the maximum number of entries, at least 1
+     * @param maximumWeight the maximum total weight of the entries
+     * @param weigher       computes the weight of a value, for example its estimated size in bytes
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedCache(final long maximumSize, final long maximumWeight, final ToLongFunction<? super V> weigher) {
+        if (maximumSize < 1 || maximumWeight < 1) {
+            throw new IllegalArgumentException("The cache limits must be positive");
+        }
+        this.weigher = weigher;
+        // every segment has to be able to hold at least one entry and one unit of weight
+        long limit = Math.min(maximumSize, maximumWeight);
+        int segmentCount = Integer.highestOneBit((int) Math.min(MAX_SEGMENTS, limit));
+        segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<>(share(maximumSize, segmentCount, i), share(maximumWeight, segmentCount, i));
+        }
+    }
+
+    /**
+     * Split a limit over the segments, the first segments get the remainder.
+     */
+    private static long share(final long limit, final int segmentCount, final int segment) {
+        return limit / segmentCount + (segment < limit % segmentCount ? 1 : 0);
+    }
+
+    private Segment<K, V> segmentFor(final Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    /**
+     * Get the value of a key, loading and caching it if it is not cached yet.
+     *
+     * @param key    the key
+     * @param loader computes the value of a key, must not return null, exceptions are
+     *               passed to the caller and nothing is cached
+     * @return the cached or loaded value
+     */
+    public V get(final K key, final Function<? super K, ? extends V> loader) {
+        Segment<K, V> segment = segmentFor(key);
+        V value = segment.get(key);
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+        misses.increment();
+        long start = System.nanoTime();
+        try {
+            value = Objects.requireNonNull(loader.apply(key), "The loader returned null");
+        } catch (RuntimeException | Error e) {
+            loadFailures.increment();
+            throw e;
+        } finally {
+            loadTime.add(System.nanoTime() - start);
+        }
+        return segment.putIfAbsent(key, value, weigher.applyAsLong(value), evictions);
+    }
+
+    /**
+     * Get a cached value without loading it.
+     *
+     * @param key the key
+     * @return the value, or null if the key is not cached
+     */
+    public V getIfPresent(final K key) {
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * Remove all entries. The statistics are kept.
+     */
+    public void invalidateAll() {
+        for (Segment<K, V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Get the number of cached entries.
+     *
+     * @return the number of entries
+     */
+    public long size() {
+        long size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Take a snapshot of the statistics.
+     *
+     * @return the current statistics
+     */
+    public CacheStats stats() {
+        long size = 0;
+        long weight = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.queue.size();
+                weight += segment.weight;
+            }
+        }
+        return new CacheStats(hits.sum(), misses.sum(), loadFailures.sum(), evictions.sum(), loadTime.sum(),
+                size, weight);
+    }
+
+    /**
+     * One lock stripe of the cache.
+     */
+    private static final class Segment<K, V> {
+        private final long maximumSize;
+        private final long maximumWeight;
+        /**
+         * The entries by key, read without the lock and changed only under it.
+         */
+        private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+        /**
+         * The entries in the order of eviction, oldest first, guarded by the lock.
+         */
+        private final ArrayDeque<Entry<K, V>> queue = new ArrayDeque<>();
+        private long weight;
+
+        Segment(final long maximumSize, final long maximumWeight) {
+            this.maximumSize = maximumSize;
+            this.maximumWeight = maximumWeight;
+        }
+
+        V get(final Object key) {
+            Entry<K, V> entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            // avoid writing the shared cache line on every hit
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            return entry.value;
+        }
+
+        synchronized V putIfAbsent(final K key, final V value, final long valueWeight, final LongAdder evictions) {
+            Entry<K, V> existing = entries.get(key);
+            if (existing != null) {
+                return existing.value;
+            }
+            // a value that can never fit is not cached, rather than evicting everything else first
+            if (valueWeight > maximumWeight) {
+                return value;
+            }
+            Entry<K, V> added = new Entry<>(key, value, valueWeight);
+            entries.put(key, added);
+            queue.addLast(added);
+            weight += valueWeight;
+            // the added entry is never evicted for itself, and every other entry gets at
+            // most one second chance, so the loop ends
+            while (queue.size() > maximumSize || weight > maximumWeight) {
+                Entry<K, V> eldest = queue.pollFirst();
+                if (eldest == added || eldest.referenced) {
+                    eldest.referenced = false;
+                    queue.addLast(eldest);
+                } else {
+                    entries.remove(eldest.key);
+                    weight -= eldest.weight;
+                    evictions.increment();
+                }
+            }
+            return value;
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            queue.clear();
+            weight = 0;
+        }
+
+        int size() {
+            return entries.size();
+        }
+    }
+
+    /**
+     * A cached value, its weight and whether it was read since eviction last looked at it.
+     */
+    private static final class Entry<K, V> {
+        private final K key;
+        private final V value;
+        private final long weight;
+        private volatile boolean referenced;
+
+        Entry(final K key, final V value, final long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
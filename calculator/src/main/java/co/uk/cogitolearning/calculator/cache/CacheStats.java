@@ -0,0 +1,63 @@
+package co.uk.cogitolearning.calculator.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A snapshot of the statistics of a BoundedCache.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+@AllArgsConstructor
+public final class CacheStats {
+    /**
+     * The number of lookups that found a cached value.
+     */
+    private final long hitCount;
+    /**
+     * The number of lookups that had to load a value.
+     */
+    private final long missCount;
+    /**
+     * The number of loads that threw an exception.
+     */
+    private final long loadFailureCount;
+    /**
+     * The number of entries removed to stay within the size or weight limit.
+     */
+    private final long evictionCount;
+    /**
+     * The total time spent loading values, in nanoseconds.
+     */
+    private final long totalLoadTime;
+    /**
+     * The number of cached entries.
+     */
+    private final long size;
+    /**
+     * The total weight of the cached entries.
+     */
+    private final long weight;
+
+    /**
+     * Get the ratio of lookups that found a cached value.
+     *
+     * @return the hit rate, 1 if there were no lookups
+     */
+    public double hitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    /**
+     * Get the average time spent loading a value.
+     *
+     * @return the average load time in nanoseconds, 0 if nothing was loaded
+     */
+    public double averageLoadPenalty() {
+        return missCount == 0 ? 0.0 : (double) totalLoadTime / missCount;
+    }
+}
@@ -0,0 +1,289 @@
+package co.uk.cogitolearning.calculator.closure;
+
+import co.uk.cogitolearning.calculator.DoubleEvaluator;
+import co.uk.cogitolearning.calculator.math.FastMath;
+import co.uk.cogitolearning.calculator.math.MathFunctions;
+import co.uk.cogitolearning.calculator.math.MathPolicy;
+import co.uk.cogitolearning.calculator.tree.AdditionNode;
+import co.uk.cogitolearning.calculator.tree.ConstantNode;
+import co.uk.cogitolearning.calculator.tree.DivNode;
+import co.uk.cogitolearning.calculator.tree.ExponentiationNode;
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import co.uk.cogitolearning.calculator.tree.ExpressionNodeVisitor;
+import co.uk.cogitolearning.calculator.tree.FunctionNode;
+import co.uk.cogitolearning.calculator.tree.MultiplicationNode;
+import co.uk.cogitolearning.calculator.tree.SubtractionNode;
+import co.uk.cogitolearning.calculator.tree.VariableNode;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * Compiles an ExpressionNode tree into nested DoubleEvaluator objects.
+ *
+ * <p>Every node becomes a small functional object that evaluates its children
+ * directly, for example an AdditionNode becomes
+ * {@code vars -> left.evaluate(vars) + right.evaluate(vars)}. There is no operand
+ * stack and no dispatch on node types at evaluation time. Constant and variable
+ * operands get specialized objects that read the value directly, and operators with
+ * only constant operands are folded. This keeps the number of virtual calls in small
+ * formulas low enough for the JIT to inline them completely.
+ *
+ * <p>The results are bit-identical to those of the Program interpreter with the same
+ * MathPolicy. Evaluation recurses through the nesting, so trees deeper than MAX_DEPTH
+ * are rejected.
+ */
+public final class ClosureCompiler implements ExpressionNodeVisitor<DoubleEvaluator> {
+    /**
+     * The deepest tree that is compiled, deeper trees could overflow the stack when evaluated.
+     */
+    public static final int MAX_DEPTH = 500;
+
+    private final ToIntFunction<String> slots;
+    private final MathPolicy policy;
+    /**
+     * The result of the last visit, since ExpressionNode.accept does not return it.
+     */
+    private DoubleEvaluator result;
+    private int depth;
+
+    private ClosureCompiler(final ToIntFunction<String> slots, final MathPolicy policy) {
+        this.slots = slots;
+        this.policy = policy;
+    }
+
+    /**
+     * Compile an expression tree.
+     *
+     * @param tree  the root of the tree
+     * @param slots maps every variable name to its slot in the array passed to evaluate
+     * @return a thread safe evaluator
+     * @throws UnsupportedOperationException if the tree is deeper than MAX_DEPTH
+     */
+    public static DoubleEvaluator compile(final ExpressionNode tree, final ToIntFunction<String> slots) {
+        return compile(tree, slots, MathPolicy.STRICT);
+    }
+
+    /**
+     * Compile an expression tree with a math policy.
+     *
+     * @param tree   the root of the tree
+     * @param slots  maps every variable name to its slot in the array passed to evaluate
+     * @param policy how functions are computed
+     * @return a thread safe evaluator
+     * @throws UnsupportedOperationException if the tree is deeper than MAX_DEPTH
+     */
+    public static DoubleEvaluator compile(final ExpressionNode tree, final ToIntFunction<String> slots,
+                                          final MathPolicy policy) {
+        return new ClosureCompiler(slots, policy).compile(tree);
+    }
+
+    private DoubleEvaluator compile(final ExpressionNode node) {
+        if (++depth > MAX_DEPTH) {
+            throw new UnsupportedOperationException("Expression is nested too deeply for closure compilation");
+        }
+        node.accept(this);
+        depth--;
+        return result;
+    }
+
+    @Override
+    public DoubleEvaluator visit(final VariableNode node) {
+        result = new Variable(slots.applyAsInt(node.getName()));
+        return result;
+    }
+
+    @Override
+    public DoubleEvaluator visit(final ConstantNode node) {
+        result = new Constant(node.getValue());
+        return result;
+    }
+
+    @Override
+    public DoubleEvaluator visit(final ExponentiationNode node) {
+        DoubleEvaluator base = compile(node.getBase());
+        DoubleEvaluator exponent = compile(node.getExponent());
+        if (base instanceof Constant && exponent instanceof Constant) {
+            result = new Constant(Math.pow(((Constant) base).value, ((Constant) exponent).value));
+        } else if (exponent instanceof Constant) {
+            double e = ((Constant) exponent).value;
+            result = vars -> Math.pow(base.evaluate(vars), e);
+        } else {
+            result = vars -> Math.pow(base.evaluate(vars), exponent.evaluate(vars));
+        }
+        return result;
+    }
+
+    @Override
+    public DoubleEvaluator visit(final FunctionNode node) {
+        DoubleEvaluator argument = compile(node.getArgument());
+        DoubleEvaluator function = policy == MathPolicy.FAST
+                ? fastFunction(node.getFunction(), argument) : function(node.getFunction(), argument);
+        if (argument instanceof Constant) {
+            function = new Constant(function.evaluate(null));
+        }
+        result = function;
+        return result;
+    }
+
+    private static DoubleEvaluator fastFunction(final int function, final DoubleEvaluator a) {
+        switch (function) {
+            case FunctionNode.SIN:
+                return vars -> FastMath.sin(a.evaluate(vars));
+            case FunctionNode.COS:
+                return vars -> FastMath.cos(a.evaluate(vars));
+            case FunctionNode.TAN:
+                return vars -> FastMath.tan(a.evaluate(vars));
+            case FunctionNode.EXP:
+                return vars -> FastMath.exp(a.evaluate(vars));
+            case FunctionNode.LN:
+                return vars -> FastMath.log(a.evaluate(vars));
+            case FunctionNode.LOG:
+                return vars -> FastMath.log10(a.evaluate(vars));
+            case FunctionNode.LOG2:
+                return vars -> FastMath.log2(a.evaluate(vars));
+            default:
+                return function(function, a);
+        }
+    }
+
+    private static DoubleEvaluator function(final int function, final DoubleEvaluator a) {
+        switch (function) {
+            case FunctionNode.SIN:
+                return vars -> Math.sin(a.evaluate(vars));
+            case FunctionNode.COS:
+                return vars -> Math.cos(a.evaluate(vars));
+            case FunctionNode.TAN:
+                return vars -> Math.tan(a.evaluate(vars));
+            case FunctionNode.ASIN:
+                return vars -> Math.asin(a.evaluate(vars));
+            case FunctionNode.ACOS:
+                return vars -> Math.acos(a.evaluate(vars));
+            case FunctionNode.ATAN:
+                return vars -> Math.atan(a.evaluate(vars));
+            case FunctionNode.SQRT:
+                return vars -> Math.sqrt(a.evaluate(vars));
+            case FunctionNode.EXP:
+                return vars -> Math.exp(a.evaluate(vars));
+            case FunctionNode.LN:
+                return vars -> Math.log(a.evaluate(vars));
+            case FunctionNode.LOG:
+                return vars -> Math.log10(a.evaluate(vars));
+            case FunctionNode.LOG2:
+                return vars -> MathFunctions.log2(a.evaluate(vars));
+            default:
+                throw new UnsupportedOperationException("Not supported: " + function);
+        }
+    }
+
+    @Override
+    public DoubleEvaluator visit(final AdditionNode node) {
+        DoubleEvaluator l = compile(node.getAddendLeft());
+        DoubleEvaluator r = compile(node.getAddendRight());
+        if (l instanceof Variable && r instanceof Variable) {
+            int a = ((Variable) l).slot;
+            int b = ((Variable) r).slot;
+            result = vars -> vars[a] + vars[b];
+        } else if (r instanceof Constant) {
+            double c = ((Constant) r).value;
+            result = l instanceof Constant ? new Constant(((Constant) l).value + c) : vars -> l.evaluate(vars) + c;
+        } else if (l instanceof Constant) {
+            double c = ((Constant) l).value;
+            result = vars -> c + r.evaluate(vars);
+        } else {
+            result = vars -> l.evaluate(vars) + r.evaluate(vars);
+        }
+        return result;
+    }
+
+    @Override
+    public DoubleEvaluator visit(final SubtractionNode node) {
+        DoubleEvaluator l = compile(node.getMinuend());
+        DoubleEvaluator r = compile(node.getSubtrahend());
+        if (l instanceof Variable && r instanceof Variable) {
+            int a = ((Variable) l).slot;
+            int b = ((Variable) r).slot;
+            result = vars -> vars[a] - vars[b];
+        } else if (r instanceof Constant) {
+            double c = ((Constant) r).value;
+            result = l instanceof Constant ? new Constant(((Constant) l).value - c) : vars -> l.evaluate(vars) - c;
+        } else if (l instanceof Constant) {
+            double c = ((Constant) l).value;
+            result = vars -> c - r.evaluate(vars);
+        } else {
+            result = vars -> l.evaluate(vars) - r.evaluate(vars);
+        }
+        return result;
+    }
+
+    @Override
+    public DoubleEvaluator visit(final MultiplicationNode node) {
+        DoubleEvaluator l = compile(node.getMultiplicand());
+        DoubleEvaluator r = compile(node.getMultiplier());
+        if (l instanceof Variable && r instanceof Variable) {
+            int a = ((Variable) l).slot;
+            int b = ((Variable) r).slot;
+            result = vars -> vars[a] * vars[b];
+        } else if (r instanceof Constant) {
+            double c = ((Constant) r).value;
+            result = l instanceof Constant ? new Constant(((Constant) l).value * c) : vars -> l.evaluate(vars) * c;
+        } else if (l instanceof Constant) {
+            double c = ((Constant) l).value;
+            result = vars -> c * r.evaluate(vars);
+        } else {
+            result = vars -> l.evaluate(vars) * r.evaluate(vars);
+        }
+        return result;
+    }
+
+    @Override
+    public DoubleEvaluator visit(final DivNode node) {
+        DoubleEvaluator l = compile(node.getNumerator());
+        DoubleEvaluator r = compile(node.getDenominator());
+        if (l instanceof Variable && r instanceof Variable) {
+            int a = ((Variable) l).slot;
+            int b = ((Variable) r).slot;
+            result = vars -> vars[a] / vars[b];
+        } else if (r instanceof Constant) {
+            double c = ((Constant) r).value;
+            result = l instanceof Constant ? new Constant(((Constant) l).value / c) : vars -> l.evaluate(vars) / c;
+        } else if (l instanceof Constant) {
+            double c = ((Constant) l).value;
+            result = vars -> c / r.evaluate(vars);
+        } else {
+            result = vars -> l.evaluate(vars) / r.evaluate(vars);
+        }
+        return result;
+    }
+
+    /**
+     * A constant operand.
+     */
+    private static final class Constant implements DoubleEvaluator {
+        private final double value;
+
+        Constant(final double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double evaluate(final double[] vars) {
+            return value;
+        }
+    }
+
+    /**
+     * A variable operand.
+     */
+    private static final class Variable implements DoubleEvaluator {
+        private final int slot;
+
+        Variable(final int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public double evaluate(final double[] vars) {
+            return vars[slot];
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package co.uk.cogitolearning.calculator.codegen;
+
+import co.uk.cogitolearning.calculator.DoubleEvaluator;
+import co.uk.cogitolearning.calculator.program.Opcodes;
+import co.uk.cogitolearning.calculator.program.Program;
+import co.uk.cogitolearning.calculator.program.ProgramCompiler;
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiles expressions into JVM classes implementing DoubleEvaluator.
+ *
+ * <p>The postfix Program of an expression maps directly onto JVM bytecode: constants
+ * become ldc2_w, variables array loads, temporaries local variables, operators the
+ * double arithmetic instructions and functions calls to java.lang.Math. The result
+ * is a single straight-line method that the JIT compiles like hand-written Java,
+ * keeping intermediates in registers. Every class is defined in its own class
+ * loader, so it can be unloaded as soon as the evaluator is no longer referenced.
+ *
+ * <p>The generated code performs exactly the same operations as Program.evaluate and
+ * returns bit-identical results.
+ */
+public final class BytecodeCompiler {
+    /**
+     * The largest method the JIT compiles, larger methods stay interpreted and would be
+     * slower than the Program interpreter.
+     */
+    static final int MAX_CODE_LENGTH = 8000;
+
+    private static final int CLASS_FILE_VERSION = 52;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC2_W = 0x14;
+    private static final int DLOAD = 0x18;
+    private static final int DSTORE = 0x39;
+    private static final int DUP2 = 0x5c;
+    private static final int WIDE = 0xc4;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int DALOAD = 0x31;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private static final String MATH = "java/lang/Math";
+    private static final String MATH_FUNCTIONS = "co/uk/cogitolearning/calculator/math/MathFunctions";
+    private static final String FAST_MATH = "co/uk/cogitolearning/calculator/math/FastMath";
+    private static final String UNARY = "(D)D";
+    private static final String BINARY = "(DD)D";
+    private static final String PACKAGE = BytecodeCompiler.class.getPackage().getName().replace('.', '/');
+
+    private static final AtomicLong CLASS_COUNTER = new AtomicLong();
+
+    private final ConstantPool pool = new ConstantPool();
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+    private BytecodeCompiler() {
+    }
+
+    /**
+     * Compile an expression tree into a generated class.
+     *
+     * @param tree the root of the tree
+     * @return a new evaluator
+     * @throws UnsupportedOperationException if the expression is too large for a single method
+     */
+    public static DoubleEvaluator compile(final ExpressionNode tree) {
+        return compile(ProgramCompiler.compile(tree));
+    }
+
+    /**
+     * Compile a program into a generated class.
+     *
+     * @param program the program
+     * @return a new evaluator
+     * @throws UnsupportedOperationException if the program is too large for a single method
+     */
+    public static DoubleEvaluator compile(final Program program) {
+        String name = PACKAGE + "/GeneratedEvaluator" + CLASS_COUNTER.incrementAndGet();
+        byte[] classFile = new BytecodeCompiler().generate(name, program);
+        Class<?> type = new EvaluatorLoader().define(name.replace('/', '.'), classFile);
+        try {
+            return (DoubleEvaluator) type.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot instantiate generated evaluator", e);
+        }
+    }
+
+    byte[] generate(final String name, final Program program) {
+        int thisClass = pool.classRef(name);
+        int superClass = pool.classRef("java/lang/Object");
+        int evaluatorInterface = pool.classRef(DoubleEvaluator.class.getName().replace('.', '/'));
+        int codeAttribute = pool.utf8("Code");
+
+        // public <init>() { super(); }
+        int constructorName = pool.utf8("<init>");
+        int constructorDescriptor = pool.utf8("()V");
+        byte[] constructor = {
+                (byte) ALOAD_0,
+                (byte) INVOKESPECIAL, 0, 0,
+                (byte) RETURN
+        };
+        int superConstructor = pool.methodRef("java/lang/Object", "<init>", "()V");
+        constructor[2] = (byte) (superConstructor >> 8);
+        constructor[3] = (byte) superConstructor;
+
+        // public final double evaluate(double[] vars)
+        int evaluateName = pool.utf8("evaluate");
+        int evaluateDescriptor = pool.utf8("([D)D");
+        emitProgram(program);
+        code.write(DRETURN);
+        if (code.size() > MAX_CODE_LENGTH) {
+            throw new UnsupportedOperationException("Expression is too large for a generated method");
+        }
+        // a double takes two stack slots, loading a variable needs the array and the index
+        int maxStack = 2 * program.getMaxStackDepth() + 2;
+        // this, vars and two slots per temporary
+        int maxLocals = 2 + 2 * program.getTemporaryCount();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_FILE_VERSION);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(evaluatorInterface);
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+            writeMethod(out, ACC_PUBLIC, constructorName, constructorDescriptor, codeAttribute, 1, 1, constructor);
+            writeMethod(out, ACC_PUBLIC | ACC_FINAL, evaluateName, evaluateDescriptor, codeAttribute, maxStack, maxLocals,
+                    code.toByteArray());
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeMethod(final DataOutputStream out, final int access, final int name,
+                                    final int descriptor, final int codeAttribute, final int maxStack,
+                                    final int maxLocals, final byte[] body) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + body.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    private void emitProgram(final Program program) {
+        int[] instructions = program.getCode();
+        double[] constants = program.getConstants();
+        for (int pc = 0; pc < instructions.length; pc++) {
+            int opcode = instructions[pc];
+            switch (opcode) {
+                case Opcodes.CONST:
+                    emitConstant(constants[instructions[++pc]]);
+                    break;
+                case Opcodes.LOAD:
+                    code.write(ALOAD_1);
+                    emitInt(instructions[++pc]);
+                    code.write(DALOAD);
+                    break;
+                case Opcodes.STORE:
+                    code.write(DUP2);
+                    emitLocal(DSTORE, instructions[++pc]);
+                    break;
+                case Opcodes.LOAD_TEMP:
+                    emitLocal(DLOAD, instructions[++pc]);
+                    break;
+                case Opcodes.ADD:
+                    code.write(DADD);
+                    break;
+                case Opcodes.SUB:
+                    code.write(DSUB);
+                    break;
+                case Opcodes.MUL:
+                    code.write(DMUL);
+                    break;
+                case Opcodes.DIV:
+                    code.write(DDIV);
+                    break;
+                case Opcodes.POW:
+                    emitInvoke("pow", BINARY);
+                    break;
+                case Opcodes.LOG2:
+                    emitInvoke(MATH_FUNCTIONS, "log2", UNARY);
+                    break;
+                case Opcodes.FAST_LOG2:
+                    emitInvoke(FAST_MATH, "log2", UNARY);
+                    break;
+                default:
+                    if (Opcodes.isFast(opcode)) {
+                        // FastMath has the same method names as Math
+                        emitInvoke(FAST_MATH, mathFunction(Opcodes.FUNCTION_BASE + Opcodes.functionOf(opcode)),
+                                UNARY);
+                    } else {
+                        emitInvoke(mathFunction(opcode), UNARY);
+                    }
+                    break;
+            }
+            if (code.size() > MAX_CODE_LENGTH) {
+                throw new UnsupportedOperationException("Expression is too large for a generated method");
+            }
+        }
+    }
+
+    private static String mathFunction(final int opcode) {
+        switch (opcode) {
+            case Opcodes.SIN:
+                return "sin";
+            case Opcodes.COS:
+                return "cos";
+            case Opcodes.TAN:
+                return "tan";
+            case Opcodes.ASIN:
+                return "asin";
+            case Opcodes.ACOS:
+                return "acos";
+            case Opcodes.ATAN:
+                return "atan";
+            case Opcodes.SQRT:
+                return "sqrt";
+            case Opcodes.EXP:
+                return "exp";
+            case Opcodes.LN:
+                return "log";
+            case Opcodes.LOG:
+                return "log10";
+            default:
+                throw new UnsupportedOperationException("Not supported: " + Opcodes.name(opcode));
+        }
+    }
+
+    private void emitConstant(final double value) {
+        if (Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(0.0)) {
+            code.write(DCONST_0);
+        } else if (value == 1.0) {
+            code.write(DCONST_1);
+        } else {
+            emitWithIndex(LDC2_W, pool.doubleConstant(value));
+        }
+    }
+
+    private void emitInt(final int value) {
+        if (value <= Byte.MAX_VALUE) {
+            code.write(BIPUSH);
+            code.write(value);
+        } else if (value <= Short.MAX_VALUE) {
+            emitWithIndex(SIPUSH, value);
+        } else {
+            throw new UnsupportedOperationException("Too many variables");
+        }
+    }
+
+    /**
+     * Load or store the local variable of a temporary.
+     */
+    private void emitLocal(final int opcode, final int temporary) {
+        int local = 2 + 2 * temporary;
+        if (local <= 0xFF) {
+            code.write(opcode);
+            code.write(local);
+        } else {
+            code.write(WIDE);
+            emitWithIndex(opcode, local);
+        }
+    }
+
+    private void emitInvoke(final String name, final String descriptor) {
+        emitInvoke(MATH, name, descriptor);
+    }
+
+    private void emitInvoke(final String owner, final String name, final String descriptor) {
+        emitWithIndex(INVOKESTATIC, pool.methodRef(owner, name, descriptor));
+    }
+
+    private void emitWithIndex(final int opcode, final int index) {
+        code.write(opcode);
+        code.write(index >> 8);
+        code.write(index);
+    }
+
+    /**
+     * Defines a single generated class, so that it can be unloaded with its loader.
+     */
+    private static final class EvaluatorLoader extends ClassLoader {
+        EvaluatorLoader() {
+            super(DoubleEvaluator.class.getClassLoader());
+        }
+
+        Class<?> define(final String name, final byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
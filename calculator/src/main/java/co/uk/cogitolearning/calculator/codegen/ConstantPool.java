@@ -0,0 +1,113 @@
+package co.uk.cogitolearning.calculator.codegen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The constant pool of a class file under construction. Equal entries are shared.
+ */
+final class ConstantPool {
+    private static final int UTF8 = 1;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int METHOD_REF = 10;
+    private static final int NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final Map<String, Integer> entries = new HashMap<>();
+    /**
+     * The index of the next entry, index 0 is unused.
+     */
+    private int count = 1;
+
+    int utf8(final String value) {
+        Integer index = entries.get("U" + value);
+        if (index != null) {
+            return index;
+        }
+        try {
+            out.writeByte(UTF8);
+            out.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return add("U" + value, 1);
+    }
+
+    int classRef(final String internalName) {
+        int name = utf8(internalName);
+        Integer index = entries.get("C" + internalName);
+        if (index != null) {
+            return index;
+        }
+        write(CLASS, name);
+        return add("C" + internalName, 1);
+    }
+
+    int methodRef(final String owner, final String name, final String descriptor) {
+        String key = "M" + owner + '.' + name + descriptor;
+        Integer index = entries.get(key);
+        if (index != null) {
+            return index;
+        }
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = entries.getOrDefault("N" + name + descriptor, 0);
+        if (nameAndType == 0) {
+            write(NAME_AND_TYPE, nameIndex, descriptorIndex);
+            nameAndType = add("N" + name + descriptor, 1);
+        }
+        write(METHOD_REF, ownerIndex, nameAndType);
+        return add(key, 1);
+    }
+
+    int doubleConstant(final double value) {
+        String key = "D" + Double.doubleToRawLongBits(value);
+        Integer index = entries.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            out.writeByte(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits(value));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        // doubles take two entries
+        return add(key, 2);
+    }
+
+    private void write(final int tag, final int... indexes) {
+        try {
+            out.writeByte(tag);
+            for (int index : indexes) {
+                out.writeShort(index);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int add(final String key, final int size) {
+        int index = count;
+        count += size;
+        if (count > 0xFFFF) {
+            throw new UnsupportedOperationException("Too many constants");
+        }
+        entries.put(key, index);
+        return index;
+    }
+
+    /**
+     * Write the constant_pool_count and the entries.
+     */
+    void writeTo(final DataOutputStream target) throws IOException {
+        target.writeShort(count);
+        bytes.writeTo(target);
+    }
+}
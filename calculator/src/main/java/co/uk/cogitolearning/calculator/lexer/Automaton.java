@@ -0,0 +1,368 @@
+package co.uk.cogitolearning.calculator.lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A deterministic finite automaton that recognizes all token patterns of a Lexer at once.
+ *
+ * <p>The patterns are parsed by RegexParser, combined into a single Thompson NFA and
+ * turned into a DFA by subset construction. The input characters are mapped to a
+ * small number of equivalence classes, so a transition is a single array lookup.
+ *
+ * <p>Matching follows the usual lexer rules: the longest match wins, and if several
+ * patterns match the same number of characters the pattern added first is chosen.
+ * Instances are immutable.
+ */
+final class Automaton {
+    /**
+     * The result of match if no pattern matches.
+     */
+    static final long NO_MATCH = -1L;
+    /**
+     * Safety limit for the number of DFA states.
+     */
+    private static final int MAX_STATES = 10000;
+    /**
+     * Characters below this value are mapped to their class by a table lookup.
+     */
+    private static final int ASCII = 128;
+
+    /**
+     * The token id of every pattern, in the order the patterns were added.
+     */
+    private final int[] tokenIds;
+    /**
+     * The lookahead character set of every pattern, null if the pattern has none.
+     */
+    private final int[][] lookaheads;
+    /**
+     * True for every pattern whose lookahead is negative.
+     */
+    private final boolean[] negativeLookaheads;
+
+    /**
+     * Start of every character class, sorted.
+     */
+    private final int[] classBounds;
+    /**
+     * Character class of the ASCII characters.
+     */
+    private final int[] asciiClasses;
+    /**
+     * The number of character classes.
+     */
+    private final int classCount;
+    /**
+     * The transition table, indexed by state * classCount + class, -1 for the dead state.
+     */
+    private final int[] transitions;
+    /**
+     * The patterns accepted in every state in order of priority, null if none.
+     */
+    private final int[][] accepts;
+
+    /**
+     * Compile token patterns into an automaton.
+     *
+     * @param patterns the parsed patterns in order of priority
+     * @param tokenIds the token id of every pattern
+     */
+    Automaton(final List<RegexParser.Pattern> patterns, final int[] tokenIds) {
+        this.tokenIds = tokenIds.clone();
+        int count = patterns.size();
+        lookaheads = new int[count][];
+        negativeLookaheads = new boolean[count];
+
+        Nfa nfa = new Nfa();
+        int[] acceptStates = new int[count];
+        int start = nfa.newState();
+        for (int i = 0; i < count; i++) {
+            RegexParser.Pattern pattern = patterns.get(i);
+            int[] fragment = nfa.build(pattern.node);
+            nfa.epsilon(start, fragment[0]);
+            acceptStates[i] = fragment[1];
+            lookaheads[i] = pattern.lookahead;
+            negativeLookaheads[i] = pattern.negativeLookahead;
+        }
+
+        classBounds = computeClassBounds(nfa.charSets, lookaheads);
+        classCount = classBounds.length;
+        asciiClasses = new int[ASCII];
+        for (int c = 0; c < ASCII; c++) {
+            asciiClasses[c] = slowClassOf(c);
+        }
+
+        // Subset construction
+        List<BitSet> states = new ArrayList<>();
+        Map<BitSet, Integer> ids = new HashMap<>();
+        List<int[]> rows = new ArrayList<>();
+        BitSet initial = nfa.closure(singleton(start));
+        states.add(initial);
+        ids.put(initial, 0);
+
+        for (int s = 0; s < states.size(); s++) {
+            BitSet current = states.get(s);
+            int[] row = new int[classCount];
+            for (int cls = 0; cls < classCount; cls++) {
+                BitSet next = nfa.move(current, classBounds[cls]);
+                if (next.isEmpty()) {
+                    row[cls] = -1;
+                    continue;
+                }
+                BitSet closure = nfa.closure(next);
+                Integer id = ids.get(closure);
+                if (id == null) {
+                    if (states.size() >= MAX_STATES) {
+                        throw new IllegalArgumentException("Token patterns are too complex");
+                    }
+                    id = states.size();
+                    states.add(closure);
+                    ids.put(closure, id);
+                }
+                row[cls] = id;
+            }
+            rows.add(row);
+        }
+
+        transitions = new int[states.size() * classCount];
+        accepts = new int[states.size()][];
+        for (int s = 0; s < states.size(); s++) {
+            System.arraycopy(rows.get(s), 0, transitions, s * classCount, classCount);
+            int[] accepted = new int[count];
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                if (states.get(s).get(acceptStates[i])) {
+                    accepted[size++] = i;
+                }
+            }
+            if (size > 0) {
+                accepts[s] = Arrays.copyOf(accepted, size);
+            }
+        }
+    }
+
+    private static BitSet singleton(final int state) {
+        BitSet set = new BitSet();
+        set.set(state);
+        return set;
+    }
+
+    private static int[] computeClassBounds(final List<int[]> charSets, final int[][] lookaheads) {
+        TreeSet<Integer> bounds = new TreeSet<>();
+        bounds.add(0);
+        List<int[]> all = new ArrayList<>(charSets);
+        all.addAll(Arrays.asList(lookaheads));
+        for (int[] set : all) {
+            if (set == null) {
+                continue;
+            }
+            for (int i = 0; i < set.length; i += 2) {
+                bounds.add(set[i]);
+                if (set[i + 1] < RegexParser.MAX_CHAR) {
+                    bounds.add(set[i + 1] + 1);
+                }
+            }
+        }
+        int[] result = new int[bounds.size()];
+        int i = 0;
+        for (int bound : bounds) {
+            result[i++] = bound;
+        }
+        return result;
+    }
+
+    private int slowClassOf(final int c) {
+        int index = Arrays.binarySearch(classBounds, c);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private int classOf(final char c) {
+        return c < ASCII ? asciiClasses[c] : slowClassOf(c);
+    }
+
+    /**
+     * Find the longest token starting at a position.
+     *
+     * <p>The result packs the token id into the upper and the end index into the
+     * lower 32 bits, use tokenId and end to unpack it.
+     *
+     * @param input the input string
+     * @param from  the index to start matching at
+     * @param limit the end of the input
+     * @return the packed match, or NO_MATCH if no pattern matches
+     */
+    long match(final String input, final int from, final int limit) {
+        long result = NO_MATCH;
+        int state = 0;
+        for (int i = from; i < limit; ) {
+            state = transitions[state * classCount + classOf(input.charAt(i++))];
+            if (state < 0) {
+                break;
+            }
+            int[] accepted = accepts[state];
+            if (accepted != null) {
+                int pattern = select(accepted, input, i, limit);
+                if (pattern >= 0) {
+                    result = ((long) tokenIds[pattern] << 32) | i;
+                }
+            }
+        }
+        return result;
+    }
+
+    private int select(final int[] accepted, final String input, final int end, final int limit) {
+        for (int pattern : accepted) {
+            int[] lookahead = lookaheads[pattern];
+            if (lookahead == null) {
+                return pattern;
+            }
+            boolean next = end < limit && RegexParser.contains(lookahead, input.charAt(end));
+            if (next != negativeLookaheads[pattern]) {
+                return pattern;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Extract the token id from a packed match.
+     *
+     * @param match the result of match
+     * @return the token id
+     */
+    static int tokenId(final long match) {
+        return (int) (match >>> 32);
+    }
+
+    /**
+     * Extract the end index from a packed match.
+     *
+     * @param match the result of match
+     * @return the index after the last matched character
+     */
+    static int end(final long match) {
+        return (int) match;
+    }
+
+    /**
+     * A Thompson NFA under construction. Every state has at most one character transition.
+     */
+    private static final class Nfa {
+        /**
+         * The characters of the transition leaving each state, null if there is none.
+         */
+        private final List<int[]> charSets = new ArrayList<>();
+        /**
+         * The target of the character transition of each state.
+         */
+        private final List<Integer> charTargets = new ArrayList<>();
+        /**
+         * The epsilon transitions of each state.
+         */
+        private final List<List<Integer>> epsilons = new ArrayList<>();
+
+        int newState() {
+            charSets.add(null);
+            charTargets.add(-1);
+            epsilons.add(new ArrayList<>());
+            return charSets.size() - 1;
+        }
+
+        void epsilon(final int from, final int to) {
+            epsilons.get(from).add(to);
+        }
+
+        /**
+         * Build the fragment for a regex node.
+         *
+         * @return the start and the end state of the fragment
+         */
+        int[] build(final RegexParser.Node node) {
+            int start = newState();
+            int end;
+            if (node instanceof RegexParser.CharSet) {
+                end = newState();
+                charSets.set(start, ((RegexParser.CharSet) node).ranges);
+                charTargets.set(start, end);
+            } else if (node instanceof RegexParser.Concatenation) {
+                end = start;
+                for (RegexParser.Node child : ((RegexParser.Concatenation) node).nodes) {
+                    int[] fragment = build(child);
+                    epsilon(end, fragment[0]);
+                    end = fragment[1];
+                }
+            } else if (node instanceof RegexParser.Alternation) {
+                end = newState();
+                for (RegexParser.Node child : ((RegexParser.Alternation) node).nodes) {
+                    int[] fragment = build(child);
+                    epsilon(start, fragment[0]);
+                    epsilon(fragment[1], end);
+                }
+            } else {
+                RegexParser.Repetition repetition = (RegexParser.Repetition) node;
+                end = start;
+                for (int i = 0; i < repetition.min; i++) {
+                    int[] fragment = build(repetition.node);
+                    epsilon(end, fragment[0]);
+                    end = fragment[1];
+                }
+                if (repetition.max < 0) {
+                    int[] fragment = build(repetition.node);
+                    int loopEnd = newState();
+                    epsilon(end, fragment[0]);
+                    epsilon(end, loopEnd);
+                    epsilon(fragment[1], fragment[0]);
+                    epsilon(fragment[1], loopEnd);
+                    end = loopEnd;
+                } else {
+                    int optionalEnd = newState();
+                    for (int i = repetition.min; i < repetition.max; i++) {
+                        int[] fragment = build(repetition.node);
+                        epsilon(end, fragment[0]);
+                        epsilon(end, optionalEnd);
+                        end = fragment[1];
+                    }
+                    epsilon(end, optionalEnd);
+                    end = optionalEnd;
+                }
+            }
+            return new int[]{start, end};
+        }
+
+        BitSet closure(final BitSet states) {
+            BitSet closure = (BitSet) states.clone();
+            int[] work = new int[charSets.size()];
+            int size = 0;
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                work[size++] = s;
+            }
+            while (size > 0) {
+                int state = work[--size];
+                for (int target : epsilons.get(state)) {
+                    if (!closure.get(target)) {
+                        closure.set(target);
+                        work[size++] = target;
+                    }
+                }
+            }
+            return closure;
+        }
+
+        BitSet move(final BitSet states, final int c) {
+            BitSet next = new BitSet();
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                int[] set = charSets.get(s);
+                if (set != null && RegexParser.contains(set, c)) {
+                    next.set(charTargets.get(s));
+                }
+            }
+            return next;
+        }
+    }
+}
@@ -25,14 +25,15 @@
 package co.uk.cogitolearning.calculator.lexer;
 
 import co.uk.cogitolearning.calculator.ParserException;
+import co.uk.cogitolearning.calculator.metrics.CalculatorMetrics;
+import co.uk.cogitolearning.calculator.metrics.Phase;
 import co.uk.cogitolearning.calculator.tree.FunctionNode;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A class for reading an input string and separating it into tokens that can be
@@ -40,10 +41,16 @@ import java.util.regex.Pattern;
  *
  * <p>The user can add regular expressions that will be matched against the front
  * of the string. Regular expressions should not contain beginning-of-string or
- * end-of-string anchors or any capturing groups as these will be added by the
- * tokenizer itself.
+ * end-of-string anchors as these are implied by the tokenizer itself.
+ *
+ * <p>All regular expressions are compiled into a single automaton that scans the
+ * input once from left to right. At every position the longest match wins; if
+ * several expressions match the same number of characters, the one added first
+ * is used.
  */
 public final class Lexer {
+    private static final CalculatorMetrics METRICS = CalculatorMetrics.getInstance();
+
     /**
      * Internal class holding the information about a token type.
      */
@@ -53,7 +60,7 @@ public final class Lexer {
         /**
          * The regular expression to match against.
          */
-        private final Pattern regex;
+        private final RegexParser.Pattern regex;
         /**
          * The token id that the regular expression is linked to.
          */
@@ -65,46 +72,48 @@ public final class Lexer {
      *
      * <p>Each token type corresponds to one entry in the list
      */
-    private LinkedList<TokenInfo> tokenInfos;
-
-    /**
-     * The list of tokens produced when tokenizing the input.
-     */
-    private LinkedList<Token> tokens;
+    private final LinkedList<TokenInfo> tokenInfos;
 
     /**
-     * A tokenizer that can handle mathematical expressions.
+     * The automaton recognizing all token types, null if it has to be rebuilt.
+     *
+     * <p>The automaton is immutable, so tokenize only has to read this field once
+     * and keeps no other state between calls.
      */
-    private static Lexer instance = null;
+    private volatile Automaton automaton;
 
     /**
      * Default constructor.
      */
     private Lexer() {
         tokenInfos = new LinkedList<>();
-        tokens = new LinkedList<>();
     }
 
     /**
-     * A static method that returns a tokenizer for mathematical expressions.
+     * Lazy initialization holder for the shared tokenizer.
+     */
+    private static final class InstanceHolder {
+        private static final Lexer INSTANCE = create();
+    }
+
+    /**
+     * A static method that returns a shared tokenizer for mathematical expressions.
      *
-     * <p>Not thread safe singleton design pattern
+     * <p>The shared instance is thread safe, tokenize can be called concurrently.
+     * Use create to get a separate instance when adding custom token types.
      *
      * @return a tokenizer that can handle mathematical expressions
      */
-    public static synchronized Lexer getInstance() {
-        if (instance == null) {
-            instance = create();
-        }
-        return instance;
+    public static Lexer getInstance() {
+        return InstanceHolder.INSTANCE;
     }
 
     /**
-     * A static method that actually creates a tokenizer for mathematical expressions.
+     * A static method that creates a new tokenizer for mathematical expressions.
      *
      * @return a tokenizer that can handle mathematical expressions
      */
-    private static Lexer create() {
+    public static Lexer create() {
         Lexer lexer = new Lexer();
 
         lexer.add("[+]", Token.PLUS);
@@ -129,48 +138,82 @@ public final class Lexer {
      *
      * @param regex the regular expression to match against
      * @param token the token id that the regular expression is linked to
+     * @throws java.util.regex.PatternSyntaxException if the regular expression is
+     *                                                invalid or not supported by the automaton
      */
-    public void add(final String regex, final int token) {
-        tokenInfos.add(new TokenInfo(Pattern.compile("^(" + regex + ")"), token));
+    public synchronized void add(final String regex, final int token) {
+        tokenInfos.add(new TokenInfo(RegexParser.parse(regex), token));
+        automaton = null;
     }
 
-    /**
-     * Tokenize an input string.
-     *
-     * <p>The result of tokenizing can be accessed via getTokens
-     *
-     * @param str the string to tokenize
-     */
-    public void tokenize(final String str) {
-        String s = str.trim();
-        int totalLength = s.length();
-        tokens.clear();
-        while (!s.equals("")) {
-            int remaining = s.length();
-            boolean match = false;
-            for (TokenInfo info : tokenInfos) {
-                Matcher m = info.regex.matcher(s);
-                if (m.find()) {
-                    match = true;
-                    String tok = m.group().trim();
-                    s = m.replaceFirst("").trim();
-                    tokens.add(new Token(info.token, tok, totalLength - remaining));
-                    break;
+    private Automaton getAutomaton() {
+        Automaton current = automaton;
+        if (current == null) {
+            synchronized (this) {
+                if (automaton == null) {
+                    List<RegexParser.Pattern> patterns = new ArrayList<>(tokenInfos.size());
+                    int[] tokenIds = new int[tokenInfos.size()];
+                    for (TokenInfo info : tokenInfos) {
+                        tokenIds[patterns.size()] = info.getToken();
+                        patterns.add(info.getRegex());
+                    }
+                    automaton = new Automaton(patterns, tokenIds);
                 }
-            }
-            if (!match) {
-                throw new ParserException("Unexpected character in input: " + s);
+                current = automaton;
             }
         }
+        return current;
     }
 
     /**
-     * Get the tokens generated in the last call to tokenize.
+     * Tokenize an input string.
      *
+     * <p>Every call returns a new list, so tokenize is safe to call from several
+     * threads at once. Token positions are relative to the input string with
+     * leading whitespace removed.
+     *
+     * @param str the string to tokenize
      * @return a list of tokens to be fed to Parser
      */
-    public List<Token> getTokens() {
+    public List<Token> tokenize(final String str) {
+        long start = METRICS.start();
+        try {
+            List<Token> tokens = scan(str);
+            METRICS.stop(Phase.TOKENIZE, start, tokens.size());
+            return tokens;
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.TOKENIZE, start, e);
+            throw e;
+        }
+    }
+
+    private List<Token> scan(final String str) {
+        Automaton dfa = getAutomaton();
+        int begin = skipWhitespace(str, 0, str.length());
+        int end = str.length();
+        while (end > begin && str.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        List<Token> tokens = new ArrayList<>();
+        int pos = begin;
+        while (pos < end) {
+            long match = dfa.match(str, pos, end);
+            if (match == Automaton.NO_MATCH) {
+                throw new ParserException("Unexpected character in input: " + str.substring(pos, end));
+            }
+            int tokenEnd = Automaton.end(match);
+            String tok = str.substring(pos, tokenEnd).trim();
+            tokens.add(new Token(Automaton.tokenId(match), tok, pos - begin));
+            pos = skipWhitespace(str, tokenEnd, end);
+        }
         return tokens;
     }
 
+    private static int skipWhitespace(final String str, final int from, final int end) {
+        int pos = from;
+        while (pos < end && str.charAt(pos) <= ' ') {
+            pos++;
+        }
+        return pos;
+    }
 }
@@ -0,0 +1,460 @@
+package co.uk.cogitolearning.calculator.lexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A parser for the regular expressions that can be registered with Lexer.add.
+ *
+ * <p>The supported syntax is the regular subset of java.util.regex: literals,
+ * escapes, character classes, the dot, groups, alternation and the greedy
+ * quantifiers *, +, ? and {n,m}. A single-character lookahead such as (?!\w) is
+ * accepted at the very end of a pattern. Anchors, back references, lazy or
+ * possessive quantifiers and inline flags can not be expressed by a finite
+ * automaton and are rejected with a PatternSyntaxException.
+ */
+final class RegexParser {
+    /**
+     * The largest char value, all character sets are subsets of [0, MAX_CHAR].
+     */
+    static final int MAX_CHAR = Character.MAX_VALUE;
+
+    private static final int[] DIGIT = {'0', '9'};
+    private static final int[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+    private static final int[] SPACE = {'\t', '\r', ' ', ' '};
+    private static final int[] LINE_TERMINATORS = {'\n', '\n', '\r', '\r', 0x85, 0x85, 0x2028, 0x2029};
+
+    private final String regex;
+    private int pos;
+
+    /**
+     * The character set of a trailing lookahead, or null if there is none.
+     */
+    private int[] lookahead;
+    /**
+     * True if the trailing lookahead is a negative one.
+     */
+    private boolean negativeLookahead;
+
+    private RegexParser(final String regex) {
+        this.regex = regex;
+    }
+
+    /**
+     * Parse a regular expression.
+     *
+     * @param regex the regular expression
+     * @return the parsed pattern
+     * @throws PatternSyntaxException if the expression is invalid or unsupported
+     */
+    static Pattern parse(final String regex) {
+        RegexParser parser = new RegexParser(regex);
+        Node node = parser.parseAlternation(0);
+        if (parser.pos < regex.length()) {
+            throw parser.error("Unmatched closing ')'");
+        }
+        return new Pattern(node, parser.lookahead, parser.negativeLookahead);
+    }
+
+    private Node parseAlternation(final int depth) {
+        List<Node> alternatives = new ArrayList<>();
+        alternatives.add(parseConcatenation(depth));
+        while (pos < regex.length() && regex.charAt(pos) == '|') {
+            pos++;
+            alternatives.add(parseConcatenation(depth));
+        }
+        if (alternatives.size() > 1 && lookahead != null) {
+            throw error("A lookahead is only supported at the end of the whole pattern");
+        }
+        return alternatives.size() == 1 ? alternatives.get(0) : new Alternation(alternatives);
+    }
+
+    private Node parseConcatenation(final int depth) {
+        List<Node> sequence = new ArrayList<>();
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos);
+            if (c == '|' || c == ')') {
+                break;
+            }
+            if (lookahead != null) {
+                throw error("A lookahead is only supported at the end of the whole pattern");
+            }
+            if (regex.startsWith("(?=", pos) || regex.startsWith("(?!", pos)) {
+                parseLookahead(depth);
+                continue;
+            }
+            sequence.add(parseQuantifiers(parseAtom(depth)));
+        }
+        return sequence.size() == 1 ? sequence.get(0) : new Concatenation(sequence);
+    }
+
+    private void parseLookahead(final int depth) {
+        if (depth > 0) {
+            throw error("A lookahead is only supported at the end of the whole pattern");
+        }
+        negativeLookahead = regex.charAt(pos + 2) == '!';
+        pos += 3;
+        Node node = parseAlternation(depth + 1);
+        expect(')');
+        if (!(node instanceof CharSet)) {
+            throw error("Only single character lookaheads are supported");
+        }
+        lookahead = ((CharSet) node).ranges;
+    }
+
+    private Node parseQuantifiers(final Node atom) {
+        Node node = atom;
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos);
+            if (c == '*') {
+                pos++;
+                node = new Repetition(node, 0, -1);
+            } else if (c == '+') {
+                pos++;
+                node = new Repetition(node, 1, -1);
+            } else if (c == '?') {
+                pos++;
+                node = new Repetition(node, 0, 1);
+            } else if (c == '{') {
+                pos++;
+                int min = parseNumber();
+                int max = min;
+                if (pos < regex.length() && regex.charAt(pos) == ',') {
+                    pos++;
+                    max = pos < regex.length() && regex.charAt(pos) == '}' ? -1 : parseNumber();
+                }
+                expect('}');
+                if (max != -1 && max < min) {
+                    throw error("Illegal repetition range");
+                }
+                node = new Repetition(node, min, max);
+            } else {
+                break;
+            }
+            if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+                throw error("Lazy and possessive quantifiers are not supported");
+            }
+        }
+        return node;
+    }
+
+    private int parseNumber() {
+        int start = pos;
+        while (pos < regex.length() && Character.isDigit(regex.charAt(pos))) {
+            pos++;
+        }
+        if (start == pos) {
+            throw error("Number expected");
+        }
+        return Integer.parseInt(regex.substring(start, pos));
+    }
+
+    private Node parseAtom(final int depth) {
+        char c = regex.charAt(pos++);
+        switch (c) {
+            case '(':
+                if (regex.startsWith("?:", pos)) {
+                    pos += 2;
+                } else if (pos < regex.length() && regex.charAt(pos) == '?') {
+                    throw error("Unsupported group construct");
+                }
+                Node group = parseAlternation(depth + 1);
+                expect(')');
+                return group;
+            case '[':
+                return new CharSet(parseClass());
+            case '.':
+                return new CharSet(complement(LINE_TERMINATORS));
+            case '\\':
+                return new CharSet(parseEscape());
+            case '^':
+            case '$':
+                throw error("Anchors are not supported");
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                throw error("Dangling meta character '" + c + "'");
+            default:
+                return new CharSet(new int[]{c, c});
+        }
+    }
+
+    private int[] parseClass() {
+        boolean negated = false;
+        if (pos < regex.length() && regex.charAt(pos) == '^') {
+            negated = true;
+            pos++;
+        }
+        int[] set = new int[0];
+        boolean first = true;
+        while (true) {
+            if (pos >= regex.length()) {
+                throw error("Unclosed character class");
+            }
+            char c = regex.charAt(pos);
+            if (c == ']' && !first) {
+                pos++;
+                break;
+            }
+            if (c == '[' || regex.startsWith("&&", pos)) {
+                throw error("Nested character classes are not supported");
+            }
+            first = false;
+            pos++;
+            int[] item;
+            if (c == '\\') {
+                item = parseEscape();
+            } else {
+                item = new int[]{c, c};
+            }
+            boolean range = pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']';
+            if (range && isSingleChar(item)) {
+                pos++;
+                char next = regex.charAt(pos++);
+                int[] upper = next == '\\' ? parseEscape() : new int[]{next, next};
+                if (!isSingleChar(upper) || upper[0] < item[0]) {
+                    throw error("Illegal character range");
+                }
+                item = new int[]{item[0], upper[0]};
+            }
+            set = union(set, item);
+        }
+        return negated ? complement(set) : set;
+    }
+
+    private static boolean isSingleChar(final int[] set) {
+        return set.length == 2 && set[0] == set[1];
+    }
+
+    private int[] parseEscape() {
+        if (pos >= regex.length()) {
+            throw error("Unexpected end of pattern after '\\'");
+        }
+        char c = regex.charAt(pos++);
+        switch (c) {
+            case 'd':
+                return DIGIT.clone();
+            case 'D':
+                return complement(DIGIT);
+            case 'w':
+                return WORD.clone();
+            case 'W':
+                return complement(WORD);
+            case 's':
+                return SPACE.clone();
+            case 'S':
+                return complement(SPACE);
+            case 't':
+                return new int[]{'\t', '\t'};
+            case 'n':
+                return new int[]{'\n', '\n'};
+            case 'r':
+                return new int[]{'\r', '\r'};
+            case 'f':
+                return new int[]{'\f', '\f'};
+            case 'e':
+                return new int[]{'\u001B', '\u001B'};
+            case 'x':
+                return singleChar(parseHex(2));
+            case 'u':
+                return singleChar(parseHex(4));
+            default:
+                if (Character.isLetterOrDigit(c)) {
+                    throw error("Unsupported escape sequence '\\" + c + "'");
+                }
+                return new int[]{c, c};
+        }
+    }
+
+    private static int[] singleChar(final int c) {
+        return new int[]{c, c};
+    }
+
+    private int parseHex(final int digits) {
+        if (pos + digits > regex.length()) {
+            throw error("Illegal hexadecimal escape sequence");
+        }
+        try {
+            int value = Integer.parseInt(regex.substring(pos, pos + digits), 16);
+            pos += digits;
+            return value;
+        } catch (NumberFormatException e) {
+            throw error("Illegal hexadecimal escape sequence");
+        }
+    }
+
+    private void expect(final char c) {
+        if (pos >= regex.length() || regex.charAt(pos) != c) {
+            throw error("'" + c + "' expected");
+        }
+        pos++;
+    }
+
+    private PatternSyntaxException error(final String description) {
+        return new PatternSyntaxException(description, regex, pos);
+    }
+
+    /**
+     * Compute the union of two character sets.
+     *
+     * <p>A character set is a sorted array of disjoint inclusive ranges
+     * [lo0, hi0, lo1, hi1, ...].
+     *
+     * @param a the first set
+     * @param b the second set
+     * @return the union of both sets
+     */
+    static int[] union(final int[] a, final int[] b) {
+        int[] all = new int[a.length + b.length];
+        System.arraycopy(a, 0, all, 0, a.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        // sort the ranges by their lower bound
+        for (int i = 2; i < all.length; i += 2) {
+            int lo = all[i];
+            int hi = all[i + 1];
+            int j = i - 2;
+            while (j >= 0 && all[j] > lo) {
+                all[j + 2] = all[j];
+                all[j + 3] = all[j + 1];
+                j -= 2;
+            }
+            all[j + 2] = lo;
+            all[j + 3] = hi;
+        }
+        int size = 0;
+        for (int i = 0; i < all.length; i += 2) {
+            if (size > 0 && all[i] <= all[size - 1] + 1) {
+                all[size - 1] = Math.max(all[size - 1], all[i + 1]);
+            } else {
+                all[size++] = all[i];
+                all[size++] = all[i + 1];
+            }
+        }
+        int[] result = new int[size];
+        System.arraycopy(all, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Compute the complement of a character set.
+     *
+     * @param set the set
+     * @return all characters that are not in the set
+     */
+    static int[] complement(final int[] set) {
+        List<Integer> ranges = new ArrayList<>();
+        int next = 0;
+        for (int i = 0; i < set.length; i += 2) {
+            if (set[i] > next) {
+                ranges.add(next);
+                ranges.add(set[i] - 1);
+            }
+            next = set[i + 1] + 1;
+        }
+        if (next <= MAX_CHAR) {
+            ranges.add(next);
+            ranges.add(MAX_CHAR);
+        }
+        int[] result = new int[ranges.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ranges.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Check whether a character is contained in a character set.
+     *
+     * @param set the set
+     * @param c   the character
+     * @return true if c is in the set
+     */
+    static boolean contains(final int[] set, final int c) {
+        for (int i = 0; i < set.length && set[i] <= c; i += 2) {
+            if (c <= set[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A parsed token pattern.
+     */
+    static final class Pattern {
+        /**
+         * The regular part of the pattern.
+         */
+        final Node node;
+        /**
+         * The characters checked by a trailing lookahead, or null.
+         */
+        final int[] lookahead;
+        /**
+         * True if the lookahead is negative, i.e. (?!...).
+         */
+        final boolean negativeLookahead;
+
+        Pattern(final Node node, final int[] lookahead, final boolean negativeLookahead) {
+            this.node = node;
+            this.lookahead = lookahead;
+            this.negativeLookahead = negativeLookahead;
+        }
+    }
+
+    /**
+     * A node of the regular expression syntax tree.
+     */
+    abstract static class Node {
+    }
+
+    /**
+     * Matches a single character out of a set.
+     */
+    static final class CharSet extends Node {
+        final int[] ranges;
+
+        CharSet(final int[] ranges) {
+            this.ranges = ranges;
+        }
+    }
+
+    /**
+     * Matches a sequence of nodes.
+     */
+    static final class Concatenation extends Node {
+        final List<Node> nodes;
+
+        Concatenation(final List<Node> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * Matches any one of several nodes.
+     */
+    static final class Alternation extends Node {
+        final List<Node> nodes;
+
+        Alternation(final List<Node> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * Matches a node repeatedly, max is -1 for an unbounded repetition.
+     */
+    static final class Repetition extends Node {
+        final Node node;
+        final int min;
+        final int max;
+
+        Repetition(final Node node, final int min, final int max) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package co.uk.cogitolearning.calculator.math;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * Fast approximations of elementary functions, used by MathPolicy.FAST.
+ *
+ * <p>Every function reduces its argument with a few multiplications and bit operations
+ * and evaluates a fixed polynomial by Horner's rule. There are no lookup tables and,
+ * apart from the range check and the choice of quadrant in sin, cos and tan, no data
+ * dependent branches, so a loop over an array of arguments is straight-line code after
+ * inlining. Arguments outside the reduced range, NaN and infinities go to
+ * java.lang.Math, so special values give the same results. The polynomials are
+ * truncated Taylor series, cut off where the error meets the bounds.
+ *
+ * <p>Relative error bounds, as checked by FastMathTest:
+ * <ul>
+ * <li>sin, cos, tan: 2e-11 for |x| up to 1e6, also close to their zeros</li>
+ * <li>exp: 2e-11 for x between -708 and 709</li>
+ * <li>log, log10, log2: 2e-12 for positive normal x</li>
+ * </ul>
+ * All other arguments give the result of java.lang.Math.
+ */
+@UtilityClass
+public class FastMath {
+    /**
+     * The largest argument of sin, cos and tan that is reduced here. The quotient by
+     * pi/2 is below 2^20, so the products with the first two parts of pi/2 are exact.
+     */
+    private static final double TRIG_LIMIT = 1e6;
+    private static final double TWO_OVER_PI = 0.6366197723675814;
+    // pi/2 split into parts of 33, 33 and 53 bits
+    private static final double PIO2_1 = 1.57079632673412561417e+00;
+    private static final double PIO2_2 = 6.07710050630396597660e-11;
+    private static final double PIO2_3 = 2.02226624879595063154e-21;
+
+    private static final double EXP_MIN = -708;
+    private static final double EXP_MAX = 709;
+    private static final double INV_LN_2 = 1.4426950408889634;
+    // ln 2 split so that k * LN_2_HI is exact for |k| < 2^11
+    private static final double LN_2_HI = 6.93147180369123816490e-01;
+    private static final double LN_2_LO = 1.90821492927058770002e-10;
+
+    private static final double LN_2 = 0.6931471805599453;
+    private static final double INV_LN_10 = 0.4342944819032518;
+    private static final double LOG10_2 = 0.30102999566398120;
+    private static final int EXPONENT_BIAS = 1023;
+    private static final long SIGNIFICAND_MASK = 0x000FFFFFFFFFFFFFL;
+    private static final long SQRT_HALF_BITS = 0x3FE6A09E667F3BCDL;
+    private static final long ONE_BITS = 0x3FF0000000000000L;
+
+    /**
+     * Approximate the sine.
+     *
+     * @param x the argument in radians
+     * @return the sine of x
+     */
+    public static double sin(final double x) {
+        if (!(Math.abs(x) <= TRIG_LIMIT)) {
+            return Math.sin(x);
+        }
+        double k = quadrants(x);
+        double r = reduce(x, k);
+        int quadrant = (int) (long) k & 3;
+        double value = (quadrant & 1) == 0 ? sinPolynomial(r) : cosPolynomial(r);
+        return (quadrant & 2) == 0 ? value : -value;
+    }
+
+    /**
+     * Approximate the cosine.
+     *
+     * @param x the argument in radians
+     * @return the cosine of x
+     */
+    public static double cos(final double x) {
+        if (!(Math.abs(x) <= TRIG_LIMIT)) {
+            return Math.cos(x);
+        }
+        double k = quadrants(x);
+        double r = reduce(x, k);
+        int quadrant = (int) (long) k & 3;
+        double value = (quadrant & 1) == 0 ? cosPolynomial(r) : sinPolynomial(r);
+        return ((quadrant + 1) & 2) == 0 ? value : -value;
+    }
+
+    /**
+     * Approximate the tangent.
+     *
+     * @param x the argument in radians
+     * @return the tangent of x
+     */
+    public static double tan(final double x) {
+        if (!(Math.abs(x) <= TRIG_LIMIT)) {
+            return Math.tan(x);
+        }
+        double k = quadrants(x);
+        double r = reduce(x, k);
+        double sin = sinPolynomial(r);
+        double cos = cosPolynomial(r);
+        return ((int) (long) k & 1) == 0 ? sin / cos : -cos / sin;
+    }
+
+    /**
+     * Round x / (pi/2) to the nearest integer. A result of -0 becomes +0, so that the
+     * reduction keeps the sign of a zero argument.
+     */
+    private static double quadrants(final double x) {
+        return Math.rint(x * TWO_OVER_PI) + 0.0;
+    }
+
+    /**
+     * Subtract k * pi/2 from x in three steps, which keeps the bits that cancel.
+     */
+    private static double reduce(final double x, final double k) {
+        return ((x - k * PIO2_1) - k * PIO2_2) - k * PIO2_3;
+    }
+
+    /**
+     * The Taylor polynomial of sin up to r^11, for |r| up to pi/4.
+     */
+    private static double sinPolynomial(final double r) {
+        double r2 = r * r;
+        // a factor of r keeps the sign of a zero r
+        return r * (1 + r2 * (-1.0 / 6 + r2 * (1.0 / 120 + r2 * (-1.0 / 5040 + r2 * (1.0 / 362880
+                + r2 * (-1.0 / 39916800))))));
+    }
+
+    /**
+     * The Taylor polynomial of cos up to r^12, for |r| up to pi/4.
+     */
+    private static double cosPolynomial(final double r) {
+        double r2 = r * r;
+        return 1 + r2 * (-1.0 / 2 + r2 * (1.0 / 24 + r2 * (-1.0 / 720 + r2 * (1.0 / 40320
+                + r2 * (-1.0 / 3628800 + r2 * (1.0 / 479001600))))));
+    }
+
+    /**
+     * Approximate e raised to a power.
+     *
+     * @param x the exponent
+     * @return e^x
+     */
+    public static double exp(final double x) {
+        if (!(x >= EXP_MIN && x <= EXP_MAX)) {
+            return Math.exp(x);
+        }
+        // x = k ln 2 + r with |r| <= ln 2 / 2, then e^x = 2^k e^r
+        double k = Math.rint(x * INV_LN_2);
+        double r = (x - k * LN_2_HI) - k * LN_2_LO;
+        double p = 1 + r * (1 + r * (1.0 / 2 + r * (1.0 / 6 + r * (1.0 / 24 + r * (1.0 / 120 + r * (1.0 / 720
+                + r * (1.0 / 5040 + r * (1.0 / 40320 + r * (1.0 / 362880)))))))));
+        return p * Double.longBitsToDouble(((long) k + EXPONENT_BIAS) << 52);
+    }
+
+    /**
+     * Approximate the natural logarithm.
+     *
+     * @param x the argument
+     * @return the natural logarithm of x
+     */
+    public static double log(final double x) {
+        if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY)) {
+            return Math.log(x);
+        }
+        long bits = reduceLog(x);
+        return exponent(bits) * LN_2 + logSignificand(bits);
+    }
+
+    /**
+     * Approximate the base 10 logarithm.
+     *
+     * @param x the argument
+     * @return the base 10 logarithm of x
+     */
+    public static double log10(final double x) {
+        if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY)) {
+            return Math.log10(x);
+        }
+        long bits = reduceLog(x);
+        return exponent(bits) * LOG10_2 + logSignificand(bits) * INV_LN_10;
+    }
+
+    /**
+     * Approximate the base 2 logarithm. Powers of two give their exact exponent.
+     *
+     * @param x the argument
+     * @return the base 2 logarithm of x
+     */
+    public static double log2(final double x) {
+        if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY)) {
+            return MathFunctions.log2(x);
+        }
+        long bits = reduceLog(x);
+        return exponent(bits) + logSignificand(bits) * INV_LN_2;
+    }
+
+    /**
+     * Offset the bits of a positive normal x so that the exponent field holds e and
+     * the significand field that of m, where x = 2^e m and m is in [sqrt(1/2), sqrt(2)).
+     */
+    private static long reduceLog(final double x) {
+        return Double.doubleToRawLongBits(x) + (ONE_BITS - SQRT_HALF_BITS);
+    }
+
+    private static int exponent(final long reduced) {
+        return (int) (reduced >> 52) - EXPONENT_BIAS;
+    }
+
+    /**
+     * Compute ln m as 2 atanh(s) with s = (m - 1) / (m + 1), |s| <= 0.172, up to s^13.
+     */
+    private static double logSignificand(final long reduced) {
+        double m = Double.longBitsToDouble((reduced & SIGNIFICAND_MASK) + SQRT_HALF_BITS);
+        double s = (m - 1) / (m + 1);
+        double s2 = s * s;
+        return 2 * s + 2 * s * s2 * (1.0 / 3 + s2 * (1.0 / 5 + s2 * (1.0 / 7 + s2 * (1.0 / 9 + s2 * (1.0 / 11
+                + s2 * (1.0 / 13))))));
+    }
+}
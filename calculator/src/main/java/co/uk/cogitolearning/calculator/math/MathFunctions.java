@@ -0,0 +1,30 @@
+package co.uk.cogitolearning.calculator.math;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * Elementary functions that java.lang.Math does not provide, shared by every
+ * evaluation strategy so that they all give the same results.
+ */
+@UtilityClass
+public class MathFunctions {
+    private static final double LN_2 = Math.log(2);
+    private static final long SIGNIFICAND_MASK = 0x000FFFFFFFFFFFFFL;
+
+    /**
+     * Compute the base 2 logarithm with a single call to Math.log.
+     *
+     * <p>Normal powers of two, which are common arguments, give their exact exponent.
+     *
+     * @param x the argument
+     * @return the base 2 logarithm of x
+     */
+    public static double log2(final double x) {
+        int exponent = Math.getExponent(x);
+        if (x > 0 && exponent >= Double.MIN_EXPONENT && exponent <= Double.MAX_EXPONENT
+                && (Double.doubleToRawLongBits(x) & SIGNIFICAND_MASK) == 0) {
+            return exponent;
+        }
+        return Math.log(x) / LN_2;
+    }
+}
@@ -0,0 +1,17 @@
+package co.uk.cogitolearning.calculator.math;
+
+/**
+ * How the functions of an expression are computed.
+ */
+public enum MathPolicy {
+    /**
+     * Use java.lang.Math, which is accurate to about 1 ulp.
+     */
+    STRICT,
+    /**
+     * Use the polynomial approximations of FastMath for sin, cos, tan, exp, ln, log and
+     * log2, which are faster but less accurate, see FastMath for the error bounds. The
+     * other functions still use java.lang.Math.
+     */
+    FAST
+}
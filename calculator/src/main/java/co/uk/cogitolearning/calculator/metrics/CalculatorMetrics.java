@@ -0,0 +1,204 @@
+package co.uk.cogitolearning.calculator.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts calls, errors, processed items and time of every Phase of a calculation.
+ *
+ * <p>The instrumented code calls start before a phase and stop or fail after it. All
+ * counters are LongAdders, so concurrent calculations do not contend on them. When
+ * metrics are disabled start only reads a volatile flag and stop and fail return
+ * immediately, so the instrumentation costs next to nothing.
+ *
+ * <p>Metrics are disabled by default. They can be enabled with the system property
+ * calculator.metrics=true, with setEnabled, or through JMX: the shared instance is
+ * registered with the platform MBean server when it is first used.
+ */
+public final class CalculatorMetrics implements CalculatorMetricsMXBean {
+    /**
+     * The name the shared instance is registered with.
+     */
+    public static final String OBJECT_NAME = "co.uk.cogitolearning.calculator:type=CalculatorMetrics";
+    /**
+     * Returned by start when metrics are disabled.
+     */
+    public static final long DISABLED = Long.MIN_VALUE;
+
+    private static final CalculatorMetrics INSTANCE = register(new CalculatorMetrics());
+
+    private volatile boolean enabled = Boolean.getBoolean("calculator.metrics");
+
+    private final PhaseMetrics[] phases = new PhaseMetrics[Phase.values().length];
+    private final ConcurrentMap<String, LongAdder> errorsByType = new ConcurrentHashMap<>();
+
+    private CalculatorMetrics() {
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new PhaseMetrics();
+        }
+    }
+
+    private static CalculatorMetrics register(final CalculatorMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            // metrics are still collected, they just cannot be read through JMX
+        }
+        return metrics;
+    }
+
+    /**
+     * Get the shared instance used by the lexer, the parser and the evaluator.
+     *
+     * @return the metrics
+     */
+    public static CalculatorMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Start measuring a phase.
+     *
+     * @return the start time to pass to stop or fail, DISABLED if metrics are disabled
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : DISABLED;
+    }
+
+    /**
+     * Record a successful call.
+     *
+     * @param phase the phase
+     * @param start the value returned by start
+     * @param items the number of items processed, see Phase
+     */
+    public void stop(final Phase phase, final long start, final long items) {
+        if (start != DISABLED) {
+            phases[phase.ordinal()].record(System.nanoTime() - start, items);
+        }
+    }
+
+    /**
+     * Record a call that threw an exception.
+     *
+     * @param phase the phase
+     * @param start the value returned by start
+     * @param error the exception
+     */
+    public void fail(final Phase phase, final long start, final Throwable error) {
+        if (start != DISABLED) {
+            phases[phase.ordinal()].recordError(System.nanoTime() - start);
+            errorsByType.computeIfAbsent(phase + ":" + error.getClass().getName(), type -> new LongAdder())
+                    .increment();
+        }
+    }
+
+    /**
+     * Get a snapshot of the metrics of a phase.
+     *
+     * @param phase the phase
+     * @return the current values
+     */
+    public PhaseStats stats(final Phase phase) {
+        return phases[phase.ordinal()].snapshot();
+    }
+
+    @Override
+    public PhaseStats getTokenize() {
+        return stats(Phase.TOKENIZE);
+    }
+
+    @Override
+    public PhaseStats getParse() {
+        return stats(Phase.PARSE);
+    }
+
+    @Override
+    public PhaseStats getCompile() {
+        return stats(Phase.COMPILE);
+    }
+
+    @Override
+    public PhaseStats getEvaluate() {
+        return stats(Phase.EVALUATE);
+    }
+
+    @Override
+    public long getTokenCount() {
+        return phases[Phase.TOKENIZE.ordinal()].items.sum();
+    }
+
+    @Override
+    public long getNodeCount() {
+        return phases[Phase.PARSE.ordinal()].items.sum();
+    }
+
+    @Override
+    public Map<String, Long> getErrorsByType() {
+        Map<String, Long> counts = new TreeMap<>();
+        errorsByType.forEach((type, count) -> counts.put(type, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public void reset() {
+        for (PhaseMetrics phase : phases) {
+            phase.reset();
+        }
+        errorsByType.clear();
+    }
+
+    /**
+     * The counters of one phase.
+     */
+    private static final class PhaseMetrics {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder items = new LongAdder();
+        private final LongAdder time = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        void record(final long nanos, final long count) {
+            calls.increment();
+            items.add(count);
+            time.add(nanos);
+            latency.record(nanos);
+        }
+
+        void recordError(final long nanos) {
+            calls.increment();
+            errors.increment();
+            time.add(nanos);
+            latency.record(nanos);
+        }
+
+        PhaseStats snapshot() {
+            return new PhaseStats(calls.sum(), errors.sum(), items.sum(), time.sum(), latency.getPercentile(50),
+                    latency.getPercentile(99), latency.getMax());
+        }
+
+        void reset() {
+            calls.reset();
+            errors.reset();
+            items.reset();
+            time.reset();
+            latency.reset();
+        }
+    }
+}
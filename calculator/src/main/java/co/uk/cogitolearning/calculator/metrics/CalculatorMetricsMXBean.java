@@ -0,0 +1,50 @@
+package co.uk.cogitolearning.calculator.metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface of CalculatorMetrics, registered with the platform MBean
+ * server as co.uk.cogitolearning.calculator:type=CalculatorMetrics.
+ */
+public interface CalculatorMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    PhaseStats getTokenize();
+
+    PhaseStats getParse();
+
+    PhaseStats getCompile();
+
+    PhaseStats getEvaluate();
+
+    /**
+     * Get the number of tokens produced by Lexer.tokenize.
+     *
+     * @return the token count
+     */
+    long getTokenCount();
+
+    /**
+     * Get the number of tree nodes created by Parser.parse.
+     *
+     * @return the node count
+     */
+    long getNodeCount();
+
+    /**
+     * Get the number of errors by phase and exception class, keyed like
+     * PARSE:co.uk.cogitolearning.calculator.ParserException. An error in tokenizing
+     * during compile is counted for both phases.
+     *
+     * @return the error counts
+     */
+    Map<String, Long> getErrorsByType();
+
+    /**
+     * Set all counters to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,102 @@
+package co.uk.cogitolearning.calculator.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of durations in nanoseconds with power of two buckets.
+ *
+ * <p>Bucket i counts the durations d with 2^(i-1) &lt;= d &lt; 2^i, bucket 0 counts
+ * durations of 0. Recording is a LongAdder increment, so threads do not contend, and
+ * percentiles are exact to within a factor of two, which is enough to tell a
+ * microsecond from a millisecond.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = Long.SIZE;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Create an empty histogram.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a duration, negative durations count as 0.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(final long nanos) {
+        long duration = Math.max(0, nanos);
+        buckets[BUCKETS - Long.numberOfLeadingZeros(duration)].increment();
+        max.accumulate(duration);
+    }
+
+    /**
+     * Get the number of recorded durations.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Get the longest recorded duration.
+     *
+     * @return the maximum in nanoseconds, 0 if nothing was recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Estimate a percentile of the recorded durations.
+     *
+     * @param percentile the percentile between 0 and 100
+     * @return the upper bound of the bucket containing the percentile, never more than
+     * the maximum, 0 if nothing was recorded
+     */
+    public long getPercentile(final double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        int bucket = 0;
+        while (bucket < BUCKETS - 1) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                break;
+            }
+            bucket++;
+        }
+        // for the last bucket this overflows to Long.MAX_VALUE
+        return Math.min((1L << bucket) - 1, getMax());
+    }
+
+    /**
+     * Remove all recorded durations.
+     */
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        max.reset();
+    }
+}
@@ -0,0 +1,23 @@
+package co.uk.cogitolearning.calculator.metrics;
+
+/**
+ * The phases of a calculation that are measured by CalculatorMetrics.
+ */
+public enum Phase {
+    /**
+     * Lexer.tokenize, the items are tokens.
+     */
+    TOKENIZE,
+    /**
+     * Parser.parse, the items are tree nodes.
+     */
+    PARSE,
+    /**
+     * Calculator.compile including tokenizing and parsing, the items are program instructions.
+     */
+    COMPILE,
+    /**
+     * The evaluation methods of CompiledExpression, the items are evaluated rows.
+     */
+    EVALUATE
+}
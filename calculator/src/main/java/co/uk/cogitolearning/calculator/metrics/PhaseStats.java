@@ -0,0 +1,57 @@
+package co.uk.cogitolearning.calculator.metrics;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of the metrics of one Phase, published as composite data by the MBean.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public final class PhaseStats {
+    /**
+     * The number of completed and failed calls.
+     */
+    private final long calls;
+    /**
+     * The number of calls that threw an exception.
+     */
+    private final long errors;
+    /**
+     * The number of items processed by successful calls, see Phase.
+     */
+    private final long items;
+    /**
+     * The total time of all calls in nanoseconds.
+     */
+    private final long totalTimeNanos;
+    /**
+     * The estimated median time of a call in nanoseconds.
+     */
+    private final long medianTimeNanos;
+    /**
+     * The estimated 99th percentile of the time of a call in nanoseconds.
+     */
+    private final long p99TimeNanos;
+    /**
+     * The longest call in nanoseconds.
+     */
+    private final long maxTimeNanos;
+
+    @ConstructorProperties({"calls", "errors", "items", "totalTimeNanos", "medianTimeNanos", "p99TimeNanos",
+            "maxTimeNanos"})
+    public PhaseStats(final long calls, final long errors, final long items, final long totalTimeNanos,
+                      final long medianTimeNanos, final long p99TimeNanos, final long maxTimeNanos) {
+        this.calls = calls;
+        this.errors = errors;
+        this.items = items;
+        this.totalTimeNanos = totalTimeNanos;
+        this.medianTimeNanos = medianTimeNanos;
+        this.p99TimeNanos = p99TimeNanos;
+        this.maxTimeNanos = maxTimeNanos;
+    }
+}
@@ -0,0 +1,36 @@
+package co.uk.cogitolearning.calculator.optimizer;
+
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * The result of a Simplifier run.
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public final class Simplification {
+    /**
+     * The simplified tree.
+     */
+    private final ExpressionNode tree;
+    /**
+     * The number of nodes of the original tree.
+     */
+    private final int nodesBefore;
+    /**
+     * The number of nodes of the simplified tree.
+     */
+    private final int nodesAfter;
+
+    /**
+     * Get the number of nodes the simplification removed.
+     *
+     * @return nodesBefore - nodesAfter
+     */
+    public int getRemovedNodes() {
+        return nodesBefore - nodesAfter;
+    }
+}
@@ -0,0 +1,25 @@
+package co.uk.cogitolearning.calculator.optimizer;
+
+/**
+ * How aggressively Simplifier rewrites an expression.
+ */
+public enum SimplificationMode {
+    /**
+     * Do not simplify.
+     */
+    NONE,
+    /**
+     * Only apply rewrites that give bit-identical results for every input, including
+     * NaN, infinities and signed zeros: constant folding and identities such as x*1,
+     * x/1, x-0, x^1 and x^0.
+     */
+    SAFE,
+    /**
+     * Also apply rewrites that are exact in real arithmetic but not in IEEE 754, such
+     * as x*0, x+0, x-x and x/x, and reassociate chains of constant additions and
+     * multiplications. Reduce constant powers to multiplications or sqrt, e^x to
+     * exp(x) and changes of base to a single logarithm. Results may differ in
+     * rounding and for NaN, infinite or negative zero inputs.
+     */
+    FAST
+}
@@ -0,0 +1,460 @@
+package co.uk.cogitolearning.calculator.optimizer;
+
+import co.uk.cogitolearning.calculator.program.Program;
+import co.uk.cogitolearning.calculator.program.ProgramCompiler;
+import co.uk.cogitolearning.calculator.tree.AdditionNode;
+import co.uk.cogitolearning.calculator.tree.ConstantNode;
+import co.uk.cogitolearning.calculator.tree.DivNode;
+import co.uk.cogitolearning.calculator.tree.ExponentiationNode;
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import co.uk.cogitolearning.calculator.tree.ExpressionNodeIterator;
+import co.uk.cogitolearning.calculator.tree.ExpressionNodeVisitor;
+import co.uk.cogitolearning.calculator.tree.FunctionNode;
+import co.uk.cogitolearning.calculator.tree.MultiplicationNode;
+import co.uk.cogitolearning.calculator.tree.SubtractionNode;
+import co.uk.cogitolearning.calculator.tree.VariableNode;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Simplifies an expression tree with algebraic rewrite rules.
+ *
+ * <p>The tree is visited in post-order, so every node sees its children already
+ * simplified. The simplified children are kept on an explicit stack instead of being
+ * returned by recursive calls, so deeply nested trees do not overflow the call stack.
+ * Unchanged subtrees are reused, not copied.
+ *
+ * <p>Constant subtrees are folded by running them through the Program interpreter,
+ * so folding never changes a result. Which other rules are applied depends on the
+ * SimplificationMode.
+ *
+ * <p>In FAST mode costly operations are also reduced to cheaper ones: constant integer
+ * powers of small subexpressions become chains of multiplications by repeated
+ * squaring, so x^5 is (x*x)*(x*x)*x with x*x computed once, x^0.5 becomes sqrt(x),
+ * e^x becomes exp(x) and a logarithm divided by the logarithm of 2 or 10 becomes
+ * log2 or log.
+ *
+ * <p>The grammar has no constant e, a name like e is an ordinary variable whose value
+ * the simplifier does not know. The e^x rule therefore only applies when the base is
+ * the number 2.718281828459045 itself, written out or folded from a constant subtree,
+ * and e^x with a variable e is left as a power.
+ */
+public final class Simplifier implements ExpressionNodeVisitor<ExpressionNode> {
+    /**
+     * The largest absolute integer exponent that is reduced to multiplications. The
+     * rounding error of a chain grows with the exponent, about n/2 ulp for x^n.
+     */
+    private static final int MAX_REDUCED_EXPONENT = 16;
+    /**
+     * The largest base, in tree nodes counting shared nodes once per parent, whose integer
+     * powers are reduced. A reduced power uses its base several times, so without a limit
+     * nested powers like ((x^16)^16)^16 would grow exponentially when the DAG is walked
+     * as a tree.
+     */
+    private static final int MAX_REDUCED_BASE_SIZE = 64;
+
+    private final SimplificationMode mode;
+    private ExpressionNode[] results = new ExpressionNode[16];
+    private int size;
+
+    private Simplifier(final SimplificationMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Simplify an expression tree.
+     *
+     * @param tree the root of the tree, it is not modified
+     * @param mode the rules to apply
+     * @return the simplified tree and the number of removed nodes
+     */
+    public static Simplification simplify(final ExpressionNode tree, final SimplificationMode mode) {
+        Simplifier simplifier = new Simplifier(mode);
+        int nodesBefore = 0;
+        ExpressionNodeIterator nodes = ExpressionNodeIterator.postOrder(tree);
+        while (nodes.hasNext()) {
+            ExpressionNode node = nodes.next();
+            nodesBefore++;
+            if (mode == SimplificationMode.NONE) {
+                continue;
+            }
+            node.accept(simplifier);
+        }
+        if (mode == SimplificationMode.NONE) {
+            return new Simplification(tree, nodesBefore, nodesBefore);
+        }
+        ExpressionNode simplified = simplifier.results[0];
+        // reduced powers share their factors, count every node once
+        Set<ExpressionNode> nodesAfter = Collections.newSetFromMap(new IdentityHashMap<>());
+        ExpressionNodeIterator it = ExpressionNodeIterator.preOrder(simplified, nodesAfter::add);
+        while (it.hasNext()) {
+            it.next();
+        }
+        return new Simplification(simplified, nodesBefore, nodesAfter.size());
+    }
+
+    private ExpressionNode push(final ExpressionNode node) {
+        if (size == results.length) {
+            results = Arrays.copyOf(results, size * 2);
+        }
+        results[size++] = node;
+        return node;
+    }
+
+    private ExpressionNode pop() {
+        ExpressionNode node = results[--size];
+        results[size] = null;
+        return node;
+    }
+
+    private boolean fast() {
+        return mode == SimplificationMode.FAST;
+    }
+
+    /**
+     * Compare two trees node by node in pre-order. Unlike equals of the node classes
+     * this does not recurse, and it stops at the first node that differs.
+     */
+    private static boolean sameTree(final ExpressionNode left, final ExpressionNode right) {
+        if (left == right) {
+            return true;
+        }
+        ExpressionNodeIterator leftNodes = ExpressionNodeIterator.preOrder(left);
+        ExpressionNodeIterator rightNodes = ExpressionNodeIterator.preOrder(right);
+        while (leftNodes.hasNext() && rightNodes.hasNext()) {
+            if (!sameNode(leftNodes.next(), rightNodes.next())) {
+                return false;
+            }
+        }
+        return !leftNodes.hasNext() && !rightNodes.hasNext();
+    }
+
+    /**
+     * Compare two nodes without their children. Two pre-order sequences of equal nodes
+     * describe the same tree, because the type of a node fixes its number of children.
+     */
+    private static boolean sameNode(final ExpressionNode left, final ExpressionNode right) {
+        if (left.getClass() != right.getClass()) {
+            return false;
+        }
+        if (left instanceof ConstantNode) {
+            return Double.compare(((ConstantNode) left).getValue(), ((ConstantNode) right).getValue()) == 0;
+        }
+        if (left instanceof VariableNode) {
+            return ((VariableNode) left).getName().equals(((VariableNode) right).getName());
+        }
+        if (left instanceof FunctionNode) {
+            return ((FunctionNode) left).getFunction() == ((FunctionNode) right).getFunction();
+        }
+        return true;
+    }
+
+    private static boolean isConstant(final ExpressionNode node) {
+        return node instanceof ConstantNode;
+    }
+
+    private static double valueOf(final ExpressionNode node) {
+        return ((ConstantNode) node).getValue();
+    }
+
+    /**
+     * Check for a constant with exactly the given bits, so that 0.0 and -0.0 differ.
+     */
+    private static boolean isExactly(final ExpressionNode node, final double value) {
+        return isConstant(node) && Double.doubleToRawLongBits(valueOf(node)) == Double.doubleToRawLongBits(value);
+    }
+
+    /**
+     * Check for a constant 0.0 or -0.0.
+     */
+    private static boolean isZero(final ExpressionNode node) {
+        return isConstant(node) && valueOf(node) == 0;
+    }
+
+    /**
+     * Evaluate a node with constant children like the interpreter would.
+     */
+    private static ConstantNode fold(final ExpressionNode node) {
+        Program program = ProgramCompiler.compile(node);
+        return new ConstantNode(program.evaluate(new double[0], program.newStack()));
+    }
+
+    @Override
+    public ExpressionNode visit(final VariableNode node) {
+        return push(node);
+    }
+
+    @Override
+    public ExpressionNode visit(final ConstantNode node) {
+        return push(node);
+    }
+
+    @Override
+    public ExpressionNode visit(final FunctionNode node) {
+        ExpressionNode argument = pop();
+        if (isConstant(argument)) {
+            return push(fold(new FunctionNode(node.getFunction(), argument)));
+        }
+        return push(argument == node.getArgument() ? node : new FunctionNode(node.getFunction(), argument));
+    }
+
+    @Override
+    public ExpressionNode visit(final AdditionNode node) {
+        ExpressionNode right = pop();
+        ExpressionNode left = pop();
+        ExpressionNode result = addition(left, right);
+        return push(result == null ? rebuild(node, left, right) : result);
+    }
+
+    private ExpressionNode addition(final ExpressionNode left, final ExpressionNode right) {
+        if (isConstant(left) && isConstant(right)) {
+            return fold(new AdditionNode(left, right));
+        }
+        // x + -0 is x for every x, x + 0 is not for x = -0
+        if (isExactly(right, -0.0)) {
+            return left;
+        }
+        if (isExactly(left, -0.0)) {
+            return right;
+        }
+        if (fast()) {
+            if (isZero(right)) {
+                return left;
+            }
+            if (isZero(left)) {
+                return right;
+            }
+            // move constants to the front of the chain, then c1 + (c2 + x) is (c1 + c2) + x
+            if (isConstant(right)) {
+                return orNew(addition(right, left), right, left, true);
+            }
+            if (right instanceof AdditionNode && isConstant(((AdditionNode) right).getAddendLeft())) {
+                AdditionNode chain = (AdditionNode) right;
+                if (isConstant(left)) {
+                    ExpressionNode sum = fold(new AdditionNode(left, chain.getAddendLeft()));
+                    return orNew(addition(sum, chain.getAddendRight()), sum, chain.getAddendRight(), true);
+                }
+                // x + (c + y) is c + (x + y)
+                return new AdditionNode(chain.getAddendLeft(), new AdditionNode(left, chain.getAddendRight()));
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public ExpressionNode visit(final SubtractionNode node) {
+        ExpressionNode right = pop();
+        ExpressionNode left = pop();
+        if (isConstant(left) && isConstant(right)) {
+            return push(fold(new SubtractionNode(left, right)));
+        }
+        // x - 0 is x for every x, x - -0 is not for x = -0
+        if (isExactly(right, 0.0) || (fast() && isZero(right))) {
+            return push(left);
+        }
+        if (fast() && sameTree(left, right)) {
+            return push(new ConstantNode(0));
+        }
+        return push(rebuild(node, left, right));
+    }
+
+    @Override
+    public ExpressionNode visit(final MultiplicationNode node) {
+        ExpressionNode right = pop();
+        ExpressionNode left = pop();
+        ExpressionNode result = multiplication(left, right);
+        return push(result == null ? rebuild(node, left, right) : result);
+    }
+
+    private ExpressionNode multiplication(final ExpressionNode left, final ExpressionNode right) {
+        if (isConstant(left) && isConstant(right)) {
+            return fold(new MultiplicationNode(left, right));
+        }
+        if (isExactly(right, 1.0)) {
+            return left;
+        }
+        if (isExactly(left, 1.0)) {
+            return right;
+        }
+        if (fast()) {
+            if (isZero(left) || isZero(right)) {
+                return new ConstantNode(0);
+            }
+            // move constants to the front of the chain, then c1 * (c2 * x) is (c1 * c2) * x
+            if (isConstant(right)) {
+                return orNew(multiplication(right, left), right, left, false);
+            }
+            if (right instanceof MultiplicationNode && isConstant(((MultiplicationNode) right).getMultiplicand())) {
+                MultiplicationNode chain = (MultiplicationNode) right;
+                if (isConstant(left)) {
+                    ExpressionNode product = fold(new MultiplicationNode(left, chain.getMultiplicand()));
+                    return orNew(multiplication(product, chain.getMultiplier()), product, chain.getMultiplier(),
+                            false);
+                }
+                // x * (c * y) is c * (x * y)
+                return new MultiplicationNode(chain.getMultiplicand(),
+                        new MultiplicationNode(left, chain.getMultiplier()));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the result of a nested rewrite, or a new node if the nested rewrite did not apply.
+     */
+    private static ExpressionNode orNew(final ExpressionNode result, final ExpressionNode left,
+                                        final ExpressionNode right, final boolean addition) {
+        if (result != null) {
+            return result;
+        }
+        return addition ? new AdditionNode(left, right) : new MultiplicationNode(left, right);
+    }
+
+    @Override
+    public ExpressionNode visit(final DivNode node) {
+        ExpressionNode right = pop();
+        ExpressionNode left = pop();
+        if (isConstant(left) && isConstant(right)) {
+            return push(fold(new DivNode(left, right)));
+        }
+        if (isExactly(right, 1.0)) {
+            return push(left);
+        }
+        if (fast() && sameTree(left, right)) {
+            return push(new ConstantNode(1));
+        }
+        if (fast() && isZero(left)) {
+            return push(new ConstantNode(0));
+        }
+        if (fast() && left instanceof FunctionNode && isConstant(right)) {
+            ExpressionNode logarithm = changeOfBase((FunctionNode) left, valueOf(right));
+            if (logarithm != null) {
+                return push(logarithm);
+            }
+        }
+        return push(rebuild(node, left, right));
+    }
+
+    @Override
+    public ExpressionNode visit(final ExponentiationNode node) {
+        ExpressionNode right = pop();
+        ExpressionNode left = pop();
+        if (isConstant(left) && isConstant(right)) {
+            return push(fold(new ExponentiationNode(left, right)));
+        }
+        // Math.pow(x, 1) is x and Math.pow(x, 0) is 1 for every x, even NaN
+        if (isExactly(right, 1.0)) {
+            return push(left);
+        }
+        if (isZero(right)) {
+            return push(new ConstantNode(1));
+        }
+        if (fast() && isExactly(left, 1.0)) {
+            return push(new ConstantNode(1));
+        }
+        if (fast()) {
+            ExpressionNode reduced = reducePower(left, right);
+            if (reduced != null) {
+                return push(reduced);
+            }
+        }
+        return push(rebuild(node, left, right));
+    }
+
+    /**
+     * Replace a power by cheaper operations, or return null if there is no cheaper form.
+     */
+    private static ExpressionNode reducePower(final ExpressionNode base, final ExpressionNode exponent) {
+        // only a constant base equal to Math.E, a variable named e is unknown here
+        if (isExactly(base, Math.E)) {
+            return new FunctionNode(FunctionNode.EXP, exponent);
+        }
+        if (!isConstant(exponent)) {
+            return null;
+        }
+        double value = valueOf(exponent);
+        if (value == 0.5) {
+            return new FunctionNode(FunctionNode.SQRT, base);
+        }
+        if (value == -0.5) {
+            return new DivNode(new ConstantNode(1), new FunctionNode(FunctionNode.SQRT, base));
+        }
+        if (value != Math.rint(value) || Math.abs(value) > MAX_REDUCED_EXPONENT
+                || Math.abs(value) > 1 && treeSize(base, MAX_REDUCED_BASE_SIZE) > MAX_REDUCED_BASE_SIZE) {
+            return null;
+        }
+        int n = (int) Math.abs(value);
+        ExpressionNode power = null;
+        ExpressionNode square = base;
+        while (true) {
+            if ((n & 1) != 0) {
+                power = power == null ? square : new MultiplicationNode(power, square);
+            }
+            n >>= 1;
+            if (n == 0) {
+                break;
+            }
+            // the same node is both factors, the compiler computes it once
+            square = new MultiplicationNode(square, square);
+        }
+        return value < 0 ? new DivNode(new ConstantNode(1), power) : power;
+    }
+
+    /**
+     * Count the nodes of a tree, a shared node once per parent, but stop after limit + 1.
+     */
+    private static int treeSize(final ExpressionNode tree, final int limit) {
+        int count = 0;
+        ExpressionNodeIterator nodes = ExpressionNodeIterator.preOrder(tree);
+        while (nodes.hasNext() && count <= limit) {
+            nodes.next();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Replace ln(x)/ln(2), ln(x)/ln(10) and log(x)/log(2) by a single logarithm, or
+     * return null if the divisor does not match the logarithm.
+     */
+    private static ExpressionNode changeOfBase(final FunctionNode logarithm, final double divisor) {
+        if (logarithm.getFunction() == FunctionNode.LN && divisor == Math.log(2)
+                || logarithm.getFunction() == FunctionNode.LOG && divisor == Math.log10(2)) {
+            return new FunctionNode(FunctionNode.LOG2, logarithm.getArgument());
+        }
+        if (logarithm.getFunction() == FunctionNode.LN && divisor == Math.log(10)) {
+            return new FunctionNode(FunctionNode.LOG, logarithm.getArgument());
+        }
+        return null;
+    }
+
+    /**
+     * Reuse a binary node if its children did not change.
+     */
+    private static ExpressionNode rebuild(final ExpressionNode node, final ExpressionNode left,
+                                          final ExpressionNode right) {
+        if (node instanceof AdditionNode) {
+            AdditionNode addition = (AdditionNode) node;
+            return left == addition.getAddendLeft() && right == addition.getAddendRight()
+                    ? node : new AdditionNode(left, right);
+        } else if (node instanceof SubtractionNode) {
+            SubtractionNode subtraction = (SubtractionNode) node;
+            return left == subtraction.getMinuend() && right == subtraction.getSubtrahend()
+                    ? node : new SubtractionNode(left, right);
+        } else if (node instanceof MultiplicationNode) {
+            MultiplicationNode multiplication = (MultiplicationNode) node;
+            return left == multiplication.getMultiplicand() && right == multiplication.getMultiplier()
+                    ? node : new MultiplicationNode(left, right);
+        } else if (node instanceof DivNode) {
+            DivNode division = (DivNode) node;
+            return left == division.getNumerator() && right == division.getDenominator()
+                    ? node : new DivNode(left, right);
+        }
+        ExponentiationNode exponentiation = (ExponentiationNode) node;
+        return left == exponentiation.getBase() && right == exponentiation.getExponent()
+                ? node : new ExponentiationNode(left, right);
+    }
+}
@@ -2,109 +2,244 @@ package co.uk.cogitolearning.calculator.parser;
 
 import co.uk.cogitolearning.calculator.ParserException;
 import co.uk.cogitolearning.calculator.lexer.Token;
-import co.uk.cogitolearning.calculator.tree.AdditionNode;
-import co.uk.cogitolearning.calculator.tree.ConstantNode;
-import co.uk.cogitolearning.calculator.tree.DivNode;
-import co.uk.cogitolearning.calculator.tree.ExponentiationNode;
+import co.uk.cogitolearning.calculator.metrics.CalculatorMetrics;
+import co.uk.cogitolearning.calculator.metrics.Phase;
 import co.uk.cogitolearning.calculator.tree.ExpressionNode;
 import co.uk.cogitolearning.calculator.tree.FunctionNode;
-import co.uk.cogitolearning.calculator.tree.MultiplicationNode;
-import co.uk.cogitolearning.calculator.tree.SubtractionNode;
-import co.uk.cogitolearning.calculator.tree.VariableNode;
+import co.uk.cogitolearning.calculator.tree.NodeFactory;
 import lombok.experimental.UtilityClass;
 
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Stack;
 
+/**
+ * An iterative operator precedence parser that turns a list of tokens into an
+ * ExpressionNode tree.
+ *
+ * <p>The tokens are read once from left to right. Operands and pending operators are
+ * kept on two explicit stacks, so parsing takes linear time and does not recurse,
+ * however deeply the expression is nested.
+ *
+ * <p>The grammar uses the usual precedence: ^ binds tighter than * and /, which bind
+ * tighter than + and -. The operators - and / are left associative, ^ is right
+ * associative. Addition and multiplication are associative, they are grouped to
+ * the right. A function applies to the single value or bracketed expression that
+ * follows it, so sin(x)^2 is (sin(x))^2.
+ */
 @UtilityClass
 public class Parser {
+    /**
+     * Operator stack marker for an opening bracket.
+     */
+    private static final int BRACKET_MARKER = -1;
+    /**
+     * Operator stack entries below this value are function markers, the function id
+     * is stored as FUNCTION_MARKER - id.
+     */
+    private static final int FUNCTION_MARKER = -2;
+
+    private static final CalculatorMetrics METRICS = CalculatorMetrics.getInstance();
 
     public static ExpressionNode parse(final List<Token> tokens) {
-        //TODO: Replace recursion with iteration
-        Stack<ExpressionNode> nodes = new Stack<>();
-
-        while (!tokens.isEmpty()) {
-            Token token = tokens.remove(0);
-            switch (token.getTokenId()) {
-                case Token.NUMBER:
-                    nodes.push(new ConstantNode(Double.parseDouble(token.getSequence())));
-                    break;
-                case Token.PLUS:
-                    ExpressionNode left = nodes.pop();
-                    ExpressionNode right = parse(tokens);
-                    nodes.push(new AdditionNode(left, right));
-                    break;
-                case Token.MINUS:
-                    left = nodes.pop();
-                    right = lookaheadMinus(tokens);
-                    nodes.push(new SubtractionNode(left, right));
-                    break;
-                case Token.MULT:
-                    left = nodes.pop();
-                    right = parse(tokens);
-                    nodes.push(new MultiplicationNode(left, right));
-                    break;
-                case Token.OPEN_BRACKET:
-                    nodes.push(parse(tokensInBracket(tokens)));
-                    break;
-                case Token.CLOSE_BRACKET:
-                    break;
+        return parse(tokens, NodeFactory.DEFAULT);
+    }
 
-                case Token.FUNCTION:
-                    int function = FunctionNode.stringToFunction(token.getSequence());
-                    nodes.push(new FunctionNode(function, parse(tokens)));
-                    break;
-                case Token.DIV:
-                    left = nodes.pop();
-                    right = parse(tokens);
-                    nodes.push(new DivNode(left, right));
-                    break;
-                case Token.RAISED:
-                    ExpressionNode expr = nodes.pop();
-                    ExpressionNode exponent = parse(tokens);
-                    nodes.push(new ExponentiationNode(expr, exponent));
-                    break;
-                case Token.VARIABLE:
-                    nodes.push(new VariableNode(token.getSequence()));
-                    break;
-                default:
-                    throw new UnsupportedOperationException("Not supported: " + token.getTokenId());
+    /**
+     * Parse a list of tokens, creating the nodes with a factory.
+     *
+     * @param tokens  the tokens of the expression
+     * @param factory creates the nodes of the tree
+     * @return the root of the tree
+     */
+    public static ExpressionNode parse(final List<Token> tokens, final NodeFactory factory) {
+        long start = METRICS.start();
+        try {
+            Stacks stacks = new Stacks(factory);
+            ExpressionNode tree = parse(tokens, stacks);
+            METRICS.stop(Phase.PARSE, start, stacks.nodeCount);
+            return tree;
+        } catch (RuntimeException e) {
+            METRICS.fail(Phase.PARSE, start, e);
+            throw e;
+        }
+    }
+
+    private static ExpressionNode parse(final List<Token> tokens, final Stacks stacks) {
+        NodeFactory factory = stacks.factory;
+        boolean expectOperand = true;
+
+        for (Token token : tokens) {
+            int id = token.getTokenId();
+            if (expectOperand) {
+                switch (id) {
+                    case Token.NUMBER:
+                        stacks.pushOperand(factory.constant(Double.parseDouble(token.getSequence())));
+                        expectOperand = false;
+                        break;
+                    case Token.VARIABLE:
+                        stacks.pushOperand(factory.variable(token.getSequence()));
+                        expectOperand = false;
+                        break;
+                    case Token.FUNCTION:
+                        stacks.pushOperator(FUNCTION_MARKER - FunctionNode.stringToFunction(token.getSequence()));
+                        break;
+                    case Token.OPEN_BRACKET:
+                        stacks.pushOperator(BRACKET_MARKER);
+                        break;
+                    default:
+                        throw new ParserException("Unexpected symbol %s found", token);
+                }
+            } else {
+                switch (id) {
+                    case Token.PLUS:
+                    case Token.MINUS:
+                    case Token.MULT:
+                    case Token.DIV:
+                    case Token.RAISED:
+                        while (stacks.operatorCount > 0 && reducesBefore(stacks.topOperator(), id)) {
+                            stacks.reduce();
+                        }
+                        stacks.pushOperator(id);
+                        expectOperand = true;
+                        break;
+                    case Token.CLOSE_BRACKET:
+                        while (stacks.operatorCount > 0 && stacks.topOperator() != BRACKET_MARKER) {
+                            stacks.reduce();
+                        }
+                        if (stacks.operatorCount == 0) {
+                            throw new ParserException("Unexpected symbol %s found", token);
+                        }
+                        stacks.operatorCount--;
+                        stacks.applyFunctions();
+                        break;
+                    default:
+                        throw new ParserException("Unexpected symbol %s found", token);
+                }
+            }
+        }
+
+        if (expectOperand) {
+            throw new ParserException("Unexpected end of input");
+        }
+        while (stacks.operatorCount > 0) {
+            if (stacks.topOperator() == BRACKET_MARKER) {
+                throw new ParserException("Closing bracket is missing");
             }
+            stacks.reduce();
+        }
+        return stacks.operands[0];
+    }
 
+    private static int precedence(final int operator) {
+        switch (operator) {
+            case Token.PLUS:
+            case Token.MINUS:
+                return 1;
+            case Token.MULT:
+            case Token.DIV:
+                return 2;
+            case Token.RAISED:
+                return 3;
+            default:
+                return 0;
         }
-        return nodes.pop();
     }
 
-    private static ExpressionNode lookaheadMinus(final List<Token> tokens) {
-        assert !tokens.isEmpty();
+    private static boolean isLeftAssociative(final int operator) {
+        return operator == Token.MINUS || operator == Token.DIV;
+    }
 
-        if (tokens.get(0).getTokenId() == Token.NUMBER) {
-            return parse(new LinkedList<>(Collections.singletonList(tokens.remove(0))));
-        }
-        return parse(tokens);
+    /**
+     * Decide whether a pending operator has to be applied before the next operator is pushed.
+     *
+     * @param pending the operator on top of the stack
+     * @param next    the operator that was just read
+     * @return true if the pending operator takes the operand between the two
+     */
+    private static boolean reducesBefore(final int pending, final int next) {
+        int pendingPrecedence = precedence(pending);
+        int nextPrecedence = precedence(next);
+        return pendingPrecedence > nextPrecedence
+                || (pendingPrecedence == nextPrecedence && isLeftAssociative(pending));
     }
 
-    private static List<Token> tokensInBracket(final List<Token> tokens) {
-        int brackets = 0;
-        List<Token> internals = new LinkedList<>();
-        while (!tokens.isEmpty()) {
-            Token token = tokens.remove(0);
-            if (token.getTokenId() == Token.CLOSE_BRACKET && brackets == 0) {
-                return internals;
+    /**
+     * The operand and operator stacks of a single parse call.
+     */
+    private static final class Stacks {
+        private final NodeFactory factory;
+        private ExpressionNode[] operands = new ExpressionNode[16];
+        private int operandCount;
+        private int[] operators = new int[16];
+        private int operatorCount;
+        /**
+         * The number of nodes created, for the metrics.
+         */
+        private int nodeCount;
+
+        Stacks(final NodeFactory factory) {
+            this.factory = factory;
+        }
+
+        int topOperator() {
+            return operators[operatorCount - 1];
+        }
+
+        void pushOperator(final int operator) {
+            if (operatorCount == operators.length) {
+                operators = Arrays.copyOf(operators, operatorCount * 2);
             }
+            operators[operatorCount++] = operator;
+        }
 
-            if (token.getTokenId() == Token.CLOSE_BRACKET && brackets > 0) {
-                brackets--;
+        /**
+         * Push a complete operand and apply the functions waiting for their argument.
+         */
+        void pushOperand(final ExpressionNode operand) {
+            if (operandCount == operands.length) {
+                operands = Arrays.copyOf(operands, operandCount * 2);
             }
+            operands[operandCount++] = operand;
+            nodeCount++;
+            applyFunctions();
+        }
 
-            if (token.getTokenId() == Token.OPEN_BRACKET) {
-                brackets++;
+        void applyFunctions() {
+            while (operatorCount > 0 && topOperator() <= FUNCTION_MARKER) {
+                int function = FUNCTION_MARKER - operators[--operatorCount];
+                operands[operandCount - 1] = factory.function(function, operands[operandCount - 1]);
+                nodeCount++;
             }
+        }
 
-            internals.add(token);
+        /**
+         * Apply the binary operator on top of the stack to the two topmost operands.
+         */
+        void reduce() {
+            int operator = operators[--operatorCount];
+            ExpressionNode left = operands[operandCount - 2];
+            ExpressionNode right = operands[--operandCount];
+            operands[operandCount] = null;
+            nodeCount++;
+            switch (operator) {
+                case Token.PLUS:
+                    operands[operandCount - 1] = factory.addition(left, right);
+                    break;
+                case Token.MINUS:
+                    operands[operandCount - 1] = factory.subtraction(left, right);
+                    break;
+                case Token.MULT:
+                    operands[operandCount - 1] = factory.multiplication(left, right);
+                    break;
+                case Token.DIV:
+                    operands[operandCount - 1] = factory.division(left, right);
+                    break;
+                case Token.RAISED:
+                    operands[operandCount - 1] = factory.exponentiation(left, right);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Not supported: " + operator);
+            }
         }
-        throw new ParserException("Closing bracket is missing");
     }
 }
@@ -0,0 +1,73 @@
+package co.uk.cogitolearning.calculator.program;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates a range of rows of a batch in a ForkJoinPool.
+ *
+ * <p>A task splits its range in halves at block boundaries for as long as it is
+ * larger than the split threshold and the other workers do not have enough queued
+ * work to steal, so the chunk size adapts to how busy the pool is. Every task writes
+ * only its own rows of the output, so the result does not depend on the schedule.
+ */
+final class BatchTask extends RecursiveAction {
+    private static final long serialVersionUID = 6150833307471425872L;
+
+    /**
+     * Keep splitting while the current worker has at most this many surplus tasks queued.
+     */
+    private static final int SURPLUS_QUEUED_TASKS = 3;
+
+    private final Program program;
+    private final double[][] columns;
+    private final double[] out;
+    private final ThreadLocal<double[][]> stacks;
+    private final int threshold;
+    private final int from;
+    private final int to;
+    /**
+     * The next older task forked by the same parent, used to join them in reverse order.
+     */
+    private BatchTask nextForked;
+
+    BatchTask(final Program program, final double[][] columns, final double[] out,
+              final ThreadLocal<double[][]> stacks, final int threshold, final int from, final int to) {
+        this.program = program;
+        this.columns = columns;
+        this.out = out;
+        this.stacks = stacks;
+        this.threshold = threshold;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        int start = from;
+        int end = to;
+        BatchTask forked = null;
+        while (end - start > threshold && getSurplusQueuedTaskCount() <= SURPLUS_QUEUED_TASKS) {
+            int middle = start + blockAligned((end - start) / 2);
+            BatchTask right = new BatchTask(program, columns, out, stacks, threshold, middle, end);
+            right.nextForked = forked;
+            forked = right;
+            right.fork();
+            end = middle;
+        }
+        program.evaluateBatch(columns, start, end, out, stacks.get());
+        for (; forked != null; forked = forked.nextForked) {
+            if (forked.tryUnfork()) {
+                forked.compute();
+            } else {
+                forked.join();
+            }
+        }
+    }
+
+    /**
+     * Round a row count up to whole blocks.
+     */
+    static int blockAligned(final int rows) {
+        return (rows + Program.BLOCK_SIZE - 1) / Program.BLOCK_SIZE * Program.BLOCK_SIZE;
+    }
+}
@@ -0,0 +1,266 @@
+package co.uk.cogitolearning.calculator.program;
+
+import co.uk.cogitolearning.calculator.math.MathPolicy;
+import co.uk.cogitolearning.calculator.tree.FunctionNode;
+import lombok.experimental.UtilityClass;
+
+/**
+ * The instruction set of a Program.
+ *
+ * <p>Every instruction is one int in the code array. CONST, LOAD, STORE, LOAD_TEMP
+ * and OUTPUT are followed by one operand, an index into the constant pool, the
+ * variable slots, the temporaries or the results. All other instructions take their
+ * arguments from the operand stack and push their result back onto it.
+ */
+@UtilityClass
+public class Opcodes {
+    /**
+     * Push a constant from the constant pool, operand: the constant index.
+     */
+    public static final int CONST = 1;
+    /**
+     * Push the value of a variable, operand: the variable slot.
+     */
+    public static final int LOAD = 2;
+    /**
+     * Pop b and a, push a + b.
+     */
+    public static final int ADD = 3;
+    /**
+     * Pop b and a, push a - b.
+     */
+    public static final int SUB = 4;
+    /**
+     * Pop b and a, push a * b.
+     */
+    public static final int MUL = 5;
+    /**
+     * Pop b and a, push a / b.
+     */
+    public static final int DIV = 6;
+    /**
+     * Pop b and a, push a ^ b.
+     */
+    public static final int POW = 7;
+    /**
+     * Copy the top of the stack into a temporary without popping it, operand: the temporary.
+     * Used to compute a shared subexpression only once.
+     */
+    public static final int STORE = 8;
+    /**
+     * Push the value of a temporary, operand: the temporary.
+     */
+    public static final int LOAD_TEMP = 9;
+    /**
+     * Pop the top of the stack into a result, operand: the result index. Only programs
+     * compiled from several expressions contain it, see ProgramCompiler.compileAll.
+     */
+    public static final int OUTPUT = 10;
+    /**
+     * Function opcodes are FUNCTION_BASE plus the FunctionNode function id.
+     */
+    public static final int FUNCTION_BASE = 16;
+    /**
+     * Replace the top of the stack by its sine.
+     */
+    public static final int SIN = FUNCTION_BASE + FunctionNode.SIN;
+    /**
+     * Replace the top of the stack by its cosine.
+     */
+    public static final int COS = FUNCTION_BASE + FunctionNode.COS;
+    /**
+     * Replace the top of the stack by its tangent.
+     */
+    public static final int TAN = FUNCTION_BASE + FunctionNode.TAN;
+    /**
+     * Replace the top of the stack by its arc sine.
+     */
+    public static final int ASIN = FUNCTION_BASE + FunctionNode.ASIN;
+    /**
+     * Replace the top of the stack by its arc cosine.
+     */
+    public static final int ACOS = FUNCTION_BASE + FunctionNode.ACOS;
+    /**
+     * Replace the top of the stack by its arc tangent.
+     */
+    public static final int ATAN = FUNCTION_BASE + FunctionNode.ATAN;
+    /**
+     * Replace the top of the stack by its square root.
+     */
+    public static final int SQRT = FUNCTION_BASE + FunctionNode.SQRT;
+    /**
+     * Replace the top of the stack by e raised to it.
+     */
+    public static final int EXP = FUNCTION_BASE + FunctionNode.EXP;
+    /**
+     * Replace the top of the stack by its natural logarithm.
+     */
+    public static final int LN = FUNCTION_BASE + FunctionNode.LN;
+    /**
+     * Replace the top of the stack by its base 10 logarithm.
+     */
+    public static final int LOG = FUNCTION_BASE + FunctionNode.LOG;
+    /**
+     * Replace the top of the stack by its base 2 logarithm.
+     */
+    public static final int LOG2 = FUNCTION_BASE + FunctionNode.LOG2;
+    /**
+     * Fast function opcodes are FAST_FUNCTION_BASE plus the FunctionNode function id.
+     * They compute the function with FastMath, see MathPolicy.FAST.
+     */
+    public static final int FAST_FUNCTION_BASE = 32;
+    /**
+     * Replace the top of the stack by an approximation of its sine.
+     */
+    public static final int FAST_SIN = FAST_FUNCTION_BASE + FunctionNode.SIN;
+    /**
+     * Replace the top of the stack by an approximation of its cosine.
+     */
+    public static final int FAST_COS = FAST_FUNCTION_BASE + FunctionNode.COS;
+    /**
+     * Replace the top of the stack by an approximation of its tangent.
+     */
+    public static final int FAST_TAN = FAST_FUNCTION_BASE + FunctionNode.TAN;
+    /**
+     * Replace the top of the stack by an approximation of e raised to it.
+     */
+    public static final int FAST_EXP = FAST_FUNCTION_BASE + FunctionNode.EXP;
+    /**
+     * Replace the top of the stack by an approximation of its natural logarithm.
+     */
+    public static final int FAST_LN = FAST_FUNCTION_BASE + FunctionNode.LN;
+    /**
+     * Replace the top of the stack by an approximation of its base 10 logarithm.
+     */
+    public static final int FAST_LOG = FAST_FUNCTION_BASE + FunctionNode.LOG;
+    /**
+     * Replace the top of the stack by an approximation of its base 2 logarithm.
+     */
+    public static final int FAST_LOG2 = FAST_FUNCTION_BASE + FunctionNode.LOG2;
+
+    /**
+     * Get the opcode that computes a function under a math policy.
+     *
+     * @param function the FunctionNode function id
+     * @param policy   the math policy
+     * @return the fast opcode if the policy is FAST and FastMath has the function,
+     * otherwise the strict one
+     */
+    public static int function(final int function, final MathPolicy policy) {
+        if (policy == MathPolicy.FAST && isFast(FAST_FUNCTION_BASE + function)) {
+            return FAST_FUNCTION_BASE + function;
+        }
+        return FUNCTION_BASE + function;
+    }
+
+    /**
+     * Check for a fast function opcode.
+     *
+     * @param opcode the opcode
+     * @return true if the opcode computes its function with FastMath
+     */
+    public static boolean isFast(final int opcode) {
+        switch (opcode) {
+            case FAST_SIN:
+            case FAST_COS:
+            case FAST_TAN:
+            case FAST_EXP:
+            case FAST_LN:
+            case FAST_LOG:
+            case FAST_LOG2:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Get the FunctionNode function id of a strict or fast function opcode.
+     *
+     * @param opcode the opcode
+     * @return the function id, or a value outside SIN to LOG2 for other opcodes
+     */
+    public static int functionOf(final int opcode) {
+        return isFast(opcode) ? opcode - FAST_FUNCTION_BASE : opcode - FUNCTION_BASE;
+    }
+
+    /**
+     * Get the number of operands following an opcode in the code array.
+     *
+     * @param opcode the opcode
+     * @return the number of inline operands
+     */
+    public static int operandCount(final int opcode) {
+        return opcode == CONST || opcode == LOAD || opcode == STORE || opcode == LOAD_TEMP
+                || opcode == OUTPUT ? 1 : 0;
+    }
+
+    /**
+     * Get the mnemonic of an opcode, used when printing programs.
+     *
+     * @param opcode the opcode
+     * @return the name of the instruction
+     */
+    public static String name(final int opcode) {
+        switch (opcode) {
+            case CONST:
+                return "const";
+            case LOAD:
+                return "load";
+            case STORE:
+                return "store";
+            case LOAD_TEMP:
+                return "loadtemp";
+            case OUTPUT:
+                return "output";
+            case ADD:
+                return "add";
+            case SUB:
+                return "sub";
+            case MUL:
+                return "mul";
+            case DIV:
+                return "div";
+            case POW:
+                return "pow";
+            case SIN:
+                return "sin";
+            case COS:
+                return "cos";
+            case TAN:
+                return "tan";
+            case ASIN:
+                return "asin";
+            case ACOS:
+                return "acos";
+            case ATAN:
+                return "atan";
+            case SQRT:
+                return "sqrt";
+            case EXP:
+                return "exp";
+            case LN:
+                return "ln";
+            case LOG:
+                return "log";
+            case LOG2:
+                return "log2";
+            case FAST_SIN:
+                return "fsin";
+            case FAST_COS:
+                return "fcos";
+            case FAST_TAN:
+                return "ftan";
+            case FAST_EXP:
+                return "fexp";
+            case FAST_LN:
+                return "fln";
+            case FAST_LOG:
+                return "flog";
+            case FAST_LOG2:
+                return "flog2";
+            default:
+                return "invalid(" + opcode + ")";
+        }
+    }
+}
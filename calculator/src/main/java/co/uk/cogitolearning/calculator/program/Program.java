@@ -0,0 +1,865 @@
+package co.uk.cogitolearning.calculator.program;
+
+import co.uk.cogitolearning.calculator.EvaluationException;
+import co.uk.cogitolearning.calculator.math.FastMath;
+import co.uk.cogitolearning.calculator.math.MathFunctions;
+import co.uk.cogitolearning.calculator.math.MathPolicy;
+import lombok.EqualsAndHashCode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static co.uk.cogitolearning.calculator.program.Opcodes.ACOS;
+import static co.uk.cogitolearning.calculator.program.Opcodes.ADD;
+import static co.uk.cogitolearning.calculator.program.Opcodes.ASIN;
+import static co.uk.cogitolearning.calculator.program.Opcodes.ATAN;
+import static co.uk.cogitolearning.calculator.program.Opcodes.CONST;
+import static co.uk.cogitolearning.calculator.program.Opcodes.COS;
+import static co.uk.cogitolearning.calculator.program.Opcodes.DIV;
+import static co.uk.cogitolearning.calculator.program.Opcodes.EXP;
+import static co.uk.cogitolearning.calculator.program.Opcodes.FAST_COS;
+import static co.uk.cogitolearning.calculator.program.Opcodes.FAST_EXP;
+import static co.uk.cogitolearning.calculator.program.Opcodes.FAST_LN;
+import static co.uk.cogitolearning.calculator.program.Opcodes.FAST_LOG;
+import static co.uk.cogitolearning.calculator.program.Opcodes.FAST_LOG2;
+import static co.uk.cogitolearning.calculator.program.Opcodes.FAST_SIN;
+import static co.uk.cogitolearning.calculator.program.Opcodes.FAST_TAN;
+import static co.uk.cogitolearning.calculator.program.Opcodes.LN;
+import static co.uk.cogitolearning.calculator.program.Opcodes.LOAD;
+import static co.uk.cogitolearning.calculator.program.Opcodes.LOAD_TEMP;
+import static co.uk.cogitolearning.calculator.program.Opcodes.LOG;
+import static co.uk.cogitolearning.calculator.program.Opcodes.LOG2;
+import static co.uk.cogitolearning.calculator.program.Opcodes.MUL;
+import static co.uk.cogitolearning.calculator.program.Opcodes.OUTPUT;
+import static co.uk.cogitolearning.calculator.program.Opcodes.POW;
+import static co.uk.cogitolearning.calculator.program.Opcodes.SIN;
+import static co.uk.cogitolearning.calculator.program.Opcodes.SQRT;
+import static co.uk.cogitolearning.calculator.program.Opcodes.STORE;
+import static co.uk.cogitolearning.calculator.program.Opcodes.SUB;
+import static co.uk.cogitolearning.calculator.program.Opcodes.TAN;
+
+/**
+ * An expression compiled into a flat postfix program.
+ *
+ * <p>The program consists of an int code array (see Opcodes), a pool of double
+ * constants and a table of variable names. Variables are referenced by their slot,
+ * the index into the variable table. Programs are immutable and are created by
+ * ProgramCompiler.
+ */
+@EqualsAndHashCode
+public final class Program {
+    /**
+     * The number of rows evaluateBatch processes per pass over the code.
+     */
+    public static final int BLOCK_SIZE = 256;
+    /**
+     * The smallest number of rows a parallel batch hands to one task.
+     */
+    private static final int MIN_PARALLEL_CHUNK = 4 * BLOCK_SIZE;
+
+    /**
+     * The instructions and their inline operands.
+     */
+    private final int[] code;
+    /**
+     * The constant pool.
+     */
+    private final double[] constants;
+    /**
+     * The name of the variable in every slot.
+     */
+    private final String[] variables;
+    /**
+     * The largest number of operands on the stack at any point of the program.
+     */
+    private final int maxStackDepth;
+    /**
+     * The number of temporaries that hold shared subexpressions. They are kept in the
+     * stack array above the operands.
+     */
+    private final int temporaryCount;
+
+    Program(final int[] code, final double[] constants, final String[] variables, final int maxStackDepth,
+            final int temporaryCount) {
+        this.code = code;
+        this.constants = constants;
+        this.variables = variables;
+        this.maxStackDepth = maxStackDepth;
+        this.temporaryCount = temporaryCount;
+    }
+
+    /**
+     * Run the program.
+     *
+     * @param values the variable values, indexed by slot
+     * @param stack  the operand stack and temporaries, see newStack
+     * @return the value of the expression
+     */
+    public double evaluate(final double[] values, final double[] stack) {
+        return run(values, stack, null);
+    }
+
+    /**
+     * Run a program compiled from several expressions by ProgramCompiler.compileAll.
+     *
+     * <p>Every OUTPUT instruction stores the value of one expression, so a single run
+     * fills the results of the whole set. Subexpressions shared between the expressions
+     * are computed once.
+     *
+     * @param values  the variable values, indexed by slot
+     * @param stack   the operand stack and temporaries, see newStack
+     * @param results receives the value of every expression, indexed by its position
+     */
+    public void evaluateAll(final double[] values, final double[] stack, final double[] results) {
+        run(values, stack, results);
+    }
+
+    private double run(final double[] values, final double[] stack, final double[] results) {
+        final int[] code = this.code;
+        final double[] constants = this.constants;
+        final int temporaries = maxStackDepth;
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONST:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case LOAD:
+                    stack[sp++] = values[code[pc++]];
+                    break;
+                case STORE:
+                    stack[temporaries + code[pc++]] = stack[sp - 1];
+                    break;
+                case LOAD_TEMP:
+                    stack[sp++] = stack[temporaries + code[pc++]];
+                    break;
+                case OUTPUT:
+                    results[code[pc++]] = stack[--sp];
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] + stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] - stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] * stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] / stack[sp];
+                    break;
+                case POW:
+                    sp--;
+                    stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+                    break;
+                case SIN:
+                    stack[sp - 1] = Math.sin(stack[sp - 1]);
+                    break;
+                case COS:
+                    stack[sp - 1] = Math.cos(stack[sp - 1]);
+                    break;
+                case TAN:
+                    stack[sp - 1] = Math.tan(stack[sp - 1]);
+                    break;
+                case ASIN:
+                    stack[sp - 1] = Math.asin(stack[sp - 1]);
+                    break;
+                case ACOS:
+                    stack[sp - 1] = Math.acos(stack[sp - 1]);
+                    break;
+                case ATAN:
+                    stack[sp - 1] = Math.atan(stack[sp - 1]);
+                    break;
+                case SQRT:
+                    stack[sp - 1] = Math.sqrt(stack[sp - 1]);
+                    break;
+                case EXP:
+                    stack[sp - 1] = Math.exp(stack[sp - 1]);
+                    break;
+                case LN:
+                    stack[sp - 1] = Math.log(stack[sp - 1]);
+                    break;
+                case LOG:
+                    stack[sp - 1] = Math.log10(stack[sp - 1]);
+                    break;
+                case LOG2:
+                    stack[sp - 1] = MathFunctions.log2(stack[sp - 1]);
+                    break;
+                case FAST_SIN:
+                    stack[sp - 1] = FastMath.sin(stack[sp - 1]);
+                    break;
+                case FAST_COS:
+                    stack[sp - 1] = FastMath.cos(stack[sp - 1]);
+                    break;
+                case FAST_TAN:
+                    stack[sp - 1] = FastMath.tan(stack[sp - 1]);
+                    break;
+                case FAST_EXP:
+                    stack[sp - 1] = FastMath.exp(stack[sp - 1]);
+                    break;
+                case FAST_LN:
+                    stack[sp - 1] = FastMath.log(stack[sp - 1]);
+                    break;
+                case FAST_LOG:
+                    stack[sp - 1] = FastMath.log10(stack[sp - 1]);
+                    break;
+                case FAST_LOG2:
+                    stack[sp - 1] = FastMath.log2(stack[sp - 1]);
+                    break;
+                default:
+                    throw new EvaluationException("Invalid opcode " + code[pc - 1] + " at " + (pc - 1) + "!");
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Run the program over a block of rows of variable columns.
+     *
+     * <p>The code is walked once per block of at most BLOCK_SIZE rows and every
+     * instruction is a tight loop over the whole block. Every stack entry is a block
+     * of values. The results are the same as running evaluate for every row.
+     *
+     * @param columns the values of every variable indexed by slot, then by row
+     * @param from    the first row
+     * @param to      the end of the rows, exclusive
+     * @param out     receives the results, indexed by row
+     * @param stack   the operand stack, see newBlockStack
+     */
+    public void evaluateBatch(final double[][] columns, final int from, final int to, final double[] out,
+                              final double[][] stack) {
+        for (int start = from; start < to; start += BLOCK_SIZE) {
+            evaluateBlock(columns, start, Math.min(BLOCK_SIZE, to - start), out, stack);
+        }
+    }
+
+    /**
+     * Run the program over rows of variable columns in a ForkJoinPool.
+     *
+     * <p>The rows are split into chunks of whole blocks. Chunks are only split further
+     * while other workers may steal them, and every worker thread reuses its own
+     * operand stack. Each row of the output is written by exactly one task, so the
+     * results are the same as those of the single threaded evaluateBatch.
+     *
+     * @param columns the values of every variable indexed by slot, then by row
+     * @param from    the first row
+     * @param to      the end of the rows, exclusive
+     * @param out     receives the results, indexed by row
+     * @param pool    the pool to run in
+     */
+    public void evaluateBatch(final double[][] columns, final int from, final int to, final double[] out,
+                              final ForkJoinPool pool) {
+        int threshold = splitThreshold(to - from, pool.getParallelism());
+        ThreadLocal<double[][]> stacks = ThreadLocal.withInitial(this::newBlockStack);
+        pool.invoke(new BatchTask(this, columns, out, stacks, threshold, from, to));
+    }
+
+    /**
+     * Run the program over rows of variable columns with an executor.
+     *
+     * <p>The rows are split into a few chunks of whole blocks per thread, so that
+     * threads that finish early can pick up the remaining chunks.
+     *
+     * @param columns     the values of every variable indexed by slot, then by row
+     * @param from        the first row
+     * @param to          the end of the rows, exclusive
+     * @param out         receives the results, indexed by row
+     * @param executor    the executor to run in
+     * @param parallelism the number of threads of the executor
+     */
+    public void evaluateBatch(final double[][] columns, final int from, final int to, final double[] out,
+                              final Executor executor, final int parallelism) {
+        int chunk = splitThreshold(to - from, parallelism);
+        ThreadLocal<double[][]> stacks = ThreadLocal.withInitial(this::newBlockStack);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int start = from; start < to; start += chunk) {
+            int chunkStart = start;
+            int chunkEnd = Math.min(to, start + chunk);
+            futures.add(CompletableFuture.runAsync(
+                    () -> evaluateBatch(columns, chunkStart, chunkEnd, out, stacks.get()), executor));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Choose the chunk size for a parallel batch, about four chunks per thread but at
+     * least a few blocks, so that the tasks are not dominated by scheduling overhead.
+     */
+    private static int splitThreshold(final int rows, final int parallelism) {
+        return Math.max(MIN_PARALLEL_CHUNK, BatchTask.blockAligned(rows / (4 * Math.max(1, parallelism))));
+    }
+
+    private void evaluateBlock(final double[][] columns, final int start, final int n, final double[] out,
+                               final double[][] stack) {
+        final int[] code = this.code;
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONST:
+                    Arrays.fill(stack[sp++], 0, n, constants[code[pc++]]);
+                    break;
+                case LOAD:
+                    System.arraycopy(columns[code[pc++]], start, stack[sp++], 0, n);
+                    break;
+                case STORE:
+                    System.arraycopy(stack[sp - 1], 0, stack[maxStackDepth + code[pc++]], 0, n);
+                    break;
+                case LOAD_TEMP:
+                    System.arraycopy(stack[maxStackDepth + code[pc++]], 0, stack[sp++], 0, n);
+                    break;
+                case ADD: {
+                    double[] a = stack[sp - 2];
+                    double[] b = stack[--sp];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = a[i] + b[i];
+                    }
+                    break;
+                }
+                case SUB: {
+                    double[] a = stack[sp - 2];
+                    double[] b = stack[--sp];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = a[i] - b[i];
+                    }
+                    break;
+                }
+                case MUL: {
+                    double[] a = stack[sp - 2];
+                    double[] b = stack[--sp];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = a[i] * b[i];
+                    }
+                    break;
+                }
+                case DIV: {
+                    double[] a = stack[sp - 2];
+                    double[] b = stack[--sp];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = a[i] / b[i];
+                    }
+                    break;
+                }
+                case POW: {
+                    double[] a = stack[sp - 2];
+                    double[] b = stack[--sp];
+                    for (int i = 0; i < n; i++) {
+                        a[i] = Math.pow(a[i], b[i]);
+                    }
+                    break;
+                }
+                default:
+                    applyFunction(code[pc - 1], pc - 1, stack[sp - 1], n);
+                    break;
+            }
+        }
+        System.arraycopy(stack[0], 0, out, start, n);
+    }
+
+    private static void applyFunction(final int opcode, final int pc, final double[] a, final int n) {
+        switch (opcode) {
+            case SIN:
+                for (int i = 0; i < n; i++) {
+                    a[i] = Math.sin(a[i]);
+                }
+                break;
+            case COS:
+                for (int i = 0; i < n; i++) {
+                    a[i] = Math.cos(a[i]);
+                }
+                break;
+            case TAN:
+                for (int i = 0; i < n; i++) {
+                    a[i] = Math.tan(a[i]);
+                }
+                break;
+            case ASIN:
+                for (int i = 0; i < n; i++) {
+                    a[i] = Math.asin(a[i]);
+                }
+                break;
+            case ACOS:
+                for (int i = 0; i < n; i++) {
+                    a[i] = Math.acos(a[i]);
+                }
+                break;
+            case ATAN:
+                for (int i = 0; i < n; i++) {
+                    a[i] = Math.atan(a[i]);
+                }
+                break;
+            case SQRT:
+                for (int i = 0; i < n; i++) {
+                    a[i] = Math.sqrt(a[i]);
+                }
+                break;
+            case EXP:
+                for (int i = 0; i < n; i++) {
+                    a[i] = Math.exp(a[i]);
+                }
+                break;
+            case LN:
+                for (int i = 0; i < n; i++) {
+                    a[i] = Math.log(a[i]);
+                }
+                break;
+            case LOG:
+                for (int i = 0; i < n; i++) {
+                    a[i] = Math.log10(a[i]);
+                }
+                break;
+            case LOG2:
+                for (int i = 0; i < n; i++) {
+                    a[i] = MathFunctions.log2(a[i]);
+                }
+                break;
+            case FAST_SIN:
+                for (int i = 0; i < n; i++) {
+                    a[i] = FastMath.sin(a[i]);
+                }
+                break;
+            case FAST_COS:
+                for (int i = 0; i < n; i++) {
+                    a[i] = FastMath.cos(a[i]);
+                }
+                break;
+            case FAST_TAN:
+                for (int i = 0; i < n; i++) {
+                    a[i] = FastMath.tan(a[i]);
+                }
+                break;
+            case FAST_EXP:
+                for (int i = 0; i < n; i++) {
+                    a[i] = FastMath.exp(a[i]);
+                }
+                break;
+            case FAST_LN:
+                for (int i = 0; i < n; i++) {
+                    a[i] = FastMath.log(a[i]);
+                }
+                break;
+            case FAST_LOG:
+                for (int i = 0; i < n; i++) {
+                    a[i] = FastMath.log10(a[i]);
+                }
+                break;
+            case FAST_LOG2:
+                for (int i = 0; i < n; i++) {
+                    a[i] = FastMath.log2(a[i]);
+                }
+                break;
+            default:
+                throw new EvaluationException("Invalid opcode " + opcode + " at " + pc + "!");
+        }
+    }
+
+    /**
+     * Run the program in forward mode automatic differentiation.
+     *
+     * <p>Every stack entry is a multi-tangent dual number: the value followed by its
+     * partial derivative with respect to every variable. Each instruction applies its
+     * derivative rule to all tangents, so the value and the full gradient come out of
+     * a single pass over the code. The value is the same as that of evaluate.
+     *
+     * <p>A tangent that is exactly 0 stays 0, even where the derivative of a function
+     * is infinite or undefined, so sqrt(x) at x = 0 has a derivative of 0 with respect
+     * to every variable other than x.
+     *
+     * @param values   the variable values, indexed by slot
+     * @param gradient receives the partial derivative with respect to every variable, indexed by slot
+     * @param stack    the dual number stack, see newGradientStack
+     * @return the value of the expression
+     */
+    public double evaluateGradient(final double[] values, final double[] gradient, final double[] stack) {
+        final int[] code = this.code;
+        final int width = variables.length + 1;
+        final int temporaries = maxStackDepth * width;
+        // offset of the first free stack entry
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc++];
+            switch (opcode) {
+                case CONST:
+                    stack[sp] = constants[code[pc++]];
+                    Arrays.fill(stack, sp + 1, sp + width, 0.0);
+                    sp += width;
+                    break;
+                case LOAD: {
+                    int slot = code[pc++];
+                    stack[sp] = values[slot];
+                    Arrays.fill(stack, sp + 1, sp + width, 0.0);
+                    stack[sp + 1 + slot] = 1.0;
+                    sp += width;
+                    break;
+                }
+                case STORE:
+                    System.arraycopy(stack, sp - width, stack, temporaries + code[pc++] * width, width);
+                    break;
+                case LOAD_TEMP:
+                    System.arraycopy(stack, temporaries + code[pc++] * width, stack, sp, width);
+                    sp += width;
+                    break;
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                case POW:
+                    sp -= width;
+                    differentiateOperator(opcode, stack, sp - width, sp, width);
+                    break;
+                default:
+                    differentiateFunction(opcode, pc - 1, stack, sp - width, width);
+                    break;
+            }
+        }
+        System.arraycopy(stack, 1, gradient, 0, width - 1);
+        return stack[0];
+    }
+
+    /**
+     * Run the program in forward mode automatic differentiation for many rows.
+     *
+     * @param columns   the values of every variable indexed by slot, then by row
+     * @param from      the first row
+     * @param to        the end of the rows, exclusive
+     * @param out       receives the values, indexed by row
+     * @param gradients receives the partial derivatives indexed by slot, then by row
+     * @param stack     the dual number stack, see newGradientStack
+     */
+    public void evaluateGradientBatch(final double[][] columns, final int from, final int to, final double[] out,
+                                      final double[][] gradients, final double[] stack) {
+        final int count = variables.length;
+        double[] values = new double[count];
+        double[] gradient = new double[count];
+        for (int row = from; row < to; row++) {
+            for (int slot = 0; slot < count; slot++) {
+                values[slot] = columns[slot][row];
+            }
+            out[row] = evaluateGradient(values, gradient, stack);
+            for (int slot = 0; slot < count; slot++) {
+                gradients[slot][row] = gradient[slot];
+            }
+        }
+    }
+
+    /**
+     * Apply a binary operator to the dual numbers at a and b, leaving the result at a.
+     */
+    private static void differentiateOperator(final int opcode, final double[] stack, final int a, final int b,
+                                              final int width) {
+        final double x = stack[a];
+        final double y = stack[b];
+        switch (opcode) {
+            case ADD:
+                for (int k = 1; k < width; k++) {
+                    stack[a + k] += stack[b + k];
+                }
+                stack[a] = x + y;
+                break;
+            case SUB:
+                for (int k = 1; k < width; k++) {
+                    stack[a + k] -= stack[b + k];
+                }
+                stack[a] = x - y;
+                break;
+            case MUL:
+                for (int k = 1; k < width; k++) {
+                    stack[a + k] = product(y, stack[a + k]) + product(x, stack[b + k]);
+                }
+                stack[a] = x * y;
+                break;
+            case DIV: {
+                double quotient = x / y;
+                for (int k = 1; k < width; k++) {
+                    double numerator = stack[a + k] - product(quotient, stack[b + k]);
+                    stack[a + k] = numerator == 0 ? 0 : numerator / y;
+                }
+                stack[a] = quotient;
+                break;
+            }
+            default: {
+                // d(x^y) = y * x^(y-1) * dx + x^y * ln(x) * dy
+                double power = Math.pow(x, y);
+                double byBase = y * Math.pow(x, y - 1);
+                double byExponent = power * Math.log(x);
+                for (int k = 1; k < width; k++) {
+                    stack[a + k] = product(byBase, stack[a + k]) + product(byExponent, stack[b + k]);
+                }
+                stack[a] = power;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Apply the chain rule of a function to the dual number at a.
+     */
+    private static void differentiateFunction(final int opcode, final int pc, final double[] stack, final int a,
+                                              final int width) {
+        final double x = stack[a];
+        final double value;
+        final double derivative;
+        switch (opcode) {
+            case SIN:
+                value = Math.sin(x);
+                derivative = Math.cos(x);
+                break;
+            case COS:
+                value = Math.cos(x);
+                derivative = -Math.sin(x);
+                break;
+            case TAN: {
+                value = Math.tan(x);
+                double cos = Math.cos(x);
+                derivative = 1 / (cos * cos);
+                break;
+            }
+            case ASIN:
+                value = Math.asin(x);
+                derivative = 1 / Math.sqrt(1 - x * x);
+                break;
+            case ACOS:
+                value = Math.acos(x);
+                derivative = -1 / Math.sqrt(1 - x * x);
+                break;
+            case ATAN:
+                value = Math.atan(x);
+                derivative = 1 / (1 + x * x);
+                break;
+            case SQRT:
+                value = Math.sqrt(x);
+                derivative = 0.5 / value;
+                break;
+            case EXP:
+                value = Math.exp(x);
+                derivative = value;
+                break;
+            case LN:
+                value = Math.log(x);
+                derivative = 1 / x;
+                break;
+            case LOG:
+                value = Math.log10(x);
+                derivative = 1 / (x * Math.log(10));
+                break;
+            case LOG2:
+                value = MathFunctions.log2(x);
+                derivative = 1 / (x * Math.log(2));
+                break;
+            case FAST_SIN:
+                value = FastMath.sin(x);
+                derivative = FastMath.cos(x);
+                break;
+            case FAST_COS:
+                value = FastMath.cos(x);
+                derivative = -FastMath.sin(x);
+                break;
+            case FAST_TAN: {
+                value = FastMath.tan(x);
+                double cos = FastMath.cos(x);
+                derivative = 1 / (cos * cos);
+                break;
+            }
+            case FAST_EXP:
+                value = FastMath.exp(x);
+                derivative = value;
+                break;
+            case FAST_LN:
+                value = FastMath.log(x);
+                derivative = 1 / x;
+                break;
+            case FAST_LOG:
+                value = FastMath.log10(x);
+                derivative = 1 / (x * Math.log(10));
+                break;
+            case FAST_LOG2:
+                value = FastMath.log2(x);
+                derivative = 1 / (x * Math.log(2));
+                break;
+            default:
+                throw new EvaluationException("Invalid opcode " + opcode + " at " + pc + "!");
+        }
+        for (int k = 1; k < width; k++) {
+            stack[a + k] = product(derivative, stack[a + k]);
+        }
+        stack[a] = value;
+    }
+
+    /**
+     * Multiply a derivative by a tangent, a zero tangent gives zero whatever the derivative.
+     */
+    private static double product(final double derivative, final double tangent) {
+        return tangent == 0 ? 0 : derivative * tangent;
+    }
+
+    /**
+     * Allocate a dual number stack for evaluateGradient.
+     *
+     * @return a new array for the operands and the temporaries with their tangents
+     */
+    public double[] newGradientStack() {
+        return new double[getGradientStackSize()];
+    }
+
+    /**
+     * Get the length of the stack evaluateGradient needs, a longer array can be used too.
+     *
+     * @return the number of doubles of a dual number stack
+     */
+    public int getGradientStackSize() {
+        return getStackSize() * (variables.length + 1);
+    }
+
+    /**
+     * Allocate an operand stack for evaluateBatch.
+     *
+     * @return a new stack of blocks for the operands and the temporaries
+     */
+    public double[][] newBlockStack() {
+        return new double[maxStackDepth + temporaryCount][BLOCK_SIZE];
+    }
+
+    /**
+     * Allocate an operand stack that is large enough for this program.
+     *
+     * @return a new array for the operands and the temporaries
+     */
+    public double[] newStack() {
+        return new double[getStackSize()];
+    }
+
+    /**
+     * Get the length of the stack evaluate and evaluateAll need, a longer array can be used too.
+     *
+     * @return the number of operands and temporaries
+     */
+    public int getStackSize() {
+        return maxStackDepth + temporaryCount;
+    }
+
+    /**
+     * Get the number of variable slots.
+     *
+     * @return the number of distinct variables the program references
+     */
+    public int getVariableCount() {
+        return variables.length;
+    }
+
+    /**
+     * Get the name of the variable in a slot.
+     *
+     * @param slot the variable slot
+     * @return the variable name
+     */
+    public String getVariable(final int slot) {
+        return variables[slot];
+    }
+
+    /**
+     * Get the largest number of operands on the stack at any point of the program.
+     *
+     * @return the required operand stack size
+     */
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    /**
+     * Get the number of temporaries that hold shared subexpressions.
+     *
+     * @return the number of temporaries
+     */
+    public int getTemporaryCount() {
+        return temporaryCount;
+    }
+
+    /**
+     * Get the length of the code array.
+     *
+     * @return the number of ints of instructions and inline operands
+     */
+    public int getCodeLength() {
+        return code.length;
+    }
+
+    /**
+     * Get the size of the constant pool.
+     *
+     * @return the number of distinct constants
+     */
+    public int getConstantCount() {
+        return constants.length;
+    }
+
+    /**
+     * Get a copy of the code array.
+     *
+     * @return the instructions and their inline operands
+     */
+    public int[] getCode() {
+        return code.clone();
+    }
+
+    /**
+     * Get a copy of the constant pool.
+     *
+     * @return the constants
+     */
+    public double[] getConstants() {
+        return constants.clone();
+    }
+
+    /**
+     * Get the math policy the program was compiled with, as far as it matters: FAST if
+     * any function is computed with FastMath, otherwise STRICT.
+     *
+     * @return the math policy
+     */
+    public MathPolicy getMathPolicy() {
+        for (int pc = 0; pc < code.length; pc += 1 + Opcodes.operandCount(code[pc])) {
+            if (Opcodes.isFast(code[pc])) {
+                return MathPolicy.FAST;
+            }
+        }
+        return MathPolicy.STRICT;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int pc = 0; pc < code.length; pc++) {
+            int opcode = code[pc];
+            builder.append(pc).append(": ").append(Opcodes.name(opcode));
+            if (opcode == CONST) {
+                builder.append(' ').append(constants[code[++pc]]);
+            } else if (opcode == LOAD) {
+                builder.append(' ').append(variables[code[++pc]]);
+            } else if (opcode == STORE || opcode == LOAD_TEMP) {
+                builder.append(" t").append(code[++pc]);
+            } else if (opcode == OUTPUT) {
+                builder.append(" r").append(code[++pc]);
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+}
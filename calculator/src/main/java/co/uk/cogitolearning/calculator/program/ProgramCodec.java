@@ -0,0 +1,313 @@
+package co.uk.cogitolearning.calculator.program;
+
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import co.uk.cogitolearning.calculator.tree.FunctionNode;
+import co.uk.cogitolearning.calculator.tree.NodeFactory;
+import lombok.experimental.UtilityClass;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static co.uk.cogitolearning.calculator.program.Opcodes.ADD;
+import static co.uk.cogitolearning.calculator.program.Opcodes.CONST;
+import static co.uk.cogitolearning.calculator.program.Opcodes.DIV;
+import static co.uk.cogitolearning.calculator.program.Opcodes.FUNCTION_BASE;
+import static co.uk.cogitolearning.calculator.program.Opcodes.LOAD;
+import static co.uk.cogitolearning.calculator.program.Opcodes.LOAD_TEMP;
+import static co.uk.cogitolearning.calculator.program.Opcodes.MUL;
+import static co.uk.cogitolearning.calculator.program.Opcodes.POW;
+import static co.uk.cogitolearning.calculator.program.Opcodes.STORE;
+import static co.uk.cogitolearning.calculator.program.Opcodes.SUB;
+
+/**
+ * Reads and writes Programs in a compact binary form and turns them back into trees.
+ *
+ * <p>A program is written as its stack depth, its number of temporaries, its variable
+ * table, its constant pool and its code. Counts, lengths and code words are unsigned
+ * LEB128 varints, so most instructions and operands take a single byte; strings are
+ * UTF-8 and constants are 8 byte big endian IEEE doubles. The format carries no
+ * version of its own, the caller writes one in front of it.
+ *
+ * <p>A program that is read is verified before it is returned: every instruction
+ * and operand has to be valid and the stack can neither underflow nor grow beyond
+ * the recorded depth, so a corrupt input fails here and not during evaluation. A few
+ * bytes of temporaries that are loaded twice can stand for a tree of billions of
+ * nodes, so programs whose tree has more than MAX_TREE_SIZE nodes are rejected too.
+ */
+@UtilityClass
+public class ProgramCodec {
+    /**
+     * The largest number of nodes of the tree a program read stands for, counting a
+     * subexpression kept in a temporary once per use.
+     */
+    public static final long MAX_TREE_SIZE = 1 << 22;
+
+    /**
+     * Append a program to a stream.
+     *
+     * @param program the program
+     * @param out     receives the encoded program
+     */
+    public static void write(final Program program, final ByteArrayOutputStream out) {
+        writeVarint(out, program.getMaxStackDepth());
+        writeVarint(out, program.getTemporaryCount());
+        writeVarint(out, program.getVariableCount());
+        for (int slot = 0; slot < program.getVariableCount(); slot++) {
+            writeString(out, program.getVariable(slot));
+        }
+        double[] constants = program.getConstants();
+        writeVarint(out, constants.length);
+        for (double constant : constants) {
+            long bits = Double.doubleToRawLongBits(constant);
+            for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+                out.write((int) (bits >>> shift));
+            }
+        }
+        int[] code = program.getCode();
+        writeVarint(out, code.length);
+        for (int word : code) {
+            writeVarint(out, word);
+        }
+    }
+
+    /**
+     * Read a program written by write.
+     *
+     * @param in the buffer, positioned at the program and advanced past it
+     * @return the verified program
+     * @throws IllegalArgumentException if the input is not a valid program
+     */
+    public static Program read(final ByteBuffer in) {
+        try {
+            int maxStackDepth = readVarint(in);
+            int temporaryCount = readVarint(in);
+            String[] variables = new String[readLength(in)];
+            for (int slot = 0; slot < variables.length; slot++) {
+                variables[slot] = readString(in);
+            }
+            double[] constants = new double[readLength(in)];
+            for (int i = 0; i < constants.length; i++) {
+                constants[i] = in.getDouble();
+            }
+            int[] code = new int[readLength(in)];
+            for (int pc = 0; pc < code.length; pc++) {
+                code[pc] = readVarint(in);
+            }
+            // every push and every temporary takes at least one code word
+            if (maxStackDepth > code.length || temporaryCount > code.length) {
+                throw new IllegalArgumentException("Invalid stack depth " + maxStackDepth + " or temporary count "
+                        + temporaryCount + " for " + code.length + " code words");
+            }
+            Program program = new Program(code, constants, variables, maxStackDepth, temporaryCount);
+            toTree(program, NodeFactory.DEFAULT);
+            if (treeSize(program) > MAX_TREE_SIZE) {
+                throw new IllegalArgumentException("The program stands for a tree of more than " + MAX_TREE_SIZE
+                        + " nodes");
+            }
+            return program;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated program", e);
+        }
+    }
+
+    /**
+     * Rebuild the expression a program was compiled from.
+     *
+     * <p>A subexpression that the program stores in a temporary becomes a single node
+     * shared by all its uses, so compiling the result with the math policy of the program
+     * gives the same program again.
+     *
+     * @param program the program
+     * @param factory creates the nodes
+     * @return the root of the expression
+     * @throws IllegalArgumentException if the program is not valid
+     */
+    public static ExpressionNode toTree(final Program program, final NodeFactory factory) {
+        int[] code = program.getCode();
+        double[] constants = program.getConstants();
+        ExpressionNode[] stack = new ExpressionNode[program.getMaxStackDepth()];
+        ExpressionNode[] temporaries = new ExpressionNode[program.getTemporaryCount()];
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc++];
+            int operand = opcode == CONST || opcode == LOAD || opcode == STORE || opcode == LOAD_TEMP
+                    ? operand(code, pc++) : 0;
+            int pops = opcode >= ADD && opcode <= POW ? 2 : opcode >= FUNCTION_BASE || opcode == STORE ? 1 : 0;
+            if (sp < pops) {
+                throw invalid(pc, "stack underflow");
+            }
+            if (pops == 0 && sp == stack.length) {
+                throw invalid(pc, "stack overflow");
+            }
+            switch (opcode) {
+                case CONST:
+                    stack[sp++] = factory.constant(constants[checkIndex(operand, constants.length, pc)]);
+                    break;
+                case LOAD:
+                    stack[sp++] = factory.variable(program.getVariable(
+                            checkIndex(operand, program.getVariableCount(), pc)));
+                    break;
+                case STORE:
+                    temporaries[checkIndex(operand, temporaries.length, pc)] = stack[sp - 1];
+                    break;
+                case LOAD_TEMP: {
+                    ExpressionNode value = temporaries[checkIndex(operand, temporaries.length, pc)];
+                    if (value == null) {
+                        throw invalid(pc, "temporary " + operand + " loaded before it is stored");
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = factory.addition(stack[sp - 1], stack[sp]);
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = factory.subtraction(stack[sp - 1], stack[sp]);
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] = factory.multiplication(stack[sp - 1], stack[sp]);
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] = factory.division(stack[sp - 1], stack[sp]);
+                    break;
+                case POW:
+                    sp--;
+                    stack[sp - 1] = factory.exponentiation(stack[sp - 1], stack[sp]);
+                    break;
+                default:
+                    // fast functions become the same node, the program keeps its opcodes
+                    int function = Opcodes.functionOf(opcode);
+                    if (function < FunctionNode.SIN || function > FunctionNode.LOG2) {
+                        throw invalid(pc, "invalid opcode " + opcode);
+                    }
+                    stack[sp - 1] = factory.function(function, stack[sp - 1]);
+                    break;
+            }
+        }
+        if (sp != 1) {
+            throw invalid(pc, "the program leaves " + sp + " values on the stack");
+        }
+        return stack[0];
+    }
+
+    /**
+     * Count the nodes of the tree of a verified program, up to MAX_TREE_SIZE + 1.
+     */
+    private static long treeSize(final Program program) {
+        int[] code = program.getCode();
+        long[] stack = new long[program.getMaxStackDepth()];
+        long[] temporaries = new long[program.getTemporaryCount()];
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc++];
+            switch (opcode) {
+                case CONST:
+                case LOAD:
+                    pc++;
+                    stack[sp++] = 1;
+                    break;
+                case STORE:
+                    temporaries[code[pc++]] = stack[sp - 1];
+                    break;
+                case LOAD_TEMP:
+                    stack[sp++] = temporaries[code[pc++]];
+                    break;
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                case POW:
+                    sp--;
+                    stack[sp - 1] = Math.min(stack[sp - 1] + stack[sp] + 1, MAX_TREE_SIZE + 1);
+                    break;
+                default:
+                    stack[sp - 1] = Math.min(stack[sp - 1] + 1, MAX_TREE_SIZE + 1);
+                    break;
+            }
+        }
+        return stack[0];
+    }
+
+    private static int operand(final int[] code, final int pc) {
+        if (pc >= code.length) {
+            throw invalid(pc, "missing operand");
+        }
+        return code[pc];
+    }
+
+    private static int checkIndex(final int index, final int length, final int pc) {
+        if (index < 0 || index >= length) {
+            throw invalid(pc, "operand " + index + " out of range");
+        }
+        return index;
+    }
+
+    private static IllegalArgumentException invalid(final int pc, final String message) {
+        return new IllegalArgumentException("Invalid program at " + pc + ": " + message);
+    }
+
+    private static void writeVarint(final ByteArrayOutputStream out, final int value) {
+        int rest = value;
+        while ((rest & ~0x7F) != 0) {
+            out.write((rest & 0x7F) | 0x80);
+            rest >>>= 7;
+        }
+        out.write(rest);
+    }
+
+    private static int readVarint(final ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint at " + in.position());
+    }
+
+    /**
+     * Read an array length and check that the buffer can hold at least that many bytes.
+     */
+    private static int readLength(final ByteBuffer in) {
+        int length = readVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid length " + length + " at " + in.position());
+        }
+        return length;
+    }
+
+    /**
+     * Write a string as its UTF-8 length and bytes.
+     *
+     * @param out    the stream
+     * @param string the string
+     */
+    public static void writeString(final ByteArrayOutputStream out, final String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Read a string written by writeString.
+     *
+     * @param in the buffer, advanced past the string
+     * @return the string
+     */
+    public static String readString(final ByteBuffer in) {
+        int length = readLength(in);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,257 @@
+package co.uk.cogitolearning.calculator.program;
+
+import co.uk.cogitolearning.calculator.math.MathPolicy;
+import co.uk.cogitolearning.calculator.tree.AdditionNode;
+import co.uk.cogitolearning.calculator.tree.ConstantNode;
+import co.uk.cogitolearning.calculator.tree.DivNode;
+import co.uk.cogitolearning.calculator.tree.ExponentiationNode;
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import co.uk.cogitolearning.calculator.tree.ExpressionNodeIterator;
+import co.uk.cogitolearning.calculator.tree.ExpressionNodeVisitor;
+import co.uk.cogitolearning.calculator.tree.FunctionNode;
+import co.uk.cogitolearning.calculator.tree.MultiplicationNode;
+import co.uk.cogitolearning.calculator.tree.SubtractionNode;
+import co.uk.cogitolearning.calculator.tree.VariableNode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles an ExpressionNode tree into a postfix Program.
+ *
+ * <p>Equal constants share one entry of the constant pool. Variables get a slot in
+ * the order in which they first appear in the expression.
+ *
+ * <p>The tree is walked with a post-order ExpressionNodeIterator and every node only
+ * emits its own instruction, so deeply nested trees compile without recursion.
+ *
+ * <p>The input may be a DAG, for example one built by HashConsingNodeFactory. An
+ * operator node that is referenced more than once is computed only once per
+ * evaluation: its value is stored in a temporary the first time and loaded from it
+ * everywhere else.
+ *
+ * <p>compileAll compiles several expressions into one program that computes every
+ * subexpression they share only once, see Program.evaluateAll.
+ *
+ * <p>Functions are compiled to strict or fast opcodes depending on the MathPolicy.
+ */
+public final class ProgramCompiler implements ExpressionNodeVisitor<Void> {
+    private int[] code = new int[32];
+    private int codeLength;
+
+    private double[] constants = new double[8];
+    private int constantCount;
+    private final Map<Long, Integer> constantIndex = new HashMap<>();
+
+    private final Map<String, Integer> variableSlots = new LinkedHashMap<>();
+
+    /**
+     * The operator nodes referenced more than once, with the number of references.
+     */
+    private final Map<ExpressionNode, Integer> references = new IdentityHashMap<>();
+    /**
+     * The temporary of every shared node that has been emitted.
+     */
+    private final Map<ExpressionNode, Integer> temporaries = new IdentityHashMap<>();
+
+    private final MathPolicy policy;
+
+    private int stackDepth;
+    private int maxStackDepth;
+
+    private ProgramCompiler(final MathPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Compile an expression tree.
+     *
+     * @param tree the root of the tree
+     * @return the compiled program
+     */
+    public static Program compile(final ExpressionNode tree) {
+        return compile(tree, MathPolicy.STRICT);
+    }
+
+    /**
+     * Compile an expression tree with a math policy.
+     *
+     * @param tree   the root of the tree
+     * @param policy how functions are computed
+     * @return the compiled program
+     */
+    public static Program compile(final ExpressionNode tree, final MathPolicy policy) {
+        ProgramCompiler compiler = new ProgramCompiler(policy);
+        compiler.countReferences(tree);
+        compiler.pruneReferences();
+        compiler.emitTree(tree);
+        return compiler.toProgram();
+    }
+
+    /**
+     * Compile several expression trees into one program.
+     *
+     * <p>The trees should be interned with one HashConsingNodeFactory, so that equal
+     * subtrees of different expressions are the same node. Such a subtree is then
+     * stored in a temporary by the first expression that uses it and loaded by all
+     * later ones. The value of the i-th tree is written to the i-th result by an
+     * OUTPUT instruction, the variable slots are shared by all trees.
+     *
+     * @param trees  the roots of the trees
+     * @param policy how functions are computed
+     * @return the compiled program, run it with Program.evaluateAll
+     */
+    public static Program compileAll(final List<ExpressionNode> trees, final MathPolicy policy) {
+        ProgramCompiler compiler = new ProgramCompiler(policy);
+        for (ExpressionNode tree : trees) {
+            compiler.countReferences(tree);
+        }
+        compiler.pruneReferences();
+        for (int i = 0; i < trees.size(); i++) {
+            compiler.emitTree(trees.get(i));
+            compiler.emitInstruction(Opcodes.OUTPUT, -1);
+            compiler.emit(i);
+        }
+        return compiler.toProgram();
+    }
+
+    private void emitTree(final ExpressionNode tree) {
+        // the subtree of a shared node is only emitted the first time
+        ExpressionNodeIterator nodes = ExpressionNodeIterator.postOrder(tree,
+                node -> !temporaries.containsKey(node));
+        while (nodes.hasNext()) {
+            emitNode(nodes.next());
+        }
+    }
+
+    private void countReferences(final ExpressionNode tree) {
+        ExpressionNodeIterator nodes = ExpressionNodeIterator.preOrder(tree,
+                node -> references.merge(node, 1, Integer::sum) == 1);
+        while (nodes.hasNext()) {
+            nodes.next();
+        }
+    }
+
+    private void pruneReferences() {
+        // constants and variables are as cheap to load as a temporary
+        references.entrySet().removeIf(entry -> entry.getValue() == 1
+                || entry.getKey() instanceof ConstantNode || entry.getKey() instanceof VariableNode);
+    }
+
+    private void emitNode(final ExpressionNode node) {
+        Integer temporary = temporaries.get(node);
+        if (temporary != null) {
+            emitInstruction(Opcodes.LOAD_TEMP, 1);
+            emit(temporary);
+            return;
+        }
+        node.accept(this);
+        if (references.containsKey(node)) {
+            temporary = temporaries.size();
+            temporaries.put(node, temporary);
+            emitInstruction(Opcodes.STORE, 0);
+            emit(temporary);
+        }
+    }
+
+    private Program toProgram() {
+        String[] variables = variableSlots.keySet().toArray(new String[0]);
+        return new Program(Arrays.copyOf(code, codeLength), Arrays.copyOf(constants, constantCount),
+                variables, maxStackDepth, temporaries.size());
+    }
+
+    private void emit(final int value) {
+        if (codeLength == code.length) {
+            code = Arrays.copyOf(code, codeLength * 2);
+        }
+        code[codeLength++] = value;
+    }
+
+    /**
+     * Emit an instruction and track the operand stack depth.
+     *
+     * @param opcode the opcode
+     * @param delta  the change of the stack depth caused by the instruction
+     */
+    private void emitInstruction(final int opcode, final int delta) {
+        emit(opcode);
+        stackDepth += delta;
+        maxStackDepth = Math.max(maxStackDepth, stackDepth);
+    }
+
+    private int constant(final double value) {
+        Integer index = constantIndex.get(Double.doubleToLongBits(value));
+        if (index == null) {
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+            }
+            index = constantCount;
+            constants[constantCount++] = value;
+            constantIndex.put(Double.doubleToLongBits(value), index);
+        }
+        return index;
+    }
+
+    private int slot(final String name) {
+        Integer slot = variableSlots.get(name);
+        if (slot == null) {
+            slot = variableSlots.size();
+            variableSlots.put(name, slot);
+        }
+        return slot;
+    }
+
+    @Override
+    public Void visit(final VariableNode node) {
+        emitInstruction(Opcodes.LOAD, 1);
+        emit(slot(node.getName()));
+        return null;
+    }
+
+    @Override
+    public Void visit(final ConstantNode node) {
+        emitInstruction(Opcodes.CONST, 1);
+        emit(constant(node.getValue()));
+        return null;
+    }
+
+    @Override
+    public Void visit(final ExponentiationNode node) {
+        emitInstruction(Opcodes.POW, -1);
+        return null;
+    }
+
+    @Override
+    public Void visit(final FunctionNode node) {
+        emitInstruction(Opcodes.function(node.getFunction(), policy), 0);
+        return null;
+    }
+
+    @Override
+    public Void visit(final AdditionNode node) {
+        emitInstruction(Opcodes.ADD, -1);
+        return null;
+    }
+
+    @Override
+    public Void visit(final SubtractionNode node) {
+        emitInstruction(Opcodes.SUB, -1);
+        return null;
+    }
+
+    @Override
+    public Void visit(final MultiplicationNode node) {
+        emitInstruction(Opcodes.MUL, -1);
+        return null;
+    }
+
+    @Override
+    public Void visit(final DivNode node) {
+        emitInstruction(Opcodes.DIV, -1);
+        return null;
+    }
+}
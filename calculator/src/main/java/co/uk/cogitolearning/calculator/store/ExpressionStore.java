@@ -0,0 +1,173 @@
+package co.uk.cogitolearning.calculator.store;
+
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.ExpressionCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A read only file of many compiled expressions, decoded lazily.
+ *
+ * <p>The file starts with a header: the magic bytes CXST, the store format version as
+ * a short and the number of expressions as an int. It is followed by an index of
+ * count + 1 int offsets of the encoded expressions and then by the expressions
+ * themselves, encoded by ExpressionCodec. All numbers are big endian.
+ *
+ * <p>open maps the file into memory and reads only the header, so opening a store
+ * takes the same time whatever the number of expressions. An expression is decoded
+ * the first time get asks for it and then kept; concurrent first calls may decode
+ * it twice, but all callers get the same instance. The mapping is limited to 2 GiB.
+ */
+public final class ExpressionStore implements Closeable {
+    /**
+     * The version of the file format written by write.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = ('C' << 24) | ('X' << 16) | ('S' << 8) | 'T';
+    private static final int HEADER_SIZE = 4 + 2 + 4;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final AtomicReferenceArray<CompiledExpression> decoded;
+
+    private ExpressionStore(final FileChannel channel, final MappedByteBuffer buffer, final int count) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.count = count;
+        this.decoded = new AtomicReferenceArray<>(count);
+    }
+
+    /**
+     * Write expressions to a store file, replacing the file if it exists.
+     *
+     * @param file        the file
+     * @param expressions the expressions in index order
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(final Path file, final List<CompiledExpression> expressions) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4 * (expressions.size() + 1));
+        header.putInt(MAGIC).putShort((short) FORMAT_VERSION).putInt(expressions.size());
+        int offset = header.capacity();
+        for (CompiledExpression expression : expressions) {
+            header.putInt(offset);
+            byte[] record = ExpressionCodec.encode(expression);
+            records.write(record, 0, record.length);
+            if (offset + record.length < offset) {
+                throw new IOException("The expressions do not fit into a store of 2 GiB");
+            }
+            offset += record.length;
+        }
+        header.putInt(offset);
+        header.flip();
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            ByteBuffer body = ByteBuffer.wrap(records.toByteArray());
+            while (body.hasRemaining()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Open a store file.
+     *
+     * @param file the file
+     * @return the store, close it to release the file
+     * @throws IOException if the file cannot be read or is not a store
+     */
+    public static ExpressionStore open(final Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid expression store size " + size + ": " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not an expression store: " + file);
+            }
+            int version = buffer.getShort(4);
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported expression store version " + version + ": " + file);
+            }
+            int count = buffer.getInt(6);
+            if (count < 0 || HEADER_SIZE + 4L * (count + 1) > size) {
+                throw new IOException("Invalid expression count " + count + ": " + file);
+            }
+            return new ExpressionStore(channel, buffer, count);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the number of expressions in the store.
+     *
+     * @return the number of expressions
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Get an expression, decoding it on first use.
+     *
+     * @param index the index of the expression
+     * @return the expression
+     * @throws IndexOutOfBoundsException if there is no expression with the index
+     * @throws IllegalArgumentException  if the stored expression is corrupt
+     */
+    public CompiledExpression get(final int index) {
+        CompiledExpression expression = decoded.get(index);
+        if (expression == null) {
+            expression = decode(index);
+            if (!decoded.compareAndSet(index, null, expression)) {
+                expression = decoded.get(index);
+            }
+        }
+        return expression;
+    }
+
+    private CompiledExpression decode(final int index) {
+        int start = buffer.getInt(HEADER_SIZE + 4 * index);
+        int end = buffer.getInt(HEADER_SIZE + 4 * (index + 1));
+        if (start < HEADER_SIZE || end < start || end > buffer.capacity()) {
+            throw new IllegalArgumentException("Invalid offsets " + start + ".." + end + " of expression " + index);
+        }
+        // a view of its own, so that concurrent decoding does not share a position
+        ByteBuffer record = buffer.duplicate();
+        record.limit(end).position(start);
+        return ExpressionCodec.decode(record);
+    }
+
+    /**
+     * Check whether an expression has been decoded already.
+     *
+     * @param index the index of the expression
+     * @return true if get has returned it before
+     */
+    public boolean isDecoded(final int index) {
+        return decoded.get(index) != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
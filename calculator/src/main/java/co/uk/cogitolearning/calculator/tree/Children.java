@@ -0,0 +1,60 @@
+package co.uk.cogitolearning.calculator.tree;
+
+/**
+ * A reusable visitor that collects the children of the visited node.
+ *
+ * <p>After a node accepted the visitor, count holds the number of children and left
+ * and right hold them; a function argument is stored in left.
+ */
+final class Children implements ExpressionNodeVisitor<Void> {
+    ExpressionNode left;
+    ExpressionNode right;
+    int count;
+
+    private Void set(final ExpressionNode leftChild, final ExpressionNode rightChild, final int childCount) {
+        this.left = leftChild;
+        this.right = rightChild;
+        this.count = childCount;
+        return null;
+    }
+
+    @Override
+    public Void visit(final VariableNode node) {
+        return set(null, null, 0);
+    }
+
+    @Override
+    public Void visit(final ConstantNode node) {
+        return set(null, null, 0);
+    }
+
+    @Override
+    public Void visit(final ExponentiationNode node) {
+        return set(node.getBase(), node.getExponent(), 2);
+    }
+
+    @Override
+    public Void visit(final FunctionNode node) {
+        return set(node.getArgument(), null, 1);
+    }
+
+    @Override
+    public Void visit(final AdditionNode node) {
+        return set(node.getAddendLeft(), node.getAddendRight(), 2);
+    }
+
+    @Override
+    public Void visit(final SubtractionNode node) {
+        return set(node.getMinuend(), node.getSubtrahend(), 2);
+    }
+
+    @Override
+    public Void visit(final MultiplicationNode node) {
+        return set(node.getMultiplicand(), node.getMultiplier(), 2);
+    }
+
+    @Override
+    public Void visit(final DivNode node) {
+        return set(node.getNumerator(), node.getDenominator(), 2);
+    }
+}
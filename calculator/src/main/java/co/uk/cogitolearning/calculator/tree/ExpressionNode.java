@@ -25,6 +25,7 @@
 package co.uk.cogitolearning.calculator.tree;
 
 import java.util.Iterator;
+import java.util.Spliterator;
 
 /**
  * An interface for expression nodes.
@@ -39,9 +40,19 @@ public interface ExpressionNode extends Iterable<ExpressionNode> {
      */
     void accept(ExpressionNodeVisitor visitor);
 
+    /**
+     * Iterate over this node and all its descendants in pre-order.
+     *
+     * @return a lazy pre-order iterator
+     */
     @Override
     default Iterator<ExpressionNode> iterator() {
-        return new ExpressionNodeIterator(this);
+        return ExpressionNodeIterator.preOrder(this);
+    }
+
+    @Override
+    default Spliterator<ExpressionNode> spliterator() {
+        return new ExpressionNodeSpliterator(this);
     }
 
 }
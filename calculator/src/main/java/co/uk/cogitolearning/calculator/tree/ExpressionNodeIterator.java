@@ -1,95 +1,174 @@
 package co.uk.cogitolearning.calculator.tree;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.function.Predicate;
 
-final class ExpressionNodeIterator implements Iterator<ExpressionNode> {
-    private final List<ExpressionNode> list = new ArrayList<>();
-
-    ExpressionNodeIterator(final ExpressionNode expressionNode) {
-        IteratorVisitor visitor = new IteratorVisitor(list);
-        expressionNode.accept(visitor);
+/**
+ * Iterates over the nodes of an expression tree.
+ *
+ * <p>The tree is walked lazily using an explicit stack, nothing is copied up front and
+ * every step does a constant amount of work (amortized for post-order). Deep trees
+ * can be iterated without recursion.
+ *
+ * <p>An optional predicate decides which nodes are expanded. The children of a node
+ * that is not expanded are skipped, which allows visiting every node of a DAG once.
+ */
+public final class ExpressionNodeIterator implements Iterator<ExpressionNode> {
+    /**
+     * The supported traversal orders.
+     */
+    public enum Order {
+        /**
+         * A node before its children, children from left to right.
+         */
+        PRE_ORDER,
+        /**
+         * A node after its children, children from left to right.
+         */
+        POST_ORDER,
+        /**
+         * The reverse of POST_ORDER: a node before its children, children from right to left.
+         */
+        REVERSE_POST_ORDER
     }
 
-    @Override
-    public boolean hasNext() {
-        return !list.isEmpty();
+    private final Order order;
+    /**
+     * Decides whether the children of a node are visited, null to visit all nodes.
+     */
+    private final Predicate<ExpressionNode> expand;
+    private final Children children = new Children();
+    private ExpressionNode[] stack = new ExpressionNode[16];
+    /**
+     * For post-order: whether the children of the node at the same stack index were pushed.
+     */
+    private boolean[] expanded;
+    private int size;
+
+    ExpressionNodeIterator(final ExpressionNode root, final Order order) {
+        this(root, order, null);
     }
 
-    @Override
-    public ExpressionNode next() {
-        if (list.isEmpty()) {
-            throw new NoSuchElementException("Iteration beyond the end of the collection");
+    ExpressionNodeIterator(final ExpressionNode root, final Order order, final Predicate<ExpressionNode> expand) {
+        this.order = order;
+        this.expand = expand;
+        if (order == Order.POST_ORDER) {
+            expanded = new boolean[stack.length];
         }
-        return list.remove(0);
+        push(root);
     }
 
-    private static class IteratorVisitor implements ExpressionNodeVisitor<Void> {
-        private final List<ExpressionNode> list;
+    /**
+     * Iterate a tree in pre-order.
+     *
+     * @param root the root of the tree
+     * @return an iterator over all nodes
+     */
+    public static ExpressionNodeIterator preOrder(final ExpressionNode root) {
+        return new ExpressionNodeIterator(root, Order.PRE_ORDER);
+    }
 
-        IteratorVisitor(final List<ExpressionNode> list) {
-            this.list = list;
-        }
+    /**
+     * Iterate a tree in post-order, the order in which a postfix program evaluates it.
+     *
+     * @param root the root of the tree
+     * @return an iterator over all nodes
+     */
+    public static ExpressionNodeIterator postOrder(final ExpressionNode root) {
+        return new ExpressionNodeIterator(root, Order.POST_ORDER);
+    }
 
-        @Override
-        public Void visit(final VariableNode node) {
-            list.add(node);
-            return null;
-        }
+    /**
+     * Iterate a tree in pre-order, skipping the children of some nodes.
+     *
+     * @param root   the root of the tree
+     * @param expand called once per node when it is returned, the children are only
+     *               visited if it returns true
+     * @return an iterator over the expanded nodes and their children
+     */
+    public static ExpressionNodeIterator preOrder(final ExpressionNode root, final Predicate<ExpressionNode> expand) {
+        return new ExpressionNodeIterator(root, Order.PRE_ORDER, expand);
+    }
 
-        @Override
-        public Void visit(final ConstantNode node) {
-            list.add(node);
-            return null;
-        }
+    /**
+     * Iterate a tree in post-order, skipping the children of some nodes.
+     *
+     * @param root   the root of the tree
+     * @param expand called once per node before its children would be visited, the
+     *               children are only visited if it returns true
+     * @return an iterator over the expanded nodes and their children
+     */
+    public static ExpressionNodeIterator postOrder(final ExpressionNode root, final Predicate<ExpressionNode> expand) {
+        return new ExpressionNodeIterator(root, Order.POST_ORDER, expand);
+    }
 
-        @Override
-        public Void visit(final ExponentiationNode node) {
-            list.add(node);
-            node.getBase().accept(this);
-            node.getExponent().accept(this);
-            return null;
-        }
+    /**
+     * Iterate a tree in reverse post-order.
+     *
+     * @param root the root of the tree
+     * @return an iterator over all nodes
+     */
+    public static ExpressionNodeIterator reversePostOrder(final ExpressionNode root) {
+        return new ExpressionNodeIterator(root, Order.REVERSE_POST_ORDER);
+    }
 
-        @Override
-        public Void visit(final FunctionNode node) {
-            list.add(node);
-            node.getArgument().accept(this);
-            return null;
+    private void push(final ExpressionNode node) {
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
+            if (expanded != null) {
+                expanded = Arrays.copyOf(expanded, size * 2);
+            }
         }
-
-        @Override
-        public Void visit(final AdditionNode node) {
-            list.add(node);
-            node.getAddendLeft().accept(this);
-            node.getAddendRight().accept(this);
-            return null;
+        if (expanded != null) {
+            expanded[size] = false;
         }
+        stack[size++] = node;
+    }
 
-        @Override
-        public Void visit(final SubtractionNode node) {
-            list.add(node);
-            node.getMinuend().accept(this);
-            node.getSubtrahend().accept(this);
-            return null;
-        }
+    @Override
+    public boolean hasNext() {
+        return size > 0;
+    }
 
-        @Override
-        public Void visit(final MultiplicationNode node) {
-            list.add(node);
-            node.getMultiplicand().accept(this);
-            node.getMultiplier().accept(this);
-            return null;
+    @Override
+    public ExpressionNode next() {
+        if (size == 0) {
+            throw new NoSuchElementException("Iteration beyond the end of the collection");
+        }
+        if (order == Order.POST_ORDER) {
+            while (!expanded[size - 1]) {
+                expanded[size - 1] = true;
+                pushChildren(stack[size - 1], true);
+            }
         }
+        ExpressionNode node = stack[--size];
+        stack[size] = null;
+        if (order != Order.POST_ORDER) {
+            pushChildren(node, order == Order.PRE_ORDER);
+        }
+        return node;
+    }
 
-        @Override
-        public Void visit(final DivNode node) {
-            list.add(node);
-            node.getNumerator().accept(this);
-            node.getDenominator().accept(this);
-            return null;
+    /**
+     * Push the children of a node, so that the left one is popped first or last.
+     */
+    private void pushChildren(final ExpressionNode node, final boolean leftFirst) {
+        if (expand != null && !expand.test(node)) {
+            return;
+        }
+        node.accept(children);
+        if (children.count == 1) {
+            push(children.left);
+        } else if (children.count == 2) {
+            if (leftFirst) {
+                push(children.right);
+                push(children.left);
+            } else {
+                push(children.left);
+                push(children.right);
+            }
         }
     }
 }
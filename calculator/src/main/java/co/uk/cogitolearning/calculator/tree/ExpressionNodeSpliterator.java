@@ -0,0 +1,101 @@
+package co.uk.cogitolearning.calculator.tree;
+
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A Spliterator over the nodes of an expression tree in pre-order.
+ *
+ * <p>Like ExpressionNodeIterator the tree is walked lazily on an explicit stack of
+ * pending subtrees. Splitting hands all pending subtrees but the last one to a new
+ * spliterator, which covers a prefix of the encounter order as required for ORDERED
+ * spliterators, so large trees can be processed by parallel streams.
+ */
+public final class ExpressionNodeSpliterator implements Spliterator<ExpressionNode> {
+    private final Children children = new Children();
+    /**
+     * A single node that comes before all pending subtrees, its children are already
+     * on the stack. Null if there is none.
+     */
+    private ExpressionNode head;
+    /**
+     * Pending subtrees, the top of the stack comes first.
+     */
+    private ExpressionNode[] stack;
+    private int size;
+
+    public ExpressionNodeSpliterator(final ExpressionNode root) {
+        this(null, new ExpressionNode[]{root, null, null, null}, 1);
+    }
+
+    private ExpressionNodeSpliterator(final ExpressionNode head, final ExpressionNode[] stack, final int size) {
+        this.head = head;
+        this.stack = stack;
+        this.size = size;
+    }
+
+    private void push(final ExpressionNode node) {
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
+        }
+        stack[size++] = node;
+    }
+
+    private void pushChildren(final ExpressionNode node) {
+        node.accept(children);
+        if (children.count == 2) {
+            push(children.right);
+        }
+        if (children.count > 0) {
+            push(children.left);
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super ExpressionNode> action) {
+        ExpressionNode node = head;
+        if (node != null) {
+            head = null;
+        } else if (size > 0) {
+            node = stack[--size];
+            stack[size] = null;
+            pushChildren(node);
+        } else {
+            return false;
+        }
+        action.accept(node);
+        return true;
+    }
+
+    @Override
+    public Spliterator<ExpressionNode> trySplit() {
+        if (size == 1 && head == null) {
+            // expand the only pending subtree, its root becomes the head
+            head = stack[--size];
+            stack[size] = null;
+            pushChildren(head);
+        }
+        if (size == 0 || (size == 1 && head == null)) {
+            return null;
+        }
+        // the prefix gets the head and all subtrees above the bottom of the stack
+        ExpressionNode[] prefix = new ExpressionNode[Math.max(size - 1, 4)];
+        System.arraycopy(stack, 1, prefix, 0, size - 1);
+        ExpressionNodeSpliterator split = new ExpressionNodeSpliterator(head, prefix, size - 1);
+        Arrays.fill(stack, 1, size, null);
+        head = null;
+        size = 1;
+        return split;
+    }
+
+    @Override
+    public long estimateSize() {
+        return size == 0 && head == null ? 0 : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+}
@@ -0,0 +1,313 @@
+package co.uk.cogitolearning.calculator.tree;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A NodeFactory that returns the same node for structurally identical subtrees.
+ *
+ * <p>Nodes are built bottom up, so the children of a new node are already unique and
+ * two nodes are structurally identical exactly if they have the same type, the same
+ * value and the same child objects. The lookup key therefore compares children by
+ * identity and caches its hash code, so interning a node takes constant time instead
+ * of the deep equals and hashCode of the node classes.
+ *
+ * <p>The factory counts how many requested nodes were shared instead of created and
+ * estimates the memory this saved. Instances are not thread safe.
+ */
+public final class HashConsingNodeFactory implements NodeFactory {
+    /**
+     * Estimated size of a VariableNode with compressed references: header and one reference.
+     */
+    private static final int VARIABLE_NODE_BYTES = 16;
+    /**
+     * Estimated size of all other nodes with compressed references: header and up to
+     * eight bytes of fields, padded to 24 bytes.
+     */
+    private static final int NODE_BYTES = 24;
+
+    private static final int CONSTANT = 0;
+    private static final int VARIABLE = 1;
+    private static final int ADDITION = 2;
+    private static final int SUBTRACTION = 3;
+    private static final int MULTIPLICATION = 4;
+    private static final int DIVISION = 5;
+    private static final int EXPONENTIATION = 6;
+    /**
+     * Function nodes use FUNCTION plus the function id as kind.
+     */
+    private static final int FUNCTION = 16;
+
+    private final Map<Key, ExpressionNode> nodes = new HashMap<>();
+    private long requestedNodes;
+    private long sharedNodes;
+    private long bytesSaved;
+
+    /**
+     * Rebuild a tree through this factory, so that identical subtrees become one node.
+     *
+     * @param tree the root of a tree or DAG, it is not modified
+     * @return the root of the DAG
+     */
+    public ExpressionNode intern(final ExpressionNode tree) {
+        Interner interner = new Interner();
+        // a node with several parents is interned once, so a DAG takes time linear in its unique nodes
+        Map<ExpressionNode, ExpressionNode> interned = new IdentityHashMap<>();
+        ExpressionNodeIterator nodeIterator = ExpressionNodeIterator.postOrder(tree,
+                node -> !interned.containsKey(node));
+        while (nodeIterator.hasNext()) {
+            ExpressionNode node = nodeIterator.next();
+            ExpressionNode result = interned.get(node);
+            if (result != null) {
+                interner.push(result);
+            } else {
+                node.accept(interner);
+                interned.put(node, interner.results[interner.size - 1]);
+            }
+        }
+        return interner.results[0];
+    }
+
+    @Override
+    public ExpressionNode constant(final double value) {
+        return intern(new Key(CONSTANT, Double.doubleToLongBits(value), null, null, null), null);
+    }
+
+    @Override
+    public ExpressionNode variable(final String name) {
+        return intern(new Key(VARIABLE, 0, name, null, null), null);
+    }
+
+    @Override
+    public ExpressionNode function(final int function, final ExpressionNode argument) {
+        return intern(new Key(FUNCTION + function, 0, null, argument, null), null);
+    }
+
+    @Override
+    public ExpressionNode addition(final ExpressionNode left, final ExpressionNode right) {
+        return intern(new Key(ADDITION, 0, null, left, right), null);
+    }
+
+    @Override
+    public ExpressionNode subtraction(final ExpressionNode left, final ExpressionNode right) {
+        return intern(new Key(SUBTRACTION, 0, null, left, right), null);
+    }
+
+    @Override
+    public ExpressionNode multiplication(final ExpressionNode left, final ExpressionNode right) {
+        return intern(new Key(MULTIPLICATION, 0, null, left, right), null);
+    }
+
+    @Override
+    public ExpressionNode division(final ExpressionNode left, final ExpressionNode right) {
+        return intern(new Key(DIVISION, 0, null, left, right), null);
+    }
+
+    @Override
+    public ExpressionNode exponentiation(final ExpressionNode left, final ExpressionNode right) {
+        return intern(new Key(EXPONENTIATION, 0, null, left, right), null);
+    }
+
+    /**
+     * Look up a node, or add it if there is none yet.
+     *
+     * @param key      the structure of the node
+     * @param existing an existing node with that structure to reuse, or null to create one
+     */
+    private ExpressionNode intern(final Key key, final ExpressionNode existing) {
+        requestedNodes++;
+        ExpressionNode node = nodes.get(key);
+        if (node != null) {
+            sharedNodes++;
+            bytesSaved += key.kind == VARIABLE ? VARIABLE_NODE_BYTES : NODE_BYTES;
+            return node;
+        }
+        node = existing != null ? existing : key.create();
+        nodes.put(key, node);
+        return node;
+    }
+
+    /**
+     * Get the number of nodes requested from this factory, including those of interned trees.
+     *
+     * @return the number of requested nodes
+     */
+    public long getRequestedNodes() {
+        return requestedNodes;
+    }
+
+    /**
+     * Get the number of requested nodes that were answered with an existing node.
+     *
+     * @return the number of shared nodes
+     */
+    public long getSharedNodes() {
+        return sharedNodes;
+    }
+
+    /**
+     * Get the number of distinct nodes this factory holds.
+     *
+     * @return the number of unique nodes
+     */
+    public int getUniqueNodes() {
+        return nodes.size();
+    }
+
+    /**
+     * Estimate the memory saved by sharing nodes, assuming compressed references.
+     *
+     * @return the estimated number of bytes not allocated
+     */
+    public long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    /**
+     * The structure of a node: its kind, its value and the identity of its children.
+     */
+    private static final class Key {
+        private final int kind;
+        private final long bits;
+        private final String name;
+        private final ExpressionNode left;
+        private final ExpressionNode right;
+        private final int hash;
+
+        Key(final int kind, final long bits, final String name, final ExpressionNode left,
+            final ExpressionNode right) {
+            this.kind = kind;
+            this.bits = bits;
+            this.name = name;
+            this.left = left;
+            this.right = right;
+            int h = kind;
+            h = 31 * h + Long.hashCode(bits);
+            h = 31 * h + (name == null ? 0 : name.hashCode());
+            h = 31 * h + System.identityHashCode(left);
+            h = 31 * h + System.identityHashCode(right);
+            this.hash = h;
+        }
+
+        ExpressionNode create() {
+            switch (kind) {
+                case CONSTANT:
+                    return new ConstantNode(Double.longBitsToDouble(bits));
+                case VARIABLE:
+                    return new VariableNode(name);
+                case ADDITION:
+                    return new AdditionNode(left, right);
+                case SUBTRACTION:
+                    return new SubtractionNode(left, right);
+                case MULTIPLICATION:
+                    return new MultiplicationNode(left, right);
+                case DIVISION:
+                    return new DivNode(left, right);
+                case EXPONENTIATION:
+                    return new ExponentiationNode(left, right);
+                default:
+                    return new FunctionNode(kind - FUNCTION, left);
+            }
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash && kind == key.kind && bits == key.bits && left == key.left
+                    && right == key.right && (name == null ? key.name == null : name.equals(key.name));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Interns the nodes of a tree in post-order, keeping the interned children on a stack.
+     * A node is reused if it is the first of its structure and its children did not change.
+     */
+    private final class Interner implements ExpressionNodeVisitor<Void> {
+        private ExpressionNode[] results = new ExpressionNode[16];
+        private int size;
+
+        private void push(final ExpressionNode node) {
+            if (size == results.length) {
+                results = Arrays.copyOf(results, size * 2);
+            }
+            results[size++] = node;
+        }
+
+        private ExpressionNode pop() {
+            ExpressionNode node = results[--size];
+            results[size] = null;
+            return node;
+        }
+
+        private void binary(final int kind, final ExpressionNode node, final ExpressionNode oldLeft,
+                            final ExpressionNode oldRight) {
+            ExpressionNode right = pop();
+            ExpressionNode left = pop();
+            boolean unchanged = left == oldLeft && right == oldRight;
+            push(intern(new Key(kind, 0, null, left, right), unchanged ? node : null));
+        }
+
+        @Override
+        public Void visit(final VariableNode node) {
+            push(intern(new Key(VARIABLE, 0, node.getName(), null, null), node));
+            return null;
+        }
+
+        @Override
+        public Void visit(final ConstantNode node) {
+            push(intern(new Key(CONSTANT, Double.doubleToLongBits(node.getValue()), null, null, null), node));
+            return null;
+        }
+
+        @Override
+        public Void visit(final FunctionNode node) {
+            ExpressionNode argument = pop();
+            ExpressionNode existing = argument == node.getArgument() ? node : null;
+            push(intern(new Key(FUNCTION + node.getFunction(), 0, null, argument, null), existing));
+            return null;
+        }
+
+        @Override
+        public Void visit(final ExponentiationNode node) {
+            binary(EXPONENTIATION, node, node.getBase(), node.getExponent());
+            return null;
+        }
+
+        @Override
+        public Void visit(final AdditionNode node) {
+            binary(ADDITION, node, node.getAddendLeft(), node.getAddendRight());
+            return null;
+        }
+
+        @Override
+        public Void visit(final SubtractionNode node) {
+            binary(SUBTRACTION, node, node.getMinuend(), node.getSubtrahend());
+            return null;
+        }
+
+        @Override
+        public Void visit(final MultiplicationNode node) {
+            binary(MULTIPLICATION, node, node.getMultiplicand(), node.getMultiplier());
+            return null;
+        }
+
+        @Override
+        public Void visit(final DivNode node) {
+            binary(DIVISION, node, node.getNumerator(), node.getDenominator());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package co.uk.cogitolearning.calculator.tree;
+
+/**
+ * Creates expression nodes, used by the Parser to build trees.
+ *
+ * <p>The default factory creates a new node on every call. HashConsingNodeFactory
+ * returns the same node for structurally identical subtrees, which turns a tree
+ * into a DAG.
+ */
+public interface NodeFactory {
+    /**
+     * A factory that creates a new node on every call.
+     */
+    NodeFactory DEFAULT = new NodeFactory() {
+    };
+
+    default ExpressionNode constant(final double value) {
+        return new ConstantNode(value);
+    }
+
+    default ExpressionNode variable(final String name) {
+        return new VariableNode(name);
+    }
+
+    default ExpressionNode function(final int function, final ExpressionNode argument) {
+        return new FunctionNode(function, argument);
+    }
+
+    default ExpressionNode addition(final ExpressionNode left, final ExpressionNode right) {
+        return new AdditionNode(left, right);
+    }
+
+    default ExpressionNode subtraction(final ExpressionNode left, final ExpressionNode right) {
+        return new SubtractionNode(left, right);
+    }
+
+    default ExpressionNode multiplication(final ExpressionNode left, final ExpressionNode right) {
+        return new MultiplicationNode(left, right);
+    }
+
+    default ExpressionNode division(final ExpressionNode left, final ExpressionNode right) {
+        return new DivNode(left, right);
+    }
+
+    default ExpressionNode exponentiation(final ExpressionNode left, final ExpressionNode right) {
+        return new ExponentiationNode(left, right);
+    }
+}
@@ -0,0 +1,227 @@
+package co.uk.cogitolearning.calculator;
+
+import co.uk.cogitolearning.calculator.math.MathPolicy;
+import co.uk.cogitolearning.calculator.metrics.CalculatorMetrics;
+import co.uk.cogitolearning.calculator.program.Program;
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.junit.jupiter.params.provider.Arguments.arguments;
+
+/**
+ * Checks that evaluation allocates nothing once warmed up, by reading the bytes the
+ * JVM has allocated for the test thread before and after many evaluations.
+ */
+public class AllocationTest {
+    private static final int WARM_UP_CALLS = 50_000;
+    private static final int CALLS = 10_000;
+    private static final int REPEATS = 5;
+
+    private final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final long threadId = Thread.currentThread().getId();
+    private final Map<String, Double> variables = new HashMap<>();
+    /**
+     * Receives every result so that the evaluations cannot be optimized away.
+     */
+    private double sink;
+
+    @BeforeEach
+    public void setUp() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        variables.put("x", 0.75);
+        variables.put("y", -2.5);
+        variables.put("z", 3.0);
+    }
+
+    static Stream<Arguments> expressions() {
+        return Stream.of(
+                arguments("x*y+z", MathPolicy.STRICT),
+                arguments("2*(1+sin(x))^2-ln(z)/y", MathPolicy.STRICT),
+                arguments("sin(x*y)+cos(x*y)*sin(x*y)", MathPolicy.STRICT),
+                arguments("exp(x)*log2(z)-tan(y)", MathPolicy.FAST)
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("expressions")
+    public void shouldEvaluateWithBindingsWithoutAllocating(String expresion, MathPolicy policy) {
+        // Given
+        CompiledExpression expression = new Calculator().withMathPolicy(policy).compile(expresion);
+        Bindings bindings = expression.bind(variables);
+
+        // When
+        long allocated = allocatedBytes(bindings::evaluate);
+
+        // Then
+        assertThat(allocated).as(expresion).isZero();
+    }
+
+    @ParameterizedTest
+    @MethodSource("expressions")
+    public void shouldEvaluateWithMapWithoutAllocating(String expresion, MathPolicy policy) {
+        // Given
+        CompiledExpression expression = new Calculator().withMathPolicy(policy).compile(expresion);
+        double[] values = new double[expression.getVariables().size()];
+        for (String name : expression.getVariables()) {
+            values[expression.slotOf(name)] = variables.get(name);
+        }
+
+        // When
+        long withMap = allocatedBytes(() -> expression.evaluate(variables));
+        long withArray = allocatedBytes(() -> expression.evaluate(values));
+
+        // Then
+        assertThat(withMap).as(expresion).isZero();
+        assertThat(withArray).as(expresion).isZero();
+    }
+
+    @ParameterizedTest
+    @MethodSource("expressions")
+    public void shouldRunEveryBackendWithoutAllocating(String expresion, MathPolicy policy) {
+        // Given
+        CompiledExpression expression = new Calculator().withMathPolicy(policy).compile(expresion);
+        double[] values = new double[expression.getVariables().size()];
+        for (String name : expression.getVariables()) {
+            values[expression.slotOf(name)] = variables.get(name);
+        }
+
+        for (Backend backend : Backend.values()) {
+            // When
+            DoubleEvaluator evaluator = expression.evaluator(backend);
+            long allocated = allocatedBytes(() -> evaluator.evaluate(values));
+
+            // Then
+            assertThat(allocated).as(expresion + " with " + backend).isZero();
+        }
+    }
+
+    @Test
+    public void shouldCalculateCachedExpressionWithoutAllocating() {
+        // Given
+        Calculator calculator = new Calculator()
+                .withVariable("x", 0.75)
+                .withVariable("y", -2.5);
+
+        // When
+        long allocated = allocatedBytes(() -> calculator.calculate("2*(1+sin(x))^2-y"));
+
+        // Then
+        assertThat(allocated).isZero();
+        assertThat(calculator.getCacheStats().getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldEvaluateGradientWithoutAllocating() {
+        // Given
+        CompiledExpression expression = new Calculator().compile("sin(x*y)*exp(x)+x^y");
+        double[] values = {0.75, 2.5};
+        double[] gradient = new double[2];
+
+        // When
+        long allocated = allocatedBytes(() -> expression.evaluateGradient(values, gradient));
+
+        // Then
+        assertThat(allocated).isZero();
+    }
+
+    @Test
+    public void shouldEvaluateFormulaSetWithoutAllocating() {
+        // Given
+        FormulaSet formulas = new Calculator().compileAll("sin(x*y)+1", "2*sin(x*y)", "x*y");
+        double[] values = {0.75, 2.5};
+        double[] results = new double[formulas.size()];
+
+        // When
+        long allocated = allocatedBytes(() -> {
+            formulas.evaluate(values, results);
+            return results[0];
+        });
+
+        // Then
+        assertThat(allocated).isZero();
+    }
+
+    @Test
+    public void shouldEvaluateBatchWithSuppliedStackWithoutAllocating() {
+        // Given
+        Program program = new Calculator().compile("x*y+sin(x)").getProgram();
+        double[][] columns = {{0.5, 1, 1.5, 2}, {4, 3, 2, 1}};
+        double[] out = new double[4];
+        double[][] stack = program.newBlockStack();
+
+        // When
+        long allocated = allocatedBytes(() -> {
+            program.evaluateBatch(columns, 0, out.length, out, stack);
+            return out[0];
+        });
+
+        // Then
+        assertThat(allocated).isZero();
+    }
+
+    @Test
+    public void shouldEvaluateWithMetricsEnabledWithoutAllocating() {
+        // Given
+        CalculatorMetrics metrics = CalculatorMetrics.getInstance();
+        CompiledExpression expression = new Calculator().compile("x*y+sin(z)");
+        Bindings bindings = expression.bind(variables);
+        metrics.setEnabled(true);
+
+        try {
+            // When
+            long allocated = allocatedBytes(bindings::evaluate);
+
+            // Then
+            assertThat(allocated).isZero();
+        } finally {
+            metrics.setEnabled(false);
+            metrics.reset();
+        }
+    }
+
+    /**
+     * Measure the bytes allocated by the evaluations after a warm up.
+     *
+     * <p>The smallest of several measurements is taken, so that a one-off allocation,
+     * for example by class loading or the JIT, does not fail the test, and the bytes
+     * the measurement allocates itself are subtracted.
+     *
+     * @param evaluation a single evaluation
+     * @return the bytes allocated by CALLS evaluations
+     */
+    private long allocatedBytes(final DoubleSupplier evaluation) {
+        run(evaluation, WARM_UP_CALLS);
+        long overhead = Long.MAX_VALUE;
+        long allocated = Long.MAX_VALUE;
+        for (int repeat = 0; repeat < REPEATS; repeat++) {
+            long start = threads.getThreadAllocatedBytes(threadId);
+            long before = threads.getThreadAllocatedBytes(threadId);
+            run(evaluation, CALLS);
+            long after = threads.getThreadAllocatedBytes(threadId);
+            overhead = Math.min(overhead, before - start);
+            allocated = Math.min(allocated, after - before);
+        }
+        return Math.max(0, allocated - overhead);
+    }
+
+    private void run(final DoubleSupplier evaluation, final int calls) {
+        double sum = 0;
+        for (int call = 0; call < calls; call++) {
+            sum += evaluation.getAsDouble();
+        }
+        sink += sum;
+    }
+}
@@ -1,5 +1,7 @@
 package co.uk.cogitolearning.calculator;
 
+import co.uk.cogitolearning.calculator.math.MathPolicy;
+import co.uk.cogitolearning.calculator.optimizer.SimplificationMode;
 import co.uk.cogitolearning.calculator.tree.*;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
@@ -7,9 +9,21 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.params.provider.Arguments.arguments;
 
 public class CalculatorTest {
@@ -69,10 +83,263 @@ public class CalculatorTest {
                 arguments("5-1-pi", 5 - 1 - Math.PI),
                 arguments("log2(2)", 1.0),
                 arguments("log(10)", 1.0),
-                arguments("1+2+3", 1.0 + 2.0 + 3.0)
+                arguments("1+2+3", 1.0 + 2.0 + 3.0),
+                arguments("2*3+4", 2.0 * 3.0 + 4.0),
+                arguments("8/4/2", 8.0 / 4.0 / 2.0),
+                arguments("4-2*3", 4.0 - 2.0 * 3.0),
+                arguments("sin(pi/2)+1", 2.0)
         );
     }
 
+    @Test
+    public void shouldEvaluateCompiledExpressionRepeatedly() {
+        // given
+        CompiledExpression expression = new Calculator().compile("1+2*x");
+        Map<String, Double> variables = new HashMap<>();
+        variables.put("pi", Math.PI);
+
+        for (int x = 0; x < 10; x++) {
+            // when
+            variables.put("x", (double) x);
+            double value = expression.evaluate(variables);
+
+            // then
+            assertEquals(2 * x + 1.0, value, 0.00001);
+        }
+    }
+
+    @Test
+    public void shouldCalculateCompiledExpressionWithCalculatorVariables() {
+        // given
+        Calculator calculator = new Calculator()
+                .withVariable("pi", Math.PI);
+        CompiledExpression expression = calculator.compile("4-pi");
+
+        // when
+        double value = calculator.calculate(expression);
+
+        // then
+        assertEquals(4 - Math.PI, value, 0.00001);
+        assertEquals("4-pi", expression.getSource());
+    }
+
+    @Test
+    public void shouldReuseVisitorAcrossEvaluations() {
+        // given
+        CompiledExpression expression = new Calculator().compile("x*x+x/2");
+        CalculationVisitor visitor = new CalculationVisitor();
+
+        for (int x = 1; x <= 100; x++) {
+            // when
+            visitor.addVariable("x", (double) x);
+            double value = expression.evaluate(visitor);
+
+            // then
+            assertEquals(x * x + x / 2.0, value, 0.00001);
+        }
+    }
+
+    @Test
+    public void shouldReportMissingVariable() {
+        // given
+        CompiledExpression expression = new Calculator().compile("1+y");
+
+        // when / then
+        EvaluationException exception = assertThrows(EvaluationException.class, expression::evaluate);
+        assertEquals("Variable 'y' was not initialized.", exception.getMessage());
+    }
+
+    @Test
+    public void shouldEvaluateWithSlotIndexedValues() {
+        // given
+        CompiledExpression expression = new Calculator().compile("x*y-x/z");
+        double[] values = new double[3];
+        values[expression.slotOf("x")] = 6;
+        values[expression.slotOf("y")] = 2;
+        values[expression.slotOf("z")] = 3;
+
+        // when / then
+        assertEquals(Arrays.asList("x", "y", "z"), new ArrayList<>(expression.getVariables()));
+        assertEquals(-1, expression.slotOf("w"));
+        assertEquals(10, expression.evaluate(values), 0.0);
+    }
+
+    @Test
+    public void shouldReuseBindings() {
+        // given
+        CompiledExpression expression = new Calculator().compile("x^2+y");
+        Bindings bindings = expression.newBindings().set("y", 1);
+
+        // when / then
+        assertEquals(false, bindings.isComplete());
+        for (int x = 0; x < 10; x++) {
+            assertEquals(x * x + 1, bindings.set("x", x).evaluate(), 0.0);
+        }
+    }
+
+    @Test
+    public void shouldReportMissingVariableWhenBinding() {
+        // given
+        CompiledExpression expression = new Calculator().compile("x+y");
+        Map<String, Double> variables = new HashMap<>();
+        variables.put("x", 1.0);
+
+        // when / then
+        EvaluationException exception = assertThrows(EvaluationException.class, () -> expression.bind(variables));
+        assertEquals("Variable 'y' was not initialized.", exception.getMessage());
+        exception = assertThrows(EvaluationException.class, () -> expression.newBindings().set(0, 1).evaluate());
+        assertEquals("Variable 'y' was not initialized.", exception.getMessage());
+        assertThrows(EvaluationException.class, () -> expression.newBindings().set("z", 1));
+    }
+
+    @Test
+    public void shouldCalculateBatch() {
+        // given
+        Calculator calculator = new Calculator().withVariable("b", 10);
+        CompiledExpression expression = calculator.compile("a*2+b");
+        Map<String, double[]> columns = new HashMap<>();
+        columns.put("a", new double[]{1, 2, 3, 4});
+
+        // when
+        double[] result = calculator.calculateBatch(expression, columns, 3);
+
+        // then
+        assertEquals(Arrays.toString(new double[]{12, 14, 16}), Arrays.toString(result));
+        assertThrows(EvaluationException.class, () -> expression.evaluateBatch(columns, new double[3]));
+        assertThrows(EvaluationException.class,
+                () -> expression.evaluateBatch(new double[][]{{1}, {2}}, new double[3]));
+    }
+
+    @Test
+    public void shouldVisitSharedNodesOnce() {
+        // given a DAG of 7 nodes that stands for a tree of 63
+        CompiledExpression expression = new Calculator().withSimplification(SimplificationMode.FAST)
+                .compile("(x+y)^16");
+        CalculationVisitor visitor = new CalculationVisitor();
+        visitor.addVariable("x", 0.75);
+        visitor.addVariable("y", 0.5);
+
+        // when
+        double value = expression.evaluate(visitor);
+
+        // then
+        assertEquals(expression.evaluate(new double[]{0.75, 0.5}), value);
+        assertEquals(value, expression.evaluate(visitor));
+        // 63 tree nodes alone would take 1512 bytes
+        assertTrue(expression.getEstimatedSize() < 1000, "estimated size " + expression.getEstimatedSize());
+    }
+
+    @Test
+    public void shouldEvaluateFormulaSet() {
+        // given
+        Calculator calculator = new Calculator().withVariable("x", 2).withVariable("y", 3).withVariable("z", 0.5);
+        List<String> sources = Arrays.asList("x*y+sin(z)", "(x*y)^2", "sin(z)/y", "z");
+        FormulaSet formulas = calculator.compileAll(sources);
+        Map<String, Double> variables = new HashMap<>();
+        variables.put("x", 2.0);
+        variables.put("y", 3.0);
+        variables.put("z", 0.5);
+
+        // when
+        double[] results = formulas.evaluate(variables);
+
+        // then
+        assertEquals(4, formulas.size());
+        assertEquals(Arrays.asList("x", "y", "z"), new ArrayList<>(formulas.getVariables()));
+        for (int i = 0; i < sources.size(); i++) {
+            assertEquals(calculator.calculate(sources.get(i)), results[i], sources.get(i));
+        }
+        assertThrows(EvaluationException.class, () -> formulas.evaluate(new double[2], new double[4]));
+    }
+
+    @Test
+    public void shouldCalculateWithFastMath() {
+        // given
+        String source = "sin(x)*cos(y)+exp(x)-ln(y)+tan(x)/log(y)+log2(y)";
+        CompiledExpression strict = new Calculator().compile(source);
+        CompiledExpression fast = new Calculator().withMathPolicy(MathPolicy.FAST).compile(source);
+        double[] values = new double[2];
+        values[fast.slotOf("x")] = 0.75;
+        values[fast.slotOf("y")] = 3.5;
+        Map<String, Double> variables = new HashMap<>();
+        variables.put("x", 0.75);
+        variables.put("y", 3.5);
+
+        // when
+        double value = fast.evaluate(values);
+        double[] out = new double[1];
+        fast.evaluateBatch(new double[][]{{values[0]}, {values[1]}}, out);
+        double[] gradient = new double[2];
+        double[] strictGradient = new double[2];
+        fast.evaluateGradient(values, gradient);
+        strict.evaluateGradient(values, strictGradient);
+
+        // then
+        assertEquals(MathPolicy.FAST, fast.getProgram().getMathPolicy());
+        assertEquals(MathPolicy.STRICT, strict.getProgram().getMathPolicy());
+        assertEquals(strict.evaluate(values), value, Math.abs(value) * 1e-9);
+        assertEquals(value, out[0]);
+        assertEquals(value, fast.evaluator(Backend.BYTECODE).evaluate(values));
+        assertEquals(value, fast.evaluator(Backend.CLOSURE).evaluate(values));
+        assertEquals(value, fast.evaluate(new CalculationVisitor(variables, MathPolicy.FAST)));
+        assertEquals(fast.getProgram(), ExpressionCodec.decode(ByteBuffer.wrap(ExpressionCodec.encode(fast)))
+                .getProgram());
+        for (int slot = 0; slot < 2; slot++) {
+            assertEquals(strictGradient[slot], gradient[slot], Math.abs(strictGradient[slot]) * 1e-9);
+        }
+    }
+
+    @Test
+    public void shouldEvaluateGradient() {
+        // given
+        CompiledExpression expression = new Calculator().compile("x^2*y+sin(y)");
+        double[] values = new double[2];
+        values[expression.slotOf("x")] = 3;
+        values[expression.slotOf("y")] = 2;
+        double[] gradient = new double[2];
+
+        // when
+        double value = expression.evaluateGradient(values, gradient);
+        double[] out = new double[2];
+        double[][] gradients = new double[2][2];
+        double[][] columns = {{values[0], values[0]}, {values[1], values[1]}};
+        expression.evaluateGradientBatch(columns, out, gradients);
+
+        // then
+        assertEquals(18 + Math.sin(2), value, 1e-12);
+        assertEquals(12, gradient[expression.slotOf("x")], 1e-12);
+        assertEquals(9 + Math.cos(2), gradient[expression.slotOf("y")], 1e-12);
+        assertEquals(Arrays.toString(new double[]{value, value}), Arrays.toString(out));
+        assertEquals(Arrays.toString(new double[]{12, 12}), Arrays.toString(gradients[expression.slotOf("x")]));
+        assertThrows(EvaluationException.class, () -> expression.evaluateGradient(values, new double[1]));
+    }
+
+    @Test
+    public void shouldCalculateConcurrently() throws Exception {
+        // given
+        Calculator calculator = new Calculator()
+                .withVariable("pi", Math.PI);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Double>> results = new ArrayList<>();
+
+        // when
+        for (int t = 0; t < 4; t++) {
+            results.add(executor.submit(() -> {
+                double sum = 0;
+                for (int i = 0; i < 5000; i++) {
+                    sum += calculator.calculate("2*(1+sin(pi/2))^2");
+                }
+                return sum;
+            }));
+        }
+
+        // then
+        for (Future<Double> result : results) {
+            assertEquals(8.0 * 5000, result.get(60, TimeUnit.SECONDS), 0.001);
+        }
+        executor.shutdown();
+    }
+
     @Disabled
     @Test
     public void shouldParseRump() {
@@ -0,0 +1,208 @@
+package co.uk.cogitolearning.calculator.cache;
+
+import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.ParserException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEntry() {
+        // Given
+        BoundedCache<String, String> cache = new BoundedCache<>(1, 100, String::length);
+
+        // When
+        cache.get("a", String::toUpperCase);
+        cache.get("b", String::toUpperCase);
+
+        // Then
+        assertThat(cache.getIfPresent("a")).isNull();
+        assertThat(cache.getIfPresent("b")).isEqualTo("B");
+        assertThat(cache.stats().getEvictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldKeepRecentlyAccessedEntries() {
+        // Given two segments, even keys share the first one which holds two entries
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(3, 100, value -> 1);
+
+        // When
+        for (int key : new int[]{0, 2, 0, 4}) {
+            cache.get(key, k -> -k);
+        }
+
+        // Then
+        assertThat(cache.getIfPresent(0)).isEqualTo(0);
+        assertThat(cache.getIfPresent(2)).isNull();
+        assertThat(cache.getIfPresent(4)).isEqualTo(-4);
+        CacheStats stats = cache.stats();
+        assertThat(stats.getHitCount()).isEqualTo(1);
+        assertThat(stats.getMissCount()).isEqualTo(3);
+        assertThat(stats.getEvictionCount()).isEqualTo(1);
+        assertThat(stats.hitRate()).isEqualTo(0.25);
+        assertThat(stats.getTotalLoadTime()).isPositive();
+    }
+
+    @Test
+    public void shouldEvictByWeight() {
+        // Given a single segment that holds ten entries but only one unit of weight
+        BoundedCache<String, String> cache = new BoundedCache<>(10, 1, value -> 1);
+
+        // When
+        cache.get("a", String::toUpperCase);
+        cache.get("b", String::toUpperCase);
+
+        // Then
+        assertThat(cache.getIfPresent("a")).isNull();
+        assertThat(cache.getIfPresent("b")).isEqualTo("B");
+        assertThat(cache.stats().getWeight()).isEqualTo(1);
+        assertThat(cache.stats().getEvictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotCacheValuesHeavierThanTheLimit() {
+        // Given
+        BoundedCache<String, String> cache = new BoundedCache<>(1, 10, String::length);
+
+        // When
+        cache.get("short", key -> key);
+        String value = cache.get("much too long", key -> key);
+
+        // Then
+        assertThat(value).isEqualTo("much too long");
+        assertThat(cache.getIfPresent("short")).isEqualTo("short");
+        assertThat(cache.getIfPresent("much too long")).isNull();
+        assertThat(cache.stats().getWeight()).isEqualTo(5);
+        assertThat(cache.stats().getEvictionCount()).isZero();
+    }
+
+    @Test
+    public void shouldGiveEverySegmentSomeWeight() {
+        // Given a weight limit below the number of segments the size limit allows
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(1024, 4, value -> 1);
+
+        // When
+        for (int key = 0; key < 4; key++) {
+            cache.get(key, k -> k);
+        }
+
+        // Then
+        assertThat(cache.size()).isEqualTo(4);
+        assertThat(cache.stats().getEvictionCount()).isZero();
+    }
+
+    @Test
+    public void shouldApplyLimitsPerSegment() {
+        // Given sixteen segments of one entry, keys 0 and 16 share the first one
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(16, 100, value -> 1);
+
+        // When
+        cache.get(0, k -> k);
+        cache.get(16, k -> k);
+
+        // Then
+        assertThat(cache.getIfPresent(0)).isNull();
+        assertThat(cache.getIfPresent(16)).isEqualTo(16);
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.stats().getEvictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldGiveReadEntriesASecondChance() {
+        // Given a single segment of two entries
+        BoundedCache<String, String> cache = new BoundedCache<>(2, 1, value -> 0);
+        cache.get("a", String::toUpperCase);
+        cache.get("b", String::toUpperCase);
+
+        // When
+        cache.getIfPresent("a");
+        cache.get("c", String::toUpperCase);
+        cache.get("d", String::toUpperCase);
+
+        // Then
+        assertThat(cache.getIfPresent("a")).isEqualTo("A");
+        assertThat(cache.getIfPresent("b")).isNull();
+        assertThat(cache.getIfPresent("c")).isNull();
+        assertThat(cache.getIfPresent("d")).isEqualTo("D");
+        assertThat(cache.stats().getEvictionCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotCacheFailedLoads() {
+        // Given
+        BoundedCache<String, String> cache = new BoundedCache<>(10, 100, String::length);
+        AtomicInteger loads = new AtomicInteger();
+
+        // When
+        for (int i = 0; i < 2; i++) {
+            assertThrows(IllegalStateException.class, () -> cache.get("a", key -> {
+                loads.incrementAndGet();
+                throw new IllegalStateException();
+            }));
+        }
+
+        // Then
+        assertThat(loads.get()).isEqualTo(2);
+        assertThat(cache.stats().getLoadFailureCount()).isEqualTo(2);
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    public void shouldStayBoundedUnderConcurrentAccess() throws Exception {
+        // Given
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(64, 1000, value -> 1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+
+        // When
+        for (int thread = 0; thread < 4; thread++) {
+            int seed = thread;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    int key = (i * 31 + seed) % 200;
+                    assertThat(cache.get(key, k -> k * 2)).isEqualTo(key * 2);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // Then
+        CacheStats stats = cache.stats();
+        assertThat(stats.getSize()).isLessThanOrEqualTo(64);
+        assertThat(stats.getHitCount() + stats.getMissCount()).isEqualTo(80000);
+        assertThat(stats.getWeight()).isEqualTo(stats.getSize());
+    }
+
+    @Test
+    public void shouldCacheCalculatorExpressions() {
+        // Given
+        Calculator calculator = new Calculator().withVariable("x", 2);
+
+        // When
+        for (int i = 0; i < 10; i++) {
+            assertThat(calculator.calculate("x*x+1")).isEqualTo(5);
+        }
+        assertThrows(ParserException.class, () -> calculator.calculate("x+"));
+
+        // Then
+        CacheStats stats = calculator.getCacheStats();
+        assertThat(stats.getMissCount()).isEqualTo(2);
+        assertThat(stats.getHitCount()).isEqualTo(9);
+        assertThat(stats.getLoadFailureCount()).isEqualTo(1);
+        assertThat(stats.getSize()).isEqualTo(1);
+        assertThat(stats.getWeight()).isPositive();
+    }
+}
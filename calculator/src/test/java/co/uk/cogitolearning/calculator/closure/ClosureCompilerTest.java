@@ -0,0 +1,78 @@
+package co.uk.cogitolearning.calculator.closure;
+
+import co.uk.cogitolearning.calculator.Backend;
+import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.DoubleEvaluator;
+import co.uk.cogitolearning.calculator.program.Program;
+import co.uk.cogitolearning.calculator.program.ProgramCompiler;
+import co.uk.cogitolearning.calculator.program.ProgramTest;
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import co.uk.cogitolearning.calculator.tree.FunctionNode;
+import co.uk.cogitolearning.calculator.tree.VariableNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ClosureCompilerTest {
+
+    @Test
+    public void shouldEvaluateLikeInterpreter() {
+        Random random = new Random(5);
+        for (int i = 0; i < 1000; i++) {
+            // Given
+            ExpressionNode tree = ProgramTest.randomTree(random, 6);
+            Program program = ProgramCompiler.compile(tree);
+            DoubleEvaluator evaluator = ClosureCompiler.compile(tree, name -> slotOf(program, name));
+            double[] values = new double[program.getVariableCount()];
+            for (int slot = 0; slot < values.length; slot++) {
+                values[slot] = random.nextDouble() * 4 - 2;
+            }
+
+            // When
+            double actual = evaluator.evaluate(values);
+            double expected = program.evaluate(values, program.newStack());
+
+            // Then
+            assertThat(Double.doubleToLongBits(actual)).as(tree.toString())
+                    .isEqualTo(Double.doubleToLongBits(expected));
+        }
+    }
+
+    @Test
+    public void shouldCompileWithClosureBackend() {
+        // Given
+        CompiledExpression expression = new Calculator().compile("(x-1)*(y+2)/2^3+log2(8)");
+
+        // When
+        DoubleEvaluator evaluator = expression.evaluator(Backend.CLOSURE);
+
+        // Then
+        assertThat(evaluator.evaluate(new double[]{5, 2})).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldRejectDeepTrees() {
+        // Given
+        ExpressionNode tree = new VariableNode("x");
+        for (int i = 0; i < ClosureCompiler.MAX_DEPTH; i++) {
+            tree = new FunctionNode(FunctionNode.SQRT, tree);
+        }
+        ExpressionNode deepTree = tree;
+
+        // When / then
+        assertThrows(UnsupportedOperationException.class, () -> ClosureCompiler.compile(deepTree, name -> 0));
+    }
+
+    private static int slotOf(final Program program, final String name) {
+        for (int slot = 0; slot < program.getVariableCount(); slot++) {
+            if (program.getVariable(slot).equals(name)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,76 @@
+package co.uk.cogitolearning.calculator.codegen;
+
+import co.uk.cogitolearning.calculator.Backend;
+import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.DoubleEvaluator;
+import co.uk.cogitolearning.calculator.program.Program;
+import co.uk.cogitolearning.calculator.program.ProgramCompiler;
+import co.uk.cogitolearning.calculator.program.ProgramTest;
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import co.uk.cogitolearning.calculator.tree.HashConsingNodeFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BytecodeCompilerTest {
+
+    @Test
+    public void shouldEvaluateLikeInterpreter() {
+        Random random = new Random(3);
+        for (int i = 0; i < 300; i++) {
+            // Given
+            ExpressionNode tree = ProgramTest.randomTree(random, 6);
+            // every other expression is a DAG with temporaries
+            Program program = ProgramCompiler.compile(i % 2 == 0 ? tree : new HashConsingNodeFactory().intern(tree));
+            DoubleEvaluator evaluator = BytecodeCompiler.compile(program);
+            double[] values = new double[program.getVariableCount()];
+            for (int slot = 0; slot < values.length; slot++) {
+                values[slot] = random.nextDouble() * 4 - 2;
+            }
+
+            // When
+            double actual = evaluator.evaluate(values);
+            double expected = program.evaluate(values, program.newStack());
+
+            // Then
+            assertThat(Double.doubleToLongBits(actual)).as(program.toString())
+                    .isEqualTo(Double.doubleToLongBits(expected));
+        }
+    }
+
+    @Test
+    public void shouldGenerateClassForBytecodeBackend() {
+        // Given
+        CompiledExpression expression = new Calculator().compile("log2(x)*2.5+sqrt(y)-0^x+sqrt(y)");
+
+        // When
+        DoubleEvaluator evaluator = expression.evaluator(Backend.BYTECODE);
+
+        // Then
+        assertThat(evaluator.getClass().getSimpleName()).startsWith("GeneratedEvaluator");
+        assertThat(expression.getProgram().getTemporaryCount()).isEqualTo(1);
+        assertThat(evaluator.evaluate(new double[]{8, 16})).isEqualTo(15.5);
+    }
+
+    @Test
+    public void shouldFallBackToInterpreterForLargeExpressions() {
+        // Given
+        StringBuilder source = new StringBuilder("x");
+        for (int i = 0; i < BytecodeCompiler.MAX_CODE_LENGTH; i++) {
+            source.append("+x");
+        }
+        CompiledExpression expression = new Calculator().compile(source.toString());
+
+        // When
+        DoubleEvaluator evaluator = expression.evaluator(Backend.BYTECODE);
+
+        // Then
+        assertThrows(UnsupportedOperationException.class, () -> BytecodeCompiler.compile(expression.getProgram()));
+        assertThat(evaluator.getClass().getSimpleName()).doesNotStartWith("GeneratedEvaluator");
+        assertThat(evaluator.evaluate(new double[]{1})).isEqualTo(BytecodeCompiler.MAX_CODE_LENGTH + 1);
+    }
+}
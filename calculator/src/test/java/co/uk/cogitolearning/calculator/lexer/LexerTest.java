@@ -1,8 +1,20 @@
 package co.uk.cogitolearning.calculator.lexer;
 
-import org.junit.Test;
+import co.uk.cogitolearning.calculator.ParserException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class LexerTest {
 
@@ -11,9 +23,9 @@ public class LexerTest {
         // Given
         Lexer lexer = Lexer.getInstance();
         // When
-        lexer.tokenize("1+2");
+        List<Token> tokens = lexer.tokenize("1+2");
         // Then
-        assertThat(lexer.getTokens()).containsExactly(
+        assertThat(tokens).containsExactly(
                 new Token(Token.NUMBER, "1", 0),
                 new Token(Token.PLUS, "+", 1),
                 new Token(Token.NUMBER, "2", 2));
@@ -24,9 +36,9 @@ public class LexerTest {
         // Given
         Lexer lexer = Lexer.getInstance();
         // When
-        lexer.tokenize("1+2+3");
+        List<Token> tokens = lexer.tokenize("1+2+3");
         // Then
-        assertThat(lexer.getTokens()).containsExactly(
+        assertThat(tokens).containsExactly(
                 new Token(Token.NUMBER, "1", 0),
                 new Token(Token.PLUS, "+", 1),
                 new Token(Token.NUMBER, "2", 2),
@@ -39,9 +51,9 @@ public class LexerTest {
         // Given
         Lexer lexer = Lexer.getInstance();
         // When
-        lexer.tokenize("4-2-1");
+        List<Token> tokens = lexer.tokenize("4-2-1");
         // Then
-        assertThat(lexer.getTokens()).containsExactly(
+        assertThat(tokens).containsExactly(
                 new Token(Token.NUMBER, "4", 0),
                 new Token(Token.MINUS, "-", 1),
                 new Token(Token.NUMBER, "2", 2),
@@ -54,9 +66,9 @@ public class LexerTest {
         // Given
         Lexer lexer = Lexer.getInstance();
         // When
-        lexer.tokenize("6*(3+sin(3.1415/2))^5");
+        List<Token> tokens = lexer.tokenize("6*(3+sin(3.1415/2))^5");
         // Then
-        assertThat(lexer.getTokens()).containsExactly(
+        assertThat(tokens).containsExactly(
                 new Token(Token.NUMBER, "6", 0),
                 new Token(Token.MULT, "*", 1),
                 new Token(Token.OPEN_BRACKET, "(", 2),
@@ -79,9 +91,9 @@ public class LexerTest {
         // Given
         Lexer lexer = Lexer.getInstance();
         // When
-        lexer.tokenize("6*(3+sin(pi/2))^5");
+        List<Token> tokens = lexer.tokenize("6*(3+sin(pi/2))^5");
         // Then
-        assertThat(lexer.getTokens()).containsExactly(
+        assertThat(tokens).containsExactly(
                 new Token(Token.NUMBER, "6", 0),
                 new Token(Token.MULT, "*", 1),
                 new Token(Token.OPEN_BRACKET, "(", 2),
@@ -99,4 +111,140 @@ public class LexerTest {
         );
     }
 
+    @Test
+    public void tokenizeWhitespaceKeepsPositionsOfTrimmedInput() {
+        // Given
+        Lexer lexer = Lexer.getInstance();
+        // When
+        List<Token> tokens = lexer.tokenize("  1 +\t2  ");
+        // Then
+        assertThat(tokens).containsExactly(
+                new Token(Token.NUMBER, "1", 0),
+                new Token(Token.PLUS, "+", 2),
+                new Token(Token.NUMBER, "2", 4));
+    }
+
+    @Test
+    public void tokenizeFunctionNamesAndVariables() {
+        // Given
+        Lexer lexer = Lexer.getInstance();
+        // When
+        List<Token> tokens = lexer.tokenize("log2(sinx)+sin2*log 1.5e-3");
+        // Then
+        assertThat(tokens).containsExactly(
+                new Token(Token.FUNCTION, "log2", 0),
+                new Token(Token.OPEN_BRACKET, "(", 4),
+                new Token(Token.VARIABLE, "sinx", 5),
+                new Token(Token.CLOSE_BRACKET, ")", 9),
+                new Token(Token.PLUS, "+", 10),
+                new Token(Token.VARIABLE, "sin2", 11),
+                new Token(Token.MULT, "*", 15),
+                new Token(Token.FUNCTION, "log", 16),
+                new Token(Token.NUMBER, "1.5e-3", 20));
+    }
+
+    @Test
+    public void tokenizeUnexpectedCharacter() {
+        // Given
+        Lexer lexer = Lexer.getInstance();
+        // When / Then
+        assertThatThrownBy(() -> lexer.tokenize("1 + # 2"))
+                .isInstanceOf(ParserException.class)
+                .hasMessage("Unexpected character in input: # 2");
+    }
+
+    @Test
+    public void tokenizeLongInput() {
+        // Given
+        Lexer lexer = Lexer.getInstance();
+        StringBuilder expression = new StringBuilder("x0");
+        for (int i = 1; i < 20000; i++) {
+            expression.append(i % 2 == 0 ? " + " : "*").append("x").append(i);
+        }
+        // When
+        List<Token> tokens = lexer.tokenize(expression.toString());
+        // Then
+        assertThat(tokens).hasSize(39999);
+        assertThat(tokens.get(39998)).isEqualTo(new Token(Token.VARIABLE, "x19999", expression.length() - 6));
+    }
+
+    @Test
+    public void automatonPrefersLongestThenFirstPattern() {
+        // Given
+        Automaton automaton = new Automaton(Arrays.asList(
+                RegexParser.parse("if"),
+                RegexParser.parse("[a-z]+"),
+                RegexParser.parse("[0-9]{2,3}")), new int[]{1, 2, 3});
+        // When
+        long keyword = automaton.match("if", 0, 2);
+        long identifier = automaton.match("iffy", 0, 4);
+        long number = automaton.match("12345", 0, 5);
+        // Then
+        assertThat(Automaton.tokenId(keyword)).isEqualTo(1);
+        assertThat(Automaton.tokenId(identifier)).isEqualTo(2);
+        assertThat(Automaton.end(identifier)).isEqualTo(4);
+        assertThat(Automaton.tokenId(number)).isEqualTo(3);
+        assertThat(Automaton.end(number)).isEqualTo(3);
+        assertThat(automaton.match("+", 0, 1)).isEqualTo(Automaton.NO_MATCH);
+    }
+
+    @Test
+    public void unsupportedRegexIsRejected() {
+        assertThatThrownBy(() -> RegexParser.parse("^a")).isInstanceOf(PatternSyntaxException.class);
+        assertThatThrownBy(() -> RegexParser.parse("a*?")).isInstanceOf(PatternSyntaxException.class);
+        assertThatThrownBy(() -> RegexParser.parse("(a)\\1")).isInstanceOf(PatternSyntaxException.class);
+        assertThatThrownBy(() -> RegexParser.parse("a(?!b)c")).isInstanceOf(PatternSyntaxException.class);
+    }
+
+    @Test
+    public void tokenizeConcurrently() throws Exception {
+        // Given
+        Lexer lexer = Lexer.getInstance();
+        String[] expressions = {"1+2+3", "6*(3+sin(pi/2))^5", "log2(x)-y/4", "sqrt(a*a+b*b)"};
+        List<List<Token>> expected = new ArrayList<>();
+        for (String expression : expressions) {
+            expected.add(lexer.tokenize(expression));
+        }
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<>();
+        // When
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            results.add(executor.submit(() -> {
+                start.await();
+                int mismatches = 0;
+                for (int i = 0; i < 20000; i++) {
+                    int index = (i + offset) % expressions.length;
+                    if (!lexer.tokenize(expressions[index]).equals(expected.get(index))) {
+                        mismatches++;
+                    }
+                }
+                return mismatches;
+            }));
+        }
+        start.countDown();
+        // Then
+        for (Future<Integer> result : results) {
+            assertThat(result.get(60, TimeUnit.SECONDS)).isZero();
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void createdLexerCanBeExtendedWithoutAffectingSharedInstance() {
+        // Given
+        Lexer lexer = Lexer.create();
+        lexer.add("%", Token.DIV);
+        // When
+        List<Token> tokens = lexer.tokenize("4%2");
+        // Then
+        assertThat(tokens).containsExactly(
+                new Token(Token.NUMBER, "4", 0),
+                new Token(Token.DIV, "%", 1),
+                new Token(Token.NUMBER, "2", 2));
+        assertThatThrownBy(() -> Lexer.getInstance().tokenize("4%2")).isInstanceOf(ParserException.class);
+    }
+
 }
@@ -0,0 +1,126 @@
+package co.uk.cogitolearning.calculator.math;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.params.provider.Arguments.arguments;
+
+public class FastMathTest {
+    private static final double TRIG_ERROR = 2e-11;
+    private static final double EXP_ERROR = 2e-11;
+    private static final double LOG_ERROR = 2e-12;
+    private static final double[] SPECIAL_VALUES = {0.0, -0.0, 1.0, -1.0, Double.NaN, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, 1e7, -1e7, 710, -746};
+
+    private static Stream<Arguments> functions() {
+        DoubleUnaryOperator log2 = x -> Math.log(x) / Math.log(2);
+        return Stream.of(
+                arguments("sin", (DoubleUnaryOperator) FastMath::sin, (DoubleUnaryOperator) Math::sin, -10, 10,
+                        false, TRIG_ERROR),
+                arguments("sin", (DoubleUnaryOperator) FastMath::sin, (DoubleUnaryOperator) Math::sin, -1e6, 1e6,
+                        false, TRIG_ERROR),
+                arguments("cos", (DoubleUnaryOperator) FastMath::cos, (DoubleUnaryOperator) Math::cos, -10, 10,
+                        false, TRIG_ERROR),
+                arguments("cos", (DoubleUnaryOperator) FastMath::cos, (DoubleUnaryOperator) Math::cos, -1e6, 1e6,
+                        false, TRIG_ERROR),
+                arguments("tan", (DoubleUnaryOperator) FastMath::tan, (DoubleUnaryOperator) Math::tan, -10, 10,
+                        false, TRIG_ERROR),
+                arguments("tan", (DoubleUnaryOperator) FastMath::tan, (DoubleUnaryOperator) Math::tan, -1e6, 1e6,
+                        false, TRIG_ERROR),
+                arguments("exp", (DoubleUnaryOperator) FastMath::exp, (DoubleUnaryOperator) Math::exp, -1, 1,
+                        false, EXP_ERROR),
+                arguments("exp", (DoubleUnaryOperator) FastMath::exp, (DoubleUnaryOperator) Math::exp, -708, 709,
+                        false, EXP_ERROR),
+                arguments("log", (DoubleUnaryOperator) FastMath::log, (DoubleUnaryOperator) Math::log, 0.5, 2,
+                        false, LOG_ERROR),
+                arguments("log", (DoubleUnaryOperator) FastMath::log, (DoubleUnaryOperator) Math::log, -700, 700,
+                        true, LOG_ERROR),
+                arguments("log10", (DoubleUnaryOperator) FastMath::log10, (DoubleUnaryOperator) Math::log10, 0.5, 2,
+                        false, LOG_ERROR),
+                arguments("log10", (DoubleUnaryOperator) FastMath::log10, (DoubleUnaryOperator) Math::log10, -700,
+                        700, true, LOG_ERROR),
+                arguments("log2", (DoubleUnaryOperator) FastMath::log2, log2, 0.5, 2, false, LOG_ERROR),
+                arguments("log2", (DoubleUnaryOperator) FastMath::log2, log2, -700, 700, true, LOG_ERROR)
+        );
+    }
+
+    @ParameterizedTest(name = "{0} in [{3}, {4}]")
+    @MethodSource("functions")
+    public void shouldStayWithinErrorBound(String name, DoubleUnaryOperator fast, DoubleUnaryOperator strict,
+                                           double from, double to, boolean logarithmic, double bound) {
+        // Given
+        Random random = new Random(name.hashCode());
+        double maxError = 0;
+
+        for (int i = 0; i < 200000; i++) {
+            double uniform = from + (to - from) * random.nextDouble();
+            double x = logarithmic ? Math.exp(uniform) : uniform;
+
+            // When
+            double expected = strict.applyAsDouble(x);
+            double actual = fast.applyAsDouble(x);
+
+            // Then
+            maxError = Math.max(maxError, Math.abs(actual - expected) / Math.abs(expected));
+        }
+        assertThat(maxError).isLessThan(bound);
+    }
+
+    @Test
+    public void shouldKeepRelativeErrorNearZerosOfSine() {
+        for (int k = 1; k < 300000; k++) {
+            // Given
+            double x = k * Math.PI;
+
+            // When
+            double actual = FastMath.sin(x);
+
+            // Then
+            double expected = Math.sin(x);
+            assertThat(Math.abs(actual - expected) / Math.abs(expected)).as("x=" + x).isLessThan(TRIG_ERROR);
+        }
+    }
+
+    @Test
+    public void shouldComputeExactLogarithmsOfPowersOfTwo() {
+        for (int exponent = Double.MIN_EXPONENT; exponent <= Double.MAX_EXPONENT; exponent++) {
+            assertThat(FastMath.log2(Math.scalb(1.0, exponent))).isEqualTo(exponent);
+        }
+        assertThat(FastMath.log(1)).isZero();
+        assertThat(FastMath.log10(1)).isZero();
+        assertThat(FastMath.exp(0)).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldHandleSpecialValuesLikeMath() {
+        for (double x : SPECIAL_VALUES) {
+            assertSameOrClose("sin", FastMath.sin(x), Math.sin(x), TRIG_ERROR);
+            assertSameOrClose("cos", FastMath.cos(x), Math.cos(x), TRIG_ERROR);
+            assertSameOrClose("tan", FastMath.tan(x), Math.tan(x), TRIG_ERROR);
+            assertSameOrClose("exp", FastMath.exp(x), Math.exp(x), EXP_ERROR);
+            assertSameOrClose("log", FastMath.log(x), Math.log(x), LOG_ERROR);
+            assertSameOrClose("log10", FastMath.log10(x), Math.log10(x), LOG_ERROR);
+            assertSameOrClose("log2", FastMath.log2(x), MathFunctions.log2(x), LOG_ERROR);
+        }
+    }
+
+    /**
+     * Require the same bits for results that are not finite and non-zero, like NaN, infinities
+     * and signed zeros, and a relative error below the bound for all others.
+     */
+    private static void assertSameOrClose(final String name, final double actual, final double expected,
+                                          final double bound) {
+        if (expected == 0 || Double.isNaN(expected) || Double.isInfinite(expected)) {
+            assertThat(Double.doubleToLongBits(actual)).as(name).isEqualTo(Double.doubleToLongBits(expected));
+        } else {
+            assertThat(Math.abs(actual - expected) / Math.abs(expected)).as(name).isLessThan(bound);
+        }
+    }
+}
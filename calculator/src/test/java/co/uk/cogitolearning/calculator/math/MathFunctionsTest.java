@@ -0,0 +1,51 @@
+package co.uk.cogitolearning.calculator.math;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class MathFunctionsTest {
+
+    @Test
+    public void shouldComputeExactLog2OfPowersOfTwo() {
+        for (int exponent = Double.MIN_EXPONENT; exponent <= Double.MAX_EXPONENT; exponent++) {
+            // Given
+            double x = Math.scalb(1.0, exponent);
+
+            // When
+            double log2 = MathFunctions.log2(x);
+
+            // Then
+            assertThat(log2).isEqualTo(exponent);
+        }
+    }
+
+    @Test
+    public void shouldComputeLog2LikeChangeOfBase() {
+        Random random = new Random(3);
+        for (int i = 0; i < 10000; i++) {
+            // Given
+            double x = Math.exp(random.nextDouble() * 100 - 50);
+
+            // When
+            double log2 = MathFunctions.log2(x);
+
+            // Then
+            double expected = Math.log10(x) / Math.log10(2);
+            assertThat(log2).isCloseTo(expected, within(Math.ulp(expected) * 2));
+        }
+    }
+
+    @Test
+    public void shouldHandleSpecialValues() {
+        assertThat(MathFunctions.log2(0.0)).isEqualTo(Double.NEGATIVE_INFINITY);
+        assertThat(MathFunctions.log2(-0.0)).isEqualTo(Double.NEGATIVE_INFINITY);
+        assertThat(MathFunctions.log2(Double.POSITIVE_INFINITY)).isEqualTo(Double.POSITIVE_INFINITY);
+        assertThat(MathFunctions.log2(-1)).isNaN();
+        assertThat(MathFunctions.log2(Double.NaN)).isNaN();
+        assertThat(MathFunctions.log2(Double.MIN_VALUE)).isEqualTo(-1074);
+    }
+}
@@ -0,0 +1,128 @@
+package co.uk.cogitolearning.calculator.metrics;
+
+import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.ParserException;
+import co.uk.cogitolearning.calculator.lexer.Lexer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CalculatorMetricsTest {
+    private final CalculatorMetrics metrics = CalculatorMetrics.getInstance();
+
+    @BeforeEach
+    public void setUp() {
+        metrics.reset();
+        metrics.setEnabled(true);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        metrics.setEnabled(false);
+        metrics.reset();
+    }
+
+    @Test
+    public void shouldCountEveryPhase() {
+        // Given
+        Calculator calculator = new Calculator().withVariable("x", 2);
+
+        // When
+        CompiledExpression expression = calculator.compile("sin(x)+x*3");
+        calculator.calculate(expression);
+        expression.evaluateBatch(new double[][]{{1, 2, 3}}, new double[3]);
+
+        // Then
+        assertThat(metrics.getTokenCount()).isEqualTo(8);
+        assertThat(metrics.getNodeCount()).isEqualTo(6);
+        assertThat(metrics.getTokenize().getCalls()).isEqualTo(1);
+        assertThat(metrics.getParse().getCalls()).isEqualTo(1);
+        assertThat(metrics.getCompile().getCalls()).isEqualTo(1);
+        assertThat(metrics.getCompile().getItems()).isEqualTo(expression.getProgram().getCodeLength());
+        PhaseStats evaluate = metrics.getEvaluate();
+        assertThat(evaluate.getCalls()).isEqualTo(2);
+        assertThat(evaluate.getItems()).isEqualTo(4);
+        assertThat(evaluate.getErrors()).isZero();
+        assertThat(evaluate.getTotalTimeNanos()).isPositive();
+        assertThat(evaluate.getMaxTimeNanos()).isLessThanOrEqualTo(evaluate.getTotalTimeNanos());
+    }
+
+    @Test
+    public void shouldCountErrorsByPhaseAndType() {
+        // Given
+        Calculator calculator = new Calculator();
+
+        // When
+        assertThrows(ParserException.class, () -> calculator.compile("1+"));
+        assertThrows(ParserException.class, () -> calculator.compile("1+#"));
+
+        // Then
+        assertThat(metrics.getParse().getErrors()).isEqualTo(1);
+        assertThat(metrics.getTokenize().getErrors()).isEqualTo(1);
+        assertThat(metrics.getCompile().getErrors()).isEqualTo(2);
+        assertThat(metrics.getErrorsByType())
+                .containsEntry("PARSE:" + ParserException.class.getName(), 1L)
+                .containsEntry("TOKENIZE:" + ParserException.class.getName(), 1L)
+                .containsEntry("COMPILE:" + ParserException.class.getName(), 2L);
+    }
+
+    @Test
+    public void shouldNotRecordWhenDisabled() {
+        // Given
+        metrics.setEnabled(false);
+
+        // When
+        long start = metrics.start();
+        new Calculator().calculate("1+2");
+
+        // Then
+        assertThat(start).isEqualTo(CalculatorMetrics.DISABLED);
+        assertThat(metrics.getTokenize().getCalls()).isZero();
+        assertThat(metrics.getEvaluate().getCalls()).isZero();
+    }
+
+    @Test
+    public void shouldPublishPlatformMBean() throws Exception {
+        // Given
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(CalculatorMetrics.OBJECT_NAME);
+        CalculatorMetricsMXBean proxy = JMX.newMXBeanProxy(server, name, CalculatorMetricsMXBean.class);
+
+        // When
+        Lexer.getInstance().tokenize("1 + 2");
+        proxy.setEnabled(false);
+
+        // Then
+        assertThat(metrics.isEnabled()).isFalse();
+        assertThat(proxy.getTokenize().getCalls()).isEqualTo(1);
+        assertThat(proxy.getTokenCount()).isEqualTo(3);
+        assertThat(server.getAttribute(name, "TokenCount")).isEqualTo(3L);
+    }
+
+    @Test
+    public void shouldEstimatePercentilesWithinPowerOfTwo() {
+        // Given
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // When
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 10);
+        }
+
+        // Then
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getMax()).isEqualTo(1000);
+        assertThat(histogram.getPercentile(50)).isBetween(500L, 1023L);
+        assertThat(histogram.getPercentile(99)).isEqualTo(1000);
+        assertThat(new LatencyHistogram().getPercentile(50)).isZero();
+    }
+}
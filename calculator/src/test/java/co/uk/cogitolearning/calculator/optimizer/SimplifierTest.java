@@ -0,0 +1,263 @@
+package co.uk.cogitolearning.calculator.optimizer;
+
+import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.lexer.Lexer;
+import co.uk.cogitolearning.calculator.parser.Parser;
+import co.uk.cogitolearning.calculator.program.Opcodes;
+import co.uk.cogitolearning.calculator.program.Program;
+import co.uk.cogitolearning.calculator.program.ProgramCompiler;
+import co.uk.cogitolearning.calculator.program.ProgramTest;
+import co.uk.cogitolearning.calculator.tree.AdditionNode;
+import co.uk.cogitolearning.calculator.tree.ConstantNode;
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import co.uk.cogitolearning.calculator.tree.VariableNode;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.assertj.core.api.Assertions.withinPercentage;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.params.provider.Arguments.arguments;
+
+public class SimplifierTest {
+    private static final double[] SPECIAL_VALUES = {0.0, -0.0, 1.0, -1.5, 2.0, Double.NaN,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE};
+
+    private static Stream<Arguments> safeRewrites() {
+        return Stream.of(
+                arguments("x*1", "x"),
+                arguments("1*x", "x"),
+                arguments("x/1", "x"),
+                arguments("x-0", "x"),
+                arguments("x^1", "x"),
+                arguments("x^0", "1"),
+                arguments("(2*3)*x", "6*x"),
+                arguments("sqrt(16)+x", "4+x"),
+                // not IEEE safe, kept
+                arguments("0+y", "0+y"),
+                arguments("x*0", "x*0"),
+                arguments("x-x", "x-x"),
+                arguments("x/x", "x/x")
+        );
+    }
+
+    private static Stream<Arguments> fastRewrites() {
+        return Stream.of(
+                arguments("0+y", "y"),
+                arguments("x*0", "0"),
+                arguments("x-x", "0"),
+                arguments("x/x", "1"),
+                arguments("0/x", "0"),
+                arguments("1^x", "1"),
+                arguments("2*x*3", "6*x"),
+                arguments("x*2*3", "6*x"),
+                arguments("1+x+2+y", "3+(x+y)"),
+                // strength reduction
+                arguments("x^2", "x*x"),
+                arguments("x^3", "x*(x*x)"),
+                arguments("y^4", "(y*y)*(y*y)"),
+                arguments("x^(0-1)", "1/x"),
+                arguments("x^0.5", "sqrt(x)"),
+                arguments("x^(0-0.5)", "1/sqrt(x)"),
+                arguments("x^2.5", "x^2.5"),
+                arguments("x^17", "x^17"),
+                arguments("2.718281828459045^x", "exp(x)"),
+                // e is an ordinary variable, its value is not known
+                arguments("e^x", "e^x"),
+                arguments("ln(x)/ln(2)", "log2(x)"),
+                arguments("log(x)/log(2)", "log2(x)"),
+                arguments("ln(x)/ln(10)", "log(x)")
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("safeRewrites")
+    public void shouldApplySafeRewrites(String expression, String expected) {
+        assertThat(simplify(expression, SimplificationMode.SAFE)).isEqualTo(parse(expected));
+    }
+
+    @ParameterizedTest
+    @MethodSource("fastRewrites")
+    public void shouldApplyFastRewrites(String expression, String expected) {
+        assertThat(simplify(expression, SimplificationMode.FAST)).isEqualTo(parse(expected));
+    }
+
+    @Test
+    public void shouldReportRemovedNodes() {
+        // Given
+        ExpressionNode tree = parse("(x*1+0)*(2*3)");
+
+        // When
+        Simplification safe = Simplifier.simplify(tree, SimplificationMode.SAFE);
+        Simplification fast = Simplifier.simplify(tree, SimplificationMode.FAST);
+        Simplification none = Simplifier.simplify(tree, SimplificationMode.NONE);
+
+        // Then
+        assertThat(safe.getNodesBefore()).isEqualTo(9);
+        assertThat(safe.getTree()).isEqualTo(parse("(x+0)*6"));
+        assertThat(safe.getRemovedNodes()).isEqualTo(4);
+        assertThat(fast.getTree()).isEqualTo(parse("6*x"));
+        assertThat(fast.getRemovedNodes()).isEqualTo(6);
+        assertThat(none.getTree()).isSameAs(tree);
+        assertThat(none.getRemovedNodes()).isZero();
+        assertThat(new Calculator().compile("x*1").getRemovedNodes()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldKeepResultsInSafeMode() {
+        Random random = new Random(13);
+        for (int i = 0; i < 2000; i++) {
+            // Given
+            ExpressionNode tree = ProgramTest.randomTree(random, 5);
+            Program original = ProgramCompiler.compile(tree);
+            Program simplified = ProgramCompiler.compile(Simplifier.simplify(tree, SimplificationMode.SAFE).getTree());
+
+            for (double x : SPECIAL_VALUES) {
+                for (double y : SPECIAL_VALUES) {
+                    // When
+                    double expected = original.evaluate(values(original, x, y), original.newStack());
+                    double actual = simplified.evaluate(values(simplified, x, y), simplified.newStack());
+
+                    // Then
+                    assertThat(Double.doubleToLongBits(actual)).as(tree + " x=" + x + " y=" + y)
+                            .isEqualTo(Double.doubleToLongBits(expected));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldReducePowersToMultiplicationChains() {
+        Random random = new Random(7);
+        for (int n = -16; n <= 16; n++) {
+            // Given
+            ExpressionNode tree = parse("x^" + (n < 0 ? "(0-" + -n + ")" : n));
+            Program reduced = ProgramCompiler.compile(Simplifier.simplify(tree, SimplificationMode.FAST).getTree());
+
+            for (int i = 0; i < 100; i++) {
+                double x = random.nextDouble() * 4 - 2;
+
+                // When
+                double actual = reduced.evaluate(new double[]{x}, reduced.newStack());
+
+                // Then
+                double expected = Math.pow(x, n);
+                assertThat(actual).as("x=" + x + " n=" + n).isCloseTo(expected, within(Math.ulp(expected) * 16));
+            }
+        }
+    }
+
+    @Test
+    public void shouldShareFactorsOfReducedPowers() {
+        // Given
+        ExpressionNode tree = parse("sin(x)^8");
+
+        // When
+        Simplification fast = Simplifier.simplify(tree, SimplificationMode.FAST);
+        Program program = ProgramCompiler.compile(fast.getTree());
+
+        // Then
+        assertThat(fast.getNodesAfter()).isEqualTo(5);
+        assertThat(program.getCode()).containsExactly(
+                Opcodes.LOAD, 0,
+                Opcodes.SIN,
+                Opcodes.STORE, 0,
+                Opcodes.LOAD_TEMP, 0,
+                Opcodes.MUL,
+                Opcodes.STORE, 1,
+                Opcodes.LOAD_TEMP, 1,
+                Opcodes.MUL,
+                Opcodes.STORE, 2,
+                Opcodes.LOAD_TEMP, 2,
+                Opcodes.MUL);
+    }
+
+    @Test
+    public void shouldCompileNestedPowersInLinearTime() {
+        // Given
+        Calculator calculator = new Calculator().withSimplification(SimplificationMode.FAST);
+        String source = "((((((((x^16)^16)^16)^16)^16)^16)^16)^16)";
+
+        // When
+        CompiledExpression expression = assertTimeoutPreemptively(Duration.ofSeconds(5),
+                () -> calculator.compile(source));
+
+        // Then
+        // x^16 and (x^16)^16 become multiplications, the larger bases keep their powers
+        assertThat(expression.getProgram().getCodeLength()).isLessThan(100);
+        double x = 1 + 1e-9;
+        assertThat(expression.evaluate(new double[]{x})).isCloseTo(Math.pow(x, Math.pow(16, 8)), withinPercentage(1e-3));
+        assertThat(expression.evaluate(new double[]{-1})).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSimplifyDeepTrees() {
+        // Given
+        ExpressionNode tree = new VariableNode("x");
+        for (int i = 0; i < 100000; i++) {
+            tree = new AdditionNode(tree, new ConstantNode(-0.0));
+        }
+
+        // When
+        Simplification simplification = Simplifier.simplify(tree, SimplificationMode.SAFE);
+
+        // Then
+        assertThat(simplification.getTree()).isEqualTo(new VariableNode("x"));
+        assertThat(simplification.getRemovedNodes()).isEqualTo(200000);
+    }
+
+    @Test
+    public void shouldCancelDeepTreesInFastMode() {
+        // Given (x+x+...+1)-(x+x+...+1) and (x+x+...+1)/(x+x+...+1) with 20000 terms per side
+        StringBuilder side = new StringBuilder("(x");
+        for (int i = 1; i < 20000; i++) {
+            side.append("+x");
+        }
+        side.append("+1)");
+        Calculator calculator = new Calculator().withSimplification(SimplificationMode.FAST);
+
+        // When
+        CompiledExpression difference = calculator.compile(side + "-" + side);
+        CompiledExpression quotient = calculator.compile(side + "/" + side);
+
+        // Then
+        assertThat(difference.getTree()).isEqualTo(new ConstantNode(0));
+        assertThat(quotient.getTree()).isEqualTo(new ConstantNode(1));
+    }
+
+    @Test
+    public void shouldNotRequireSimplifiedVariables() {
+        // Given
+        CompiledExpression expression = new Calculator().compile("2+x^0");
+
+        // When / then
+        assertThat(expression.getVariables()).isEmpty();
+        assertThat(expression.evaluate()).isEqualTo(3);
+        assertThat(new Calculator().withSimplification(SimplificationMode.NONE).compile("2+x^0").getVariables())
+                .containsExactly("x");
+    }
+
+    private static double[] values(final Program program, final double x, final double y) {
+        double[] values = new double[program.getVariableCount()];
+        for (int slot = 0; slot < values.length; slot++) {
+            values[slot] = "x".equals(program.getVariable(slot)) ? x : y;
+        }
+        return values;
+    }
+
+    private static ExpressionNode simplify(final String expression, final SimplificationMode mode) {
+        return Simplifier.simplify(parse(expression), mode).getTree();
+    }
+
+    private static ExpressionNode parse(final String expression) {
+        return Parser.parse(Lexer.getInstance().tokenize(expression));
+    }
+}
@@ -1,13 +1,16 @@
 package co.uk.cogitolearning.calculator.parser;
 
+import co.uk.cogitolearning.calculator.ParserException;
+import co.uk.cogitolearning.calculator.lexer.Lexer;
 import co.uk.cogitolearning.calculator.lexer.Token;
 import co.uk.cogitolearning.calculator.tree.*;
-import org.junit.Test;
+import org.junit.jupiter.api.Test;
 
 import java.util.Arrays;
 import java.util.LinkedList;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class ParserTest {
 
@@ -117,4 +120,85 @@ public class ParserTest {
 
         assertThat(tree).isEqualTo(expected);
     }
+
+    @Test
+    public void shouldRespectPrecedence() {
+        // When
+        ExpressionNode tree = parse("1+2*3^2");
+
+        // Then
+        ExponentiationNode power = new ExponentiationNode(new ConstantNode(3.0), new ConstantNode(2.0));
+        MultiplicationNode product = new MultiplicationNode(new ConstantNode(2.0), power);
+        assertThat(tree).isEqualTo(new AdditionNode(new ConstantNode(1.0), product));
+    }
+
+    @Test
+    public void shouldParseMixedAssociativity() {
+        // When
+        ExpressionNode sum = parse("1-2+3");
+        ExpressionNode quotient = parse("8/4/2");
+        ExpressionNode power = parse("2^3^2");
+
+        // Then
+        assertThat(sum).isEqualTo(new AdditionNode(
+                new SubtractionNode(new ConstantNode(1.0), new ConstantNode(2.0)), new ConstantNode(3.0)));
+        assertThat(quotient).isEqualTo(new DivNode(
+                new DivNode(new ConstantNode(8.0), new ConstantNode(4.0)), new ConstantNode(2.0)));
+        assertThat(power).isEqualTo(new ExponentiationNode(
+                new ConstantNode(2.0), new ExponentiationNode(new ConstantNode(3.0), new ConstantNode(2.0))));
+    }
+
+    @Test
+    public void shouldApplyFunctionToFollowingOperandOnly() {
+        // When
+        ExpressionNode squared = parse("sin(x)^2");
+        ExpressionNode shifted = parse("sin x+1");
+
+        // Then
+        FunctionNode sin = new FunctionNode(FunctionNode.SIN, new VariableNode("x"));
+        assertThat(squared).isEqualTo(new ExponentiationNode(sin, new ConstantNode(2.0)));
+        assertThat(shifted).isEqualTo(new AdditionNode(sin, new ConstantNode(1.0)));
+    }
+
+    @Test
+    public void shouldReportSyntaxErrors() {
+        assertThatThrownBy(() -> parse("(1+2")).isInstanceOf(ParserException.class)
+                .hasMessage("Closing bracket is missing");
+        assertThatThrownBy(() -> parse("1+2)")).isInstanceOf(ParserException.class)
+                .hasMessage("Unexpected symbol ) found");
+        assertThatThrownBy(() -> parse("1+")).isInstanceOf(ParserException.class)
+                .hasMessage("Unexpected end of input");
+        assertThatThrownBy(() -> parse("2 x")).isInstanceOf(ParserException.class)
+                .hasMessage("Unexpected symbol x found");
+        assertThatThrownBy(() -> parse("")).isInstanceOf(ParserException.class);
+    }
+
+    @Test
+    public void shouldParseDeeplyNestedExpressionWithoutRecursion() {
+        // Given
+        int depth = 100000;
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            expression.append("(1+");
+        }
+        expression.append("1");
+        for (int i = 0; i < depth; i++) {
+            expression.append(")");
+        }
+
+        // When
+        ExpressionNode tree = parse(expression.toString());
+
+        // Then
+        int additions = 0;
+        while (tree instanceof AdditionNode) {
+            additions++;
+            tree = ((AdditionNode) tree).getAddendRight();
+        }
+        assertThat(additions).isEqualTo(depth);
+    }
+
+    private static ExpressionNode parse(final String expression) {
+        return Parser.parse(Lexer.getInstance().tokenize(expression));
+    }
 }
@@ -0,0 +1,419 @@
+package co.uk.cogitolearning.calculator.program;
+
+import co.uk.cogitolearning.calculator.CalculationVisitor;
+import co.uk.cogitolearning.calculator.lexer.Lexer;
+import co.uk.cogitolearning.calculator.math.MathPolicy;
+import co.uk.cogitolearning.calculator.parser.Parser;
+import co.uk.cogitolearning.calculator.tree.AdditionNode;
+import co.uk.cogitolearning.calculator.tree.ConstantNode;
+import co.uk.cogitolearning.calculator.tree.DivNode;
+import co.uk.cogitolearning.calculator.tree.ExponentiationNode;
+import co.uk.cogitolearning.calculator.tree.ExpressionNode;
+import co.uk.cogitolearning.calculator.tree.FunctionNode;
+import co.uk.cogitolearning.calculator.tree.HashConsingNodeFactory;
+import co.uk.cogitolearning.calculator.tree.MultiplicationNode;
+import co.uk.cogitolearning.calculator.tree.SubtractionNode;
+import co.uk.cogitolearning.calculator.tree.VariableNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class ProgramTest {
+
+    @Test
+    public void shouldCompileToPostfix() {
+        // Given
+        ExpressionNode tree = Parser.parse(Lexer.getInstance().tokenize("2*x+sin(x)/2"));
+
+        // When
+        Program program = ProgramCompiler.compile(tree);
+
+        // Then
+        assertThat(program.getCode()).containsExactly(
+                Opcodes.CONST, 0,
+                Opcodes.LOAD, 0,
+                Opcodes.MUL,
+                Opcodes.LOAD, 0,
+                Opcodes.SIN,
+                Opcodes.CONST, 0,
+                Opcodes.DIV,
+                Opcodes.ADD);
+        assertThat(program.getConstants()).containsExactly(2.0);
+        assertThat(program.getVariableCount()).isEqualTo(1);
+        assertThat(program.getVariable(0)).isEqualTo("x");
+        assertThat(program.getMaxStackDepth()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldShareSubexpressionsBetweenExpressions() {
+        // Given
+        HashConsingNodeFactory factory = new HashConsingNodeFactory();
+        List<ExpressionNode> trees = new ArrayList<>();
+        for (String source : new String[]{"sin(x*y)+1", "sin(x*y)*2", "x*y"}) {
+            trees.add(factory.intern(Parser.parse(Lexer.getInstance().tokenize(source))));
+        }
+
+        // When
+        Program program = ProgramCompiler.compileAll(trees, MathPolicy.STRICT);
+        double[] results = new double[3];
+        program.evaluateAll(new double[]{0.5, 3}, program.newStack(), results);
+
+        // Then
+        assertThat(program.getCode()).containsExactly(
+                Opcodes.LOAD, 0,
+                Opcodes.LOAD, 1,
+                Opcodes.MUL,
+                Opcodes.STORE, 0,
+                Opcodes.SIN,
+                Opcodes.STORE, 1,
+                Opcodes.CONST, 0,
+                Opcodes.ADD,
+                Opcodes.OUTPUT, 0,
+                Opcodes.LOAD_TEMP, 1,
+                Opcodes.CONST, 1,
+                Opcodes.MUL,
+                Opcodes.OUTPUT, 1,
+                Opcodes.LOAD_TEMP, 0,
+                Opcodes.OUTPUT, 2);
+        assertThat(program.getMaxStackDepth()).isEqualTo(2);
+        assertThat(results).containsExactly(Math.sin(1.5) + 1, Math.sin(1.5) * 2, 1.5);
+    }
+
+    @Test
+    public void shouldEvaluateLikeCalculationVisitor() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            // Given
+            ExpressionNode tree = randomTree(random, 6);
+            double x = random.nextDouble() * 4 - 2;
+            double y = random.nextDouble() * 4 - 2;
+            CalculationVisitor visitor = new CalculationVisitor();
+            visitor.addVariable("x", x);
+            visitor.addVariable("y", y);
+            Program program = ProgramCompiler.compile(tree);
+            double[] values = new double[program.getVariableCount()];
+            for (int slot = 0; slot < values.length; slot++) {
+                values[slot] = "x".equals(program.getVariable(slot)) ? x : y;
+            }
+
+            // When
+            double expected = evaluateWithVisitor(tree, visitor);
+            double actual = program.evaluate(values, program.newStack());
+
+            // Then
+            assertThat(Double.doubleToLongBits(actual)).as(tree.toString())
+                    .isEqualTo(Double.doubleToLongBits(expected));
+        }
+    }
+
+    @Test
+    public void shouldEvaluateBatchLikeSingleRows() {
+        Random random = new Random(7);
+        int rows = 3 * Program.BLOCK_SIZE + 17;
+        double[] out = new double[rows + 10];
+        for (int i = 0; i < 100; i++) {
+            // Given
+            Program program = ProgramCompiler.compile(randomTree(random, 6));
+            double[][] columns = new double[program.getVariableCount()][rows + 10];
+            for (double[] column : columns) {
+                for (int row = 0; row < column.length; row++) {
+                    column[row] = random.nextDouble() * 4 - 2;
+                }
+            }
+
+            // When
+            program.evaluateBatch(columns, 5, rows + 5, out, program.newBlockStack());
+
+            // Then
+            double[] values = new double[columns.length];
+            for (int row = 5; row < rows + 5; row++) {
+                for (int slot = 0; slot < values.length; slot++) {
+                    values[slot] = columns[slot][row];
+                }
+                double expected = program.evaluate(values, program.newStack());
+                assertThat(Double.doubleToLongBits(out[row])).as(program.toString())
+                        .isEqualTo(Double.doubleToLongBits(expected));
+            }
+        }
+    }
+
+    @Test
+    public void shouldEvaluateParallelBatchLikeSequentialBatch() throws Exception {
+        // Given
+        Random random = new Random(11);
+        Program program = ProgramCompiler.compile(randomTree(random, 8));
+        int rows = 100 * Program.BLOCK_SIZE + 3;
+        double[][] columns = new double[program.getVariableCount()][rows];
+        for (double[] column : columns) {
+            for (int row = 0; row < rows; row++) {
+                column[row] = random.nextDouble() * 4 - 2;
+            }
+        }
+        double[] expected = new double[rows];
+        program.evaluateBatch(columns, 0, rows, expected, program.newBlockStack());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        try {
+            // When
+            double[] forkJoin = new double[rows];
+            program.evaluateBatch(columns, 0, rows, forkJoin, pool);
+            double[] executed = new double[rows];
+            program.evaluateBatch(columns, 0, rows, executed, executor, 3);
+
+            // Then
+            assertThat(forkJoin).containsExactly(expected);
+            assertThat(executed).containsExactly(expected);
+        } finally {
+            pool.shutdown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldComputeSharedSubexpressionsOnce() {
+        // Given
+        ExpressionNode tree = new HashConsingNodeFactory()
+                .intern(Parser.parse(Lexer.getInstance().tokenize("sin(x*y+1)*sin(x*y+1)+sin(x*y+1)")));
+
+        // When
+        Program program = ProgramCompiler.compile(tree);
+
+        // Then
+        assertThat(program.getTemporaryCount()).isEqualTo(1);
+        assertThat(program.getCode()).containsExactly(
+                Opcodes.LOAD, 0,
+                Opcodes.LOAD, 1,
+                Opcodes.MUL,
+                Opcodes.CONST, 0,
+                Opcodes.ADD,
+                Opcodes.SIN,
+                Opcodes.STORE, 0,
+                Opcodes.LOAD_TEMP, 0,
+                Opcodes.MUL,
+                Opcodes.LOAD_TEMP, 0,
+                Opcodes.ADD);
+        double expected = Math.sin(2 * 3 + 1) * Math.sin(2 * 3 + 1) + Math.sin(2 * 3 + 1);
+        assertThat(program.evaluate(new double[]{2, 3}, program.newStack())).isEqualTo(expected);
+        double[] out = new double[1];
+        program.evaluateBatch(new double[][]{{2}, {3}}, 0, 1, out, program.newBlockStack());
+        assertThat(out[0]).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldEvaluateDagsLikeTrees() {
+        Random random = new Random(17);
+        for (int i = 0; i < 1000; i++) {
+            // Given
+            ExpressionNode tree = randomTree(random, 7);
+            ExpressionNode dag = new HashConsingNodeFactory().intern(tree);
+            Program treeProgram = ProgramCompiler.compile(tree);
+            Program dagProgram = ProgramCompiler.compile(dag);
+            double[] values = new double[treeProgram.getVariableCount()];
+            for (int slot = 0; slot < values.length; slot++) {
+                values[slot] = random.nextDouble() * 4 - 2;
+            }
+
+            // When
+            double expected = treeProgram.evaluate(values, treeProgram.newStack());
+            double actual = dagProgram.evaluate(values, dagProgram.newStack());
+
+            // Then
+            assertThat(Double.doubleToLongBits(actual)).as(tree.toString())
+                    .isEqualTo(Double.doubleToLongBits(expected));
+        }
+    }
+
+    @Test
+    public void shouldDifferentiateEveryFunction() {
+        // Given the derivative of every function of 0.5 * x at x = 0.6
+        double x = 0.6;
+        double u = 0.5 * x;
+        Object[][] cases = {
+                {"sin", Math.cos(u)},
+                {"cos", -Math.sin(u)},
+                {"tan", 1 / (Math.cos(u) * Math.cos(u))},
+                {"asin", 1 / Math.sqrt(1 - u * u)},
+                {"acos", -1 / Math.sqrt(1 - u * u)},
+                {"atan", 1 / (1 + u * u)},
+                {"sqrt", 0.5 / Math.sqrt(u)},
+                {"exp", Math.exp(u)},
+                {"ln", 1 / u},
+                {"log", 1 / (u * Math.log(10))},
+                {"log2", 1 / (u * Math.log(2))},
+        };
+        for (Object[] testCase : cases) {
+            Program program = ProgramCompiler.compile(
+                    Parser.parse(Lexer.getInstance().tokenize(testCase[0] + "(0.5*x)")));
+            double[] gradient = new double[1];
+
+            // When
+            double value = program.evaluateGradient(new double[]{x}, gradient, program.newGradientStack());
+
+            // Then
+            assertThat(value).as(testCase[0].toString())
+                    .isEqualTo(program.evaluate(new double[]{x}, program.newStack()));
+            assertThat(gradient[0]).as(testCase[0].toString())
+                    .isCloseTo(0.5 * (double) testCase[1], within(1e-12));
+        }
+    }
+
+    @Test
+    public void shouldDifferentiateExponentiation() {
+        // Given
+        Program power = ProgramCompiler.compile(Parser.parse(Lexer.getInstance().tokenize("x^y")));
+        Program cube = ProgramCompiler.compile(Parser.parse(Lexer.getInstance().tokenize("x^3+0*y")));
+        double[] gradient = new double[2];
+
+        // When
+        double value = power.evaluateGradient(new double[]{1.5, 2.5}, gradient, power.newGradientStack());
+
+        // Then
+        assertThat(value).isEqualTo(Math.pow(1.5, 2.5));
+        assertThat(gradient[0]).isCloseTo(2.5 * Math.pow(1.5, 1.5), within(1e-12));
+        assertThat(gradient[1]).isCloseTo(Math.pow(1.5, 2.5) * Math.log(1.5), within(1e-12));
+
+        // When the base is negative and the exponent constant
+        cube.evaluateGradient(new double[]{-2, 1}, gradient, cube.newGradientStack());
+
+        // Then ln(x) is not used
+        assertThat(gradient).containsExactly(12.0, 0.0);
+    }
+
+    @Test
+    public void shouldDifferentiateLikeFiniteDifferences() {
+        Random random = new Random(23);
+        int checked = 0;
+        for (int i = 0; i < 1000; i++) {
+            // Given
+            ExpressionNode tree = new HashConsingNodeFactory().intern(randomTree(random, 5));
+            Program program = ProgramCompiler.compile(tree);
+            double[] values = new double[program.getVariableCount()];
+            for (int slot = 0; slot < values.length; slot++) {
+                values[slot] = random.nextDouble() * 2 + 0.5;
+            }
+            double[] gradient = new double[values.length];
+
+            // When
+            double value = program.evaluateGradient(values, gradient, program.newGradientStack());
+
+            // Then
+            assertThat(Double.doubleToLongBits(value)).as(tree.toString())
+                    .isEqualTo(Double.doubleToLongBits(program.evaluate(values, program.newStack())));
+            for (int slot = 0; slot < values.length; slot++) {
+                double coarse = centralDifference(program, values, slot, 1e-5);
+                double fine = centralDifference(program, values, slot, 1e-6);
+                // finite differences lose the small terms of large values and cannot be trusted at kinks
+                if (isModerate(tree, program, values) && Double.isFinite(gradient[slot]) && Double.isFinite(coarse)
+                        && Math.abs(coarse - fine) <= 1e-4 * Math.max(1, Math.abs(coarse))) {
+                    assertThat(gradient[slot]).as(tree.toString())
+                            .isCloseTo(fine, within(1e-3 * Math.max(1, Math.abs(fine))));
+                    checked++;
+                }
+            }
+        }
+        assertThat(checked).isGreaterThan(500);
+    }
+
+    @Test
+    public void shouldEvaluateGradientBatchLikeSingleRows() {
+        // Given
+        Program program = ProgramCompiler.compile(Parser.parse(Lexer.getInstance().tokenize("x*sin(y)+y^x")));
+        double[][] columns = {{0.5, 1, 1.5, 2}, {2, 1.5, 1, 0.5}};
+        double[] out = new double[4];
+        double[][] gradients = new double[2][4];
+
+        // When
+        program.evaluateGradientBatch(columns, 1, 4, out, gradients, program.newGradientStack());
+
+        // Then
+        assertThat(out[0]).isZero();
+        double[] gradient = new double[2];
+        for (int row = 1; row < 3; row++) {
+            double value = program.evaluateGradient(new double[]{columns[0][row], columns[1][row]}, gradient,
+                    program.newGradientStack());
+            assertThat(out[row]).isEqualTo(value);
+            assertThat(new double[]{gradients[0][row], gradients[1][row]}).containsExactly(gradient);
+        }
+    }
+
+    /**
+     * Check that no subexpression is so large that rounding hides the effect of a small step.
+     */
+    private static boolean isModerate(final ExpressionNode tree, final Program program, final double[] values) {
+        for (ExpressionNode node : tree) {
+            Program subProgram = ProgramCompiler.compile(node);
+            double[] subValues = new double[subProgram.getVariableCount()];
+            for (int slot = 0; slot < subValues.length; slot++) {
+                for (int outer = 0; outer < values.length; outer++) {
+                    if (program.getVariable(outer).equals(subProgram.getVariable(slot))) {
+                        subValues[slot] = values[outer];
+                    }
+                }
+            }
+            if (!(Math.abs(subProgram.evaluate(subValues, subProgram.newStack())) < 1e6)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double centralDifference(final Program program, final double[] values, final int slot,
+                                            final double h) {
+        double[] shifted = values.clone();
+        shifted[slot] = values[slot] + h;
+        double up = program.evaluate(shifted, program.newStack());
+        shifted[slot] = values[slot] - h;
+        double down = program.evaluate(shifted, program.newStack());
+        return (up - down) / (2 * h);
+    }
+
+    private static double evaluateWithVisitor(final ExpressionNode tree, final CalculationVisitor visitor) {
+        List<ExpressionNode> nodes = new ArrayList<>();
+        for (ExpressionNode node : tree) {
+            nodes.add(node);
+        }
+        Collections.reverse(nodes);
+        for (ExpressionNode node : nodes) {
+            node.accept(visitor);
+        }
+        return visitor.getValue();
+    }
+
+    public static ExpressionNode randomTree(final Random random, final int depth) {
+        if (depth == 0 || random.nextInt(4) == 0) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    return new ConstantNode(random.nextInt(7) - 2);
+                case 1:
+                    return new VariableNode("x");
+                default:
+                    return new VariableNode("y");
+            }
+        }
+        ExpressionNode left = randomTree(random, depth - 1);
+        switch (random.nextInt(6)) {
+            case 0:
+                return new AdditionNode(left, randomTree(random, depth - 1));
+            case 1:
+                return new SubtractionNode(left, randomTree(random, depth - 1));
+            case 2:
+                return new MultiplicationNode(left, randomTree(random, depth - 1));
+            case 3:
+                return new DivNode(left, randomTree(random, depth - 1));
+            case 4:
+                return new ExponentiationNode(left, randomTree(random, depth - 1));
+            default:
+                return new FunctionNode(1 + random.nextInt(FunctionNode.LOG2), left);
+        }
+    }
+}
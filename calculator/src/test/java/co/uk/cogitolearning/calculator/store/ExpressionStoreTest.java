@@ -0,0 +1,168 @@
+package co.uk.cogitolearning.calculator.store;
+
+import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.ExpressionCodec;
+import co.uk.cogitolearning.calculator.program.Opcodes;
+import co.uk.cogitolearning.calculator.program.ProgramCodec;
+import co.uk.cogitolearning.calculator.program.ProgramCompiler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+public class ExpressionStoreTest {
+    private static final String[] SOURCES = {
+            "2*(1+sin(x))^2",
+            "sin(x*y+1)*sin(x*y+1)+sin(x*y+1)",
+            "log2(a)/ln(b)-sqrt(c)^0.5",
+            "3.25e-7",
+            "rate12 * 2 + 1e3",
+    };
+
+    @Test
+    public void shouldDecodeWhatWasEncoded() {
+        Calculator calculator = new Calculator();
+        for (String source : SOURCES) {
+            // Given
+            CompiledExpression expression = calculator.compile(source);
+
+            // When
+            byte[] encoded = ExpressionCodec.encode(expression);
+            CompiledExpression decoded = ExpressionCodec.decode(ByteBuffer.wrap(encoded));
+
+            // Then
+            assertThat(decoded.getSource()).isEqualTo(source);
+            assertThat(decoded.getProgram()).isEqualTo(expression.getProgram());
+            assertThat(ProgramCompiler.compile(decoded.getTree())).isEqualTo(expression.getProgram());
+            assertThat(decoded.getVariables()).containsExactlyElementsOf(expression.getVariables());
+            double[] values = new double[expression.getVariables().size()];
+            Arrays.fill(values, 0.75);
+            assertThat(decoded.evaluate(values)).isEqualTo(expression.evaluate(values));
+        }
+    }
+
+    @Test
+    public void shouldEncodeCompactly() {
+        // Given
+        CompiledExpression expression = new Calculator().compile("2*x+sin(x)/2");
+
+        // When
+        byte[] encoded = ExpressionCodec.encode(expression);
+
+        // Then version, source, depth, temporaries, variable x, one constant and 12 code words
+        assertThat(encoded).hasSize(1 + 13 + 1 + 1 + 3 + 9 + 13);
+    }
+
+    @Test
+    public void shouldRejectCorruptInput() {
+        // Given
+        byte[] encoded = ExpressionCodec.encode(new Calculator().compile("x+1"));
+
+        // Then
+        byte[] version = encoded.clone();
+        version[0] = 99;
+        assertThrows(IllegalArgumentException.class, () -> ExpressionCodec.decode(ByteBuffer.wrap(version)));
+        for (int length = 0; length < encoded.length; length++) {
+            byte[] truncated = Arrays.copyOf(encoded, length);
+            assertThrows(IllegalArgumentException.class, () -> ExpressionCodec.decode(ByteBuffer.wrap(truncated)));
+        }
+        byte[] underflow = encoded.clone();
+        // the last code word is ADD, replace it by a second operand
+        underflow[underflow.length - 1] = 1;
+        assertThrows(IllegalArgumentException.class, () -> ExpressionCodec.decode(ByteBuffer.wrap(underflow)));
+    }
+
+    @Test
+    public void shouldRejectProgramsThatStandForHugeTrees() {
+        // Given x squared 10 and 25 times through temporaries, 62 and 137 bytes
+        byte[] small = squares(10);
+        byte[] huge = squares(25);
+
+        // When
+        CompiledExpression decoded = assertTimeoutPreemptively(Duration.ofSeconds(5),
+                () -> ExpressionCodec.decode(ByteBuffer.wrap(small)));
+
+        // Then
+        assertThat(decoded.evaluate(new double[]{1 + 1e-6})).isCloseTo(Math.pow(1 + 1e-6, 1024), within(1e-9));
+        assertThat(decoded.getEstimatedSize()).isLessThan(1000);
+        IllegalArgumentException exception = assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+                assertThrows(IllegalArgumentException.class, () -> ExpressionCodec.decode(ByteBuffer.wrap(huge))));
+        assertThat(exception.getMessage()).contains("more than " + ProgramCodec.MAX_TREE_SIZE + " nodes");
+    }
+
+    /**
+     * Encode LOAD x followed by STORE i, LOAD_TEMP i, MUL for every temporary i.
+     */
+    private static byte[] squares(final int temporaries) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ExpressionCodec.FORMAT_VERSION);
+        ProgramCodec.writeString(out, "x");
+        out.write(2);
+        out.write(temporaries);
+        out.write(1);
+        ProgramCodec.writeString(out, "x");
+        out.write(0);
+        out.write(2 + 5 * temporaries);
+        out.write(Opcodes.LOAD);
+        out.write(0);
+        for (int i = 0; i < temporaries; i++) {
+            out.write(Opcodes.STORE);
+            out.write(i);
+            out.write(Opcodes.LOAD_TEMP);
+            out.write(i);
+            out.write(Opcodes.MUL);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void shouldDecodeLazilyFromMappedFile(@TempDir final Path directory) throws IOException {
+        // Given
+        Calculator calculator = new Calculator();
+        List<CompiledExpression> expressions = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            expressions.add(calculator.compile(SOURCES[i % SOURCES.length] + "+" + i));
+        }
+        Path file = directory.resolve("expressions.bin");
+        ExpressionStore.write(file, expressions);
+
+        // When
+        try (ExpressionStore store = ExpressionStore.open(file)) {
+            // Then
+            assertThat(store.size()).isEqualTo(1000);
+            assertThat(store.isDecoded(500)).isFalse();
+            CompiledExpression expression = store.get(500);
+            assertThat(store.isDecoded(500)).isTrue();
+            assertThat(store.isDecoded(499)).isFalse();
+            assertThat(store.get(500)).isSameAs(expression);
+            assertThat(expression.getSource()).isEqualTo(expressions.get(500).getSource());
+            assertThat(expression.getProgram()).isEqualTo(expressions.get(500).getProgram());
+            assertThat(store.get(999).getSource()).isEqualTo(expressions.get(999).getSource());
+            assertThrows(IndexOutOfBoundsException.class, () -> store.get(1000));
+        }
+    }
+
+    @Test
+    public void shouldRejectOtherFiles(@TempDir final Path directory) throws IOException {
+        // Given
+        Path file = directory.resolve("other.bin");
+        Files.write(file, "not an expression store".getBytes("UTF-8"));
+
+        // Then
+        assertThrows(IOException.class, () -> ExpressionStore.open(file));
+    }
+}
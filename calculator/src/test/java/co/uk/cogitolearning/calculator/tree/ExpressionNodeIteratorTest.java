@@ -0,0 +1,124 @@
+package co.uk.cogitolearning.calculator.tree;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ExpressionNodeIteratorTest {
+    private static final ConstantNode TWO = new ConstantNode(2);
+    private static final VariableNode X = new VariableNode("x");
+    private static final ConstantNode THREE = new ConstantNode(3);
+    private static final FunctionNode SIN = new FunctionNode(FunctionNode.SIN, THREE);
+    private static final MultiplicationNode PRODUCT = new MultiplicationNode(TWO, X);
+    // 2*x+sin(3)
+    private static final AdditionNode SUM = new AdditionNode(PRODUCT, SIN);
+
+    @Test
+    public void shouldIterateInPreOrder() {
+        assertThat(toList(ExpressionNodeIterator.preOrder(SUM)))
+                .containsExactly(SUM, PRODUCT, TWO, X, SIN, THREE);
+        assertThat(SUM).containsExactly(SUM, PRODUCT, TWO, X, SIN, THREE);
+    }
+
+    @Test
+    public void shouldIterateInPostOrder() {
+        assertThat(toList(ExpressionNodeIterator.postOrder(SUM)))
+                .containsExactly(TWO, X, PRODUCT, THREE, SIN, SUM);
+    }
+
+    @Test
+    public void shouldIterateInReversePostOrder() {
+        assertThat(toList(ExpressionNodeIterator.reversePostOrder(SUM)))
+                .containsExactly(SUM, SIN, THREE, PRODUCT, X, TWO);
+    }
+
+    @Test
+    public void shouldFailBeyondTheEnd() {
+        Iterator<ExpressionNode> iterator = ExpressionNodeIterator.postOrder(X);
+        assertThat(iterator.next()).isSameAs(X);
+        assertThat(iterator.hasNext()).isFalse();
+        assertThrows(NoSuchElementException.class, iterator::next);
+    }
+
+    @Test
+    public void shouldIterateDeepTrees() {
+        // Given
+        int depth = 200000;
+        ExpressionNode left = X;
+        ExpressionNode right = X;
+        for (int i = 0; i < depth; i++) {
+            left = new SubtractionNode(left, TWO);
+            right = new FunctionNode(FunctionNode.SQRT, right);
+        }
+        ExpressionNode tree = new AdditionNode(left, right);
+
+        // When
+        int preOrder = count(ExpressionNodeIterator.preOrder(tree));
+        int postOrder = count(ExpressionNodeIterator.postOrder(tree));
+        int reversePostOrder = count(ExpressionNodeIterator.reversePostOrder(tree));
+
+        // Then
+        int nodes = 3 * depth + 3;
+        assertThat(preOrder).isEqualTo(nodes);
+        assertThat(postOrder).isEqualTo(nodes);
+        assertThat(reversePostOrder).isEqualTo(nodes);
+    }
+
+    @Test
+    public void shouldStreamInPreOrder() {
+        // Given
+        ExpressionNode tree = X;
+        for (int i = 0; i < 10000; i++) {
+            tree = i % 2 == 0 ? new AdditionNode(tree, new ConstantNode(i)) : new MultiplicationNode(new ConstantNode(i), tree);
+        }
+
+        // When
+        List<ExpressionNode> sequential = toList(ExpressionNodeIterator.preOrder(tree));
+        List<ExpressionNode> parallel = StreamSupport.stream(tree.spliterator(), true).collect(Collectors.toList());
+
+        // Then
+        assertThat(parallel).hasSize(sequential.size());
+        for (int i = 0; i < sequential.size(); i++) {
+            assertThat(parallel.get(i)).isSameAs(sequential.get(i));
+        }
+    }
+
+    @Test
+    public void shouldSplitIntoDisjointPrefix() {
+        // Given
+        ExpressionNodeSpliterator suffix = new ExpressionNodeSpliterator(SUM);
+
+        // When
+        ExpressionNodeSpliterator prefix = (ExpressionNodeSpliterator) suffix.trySplit();
+
+        // Then
+        List<ExpressionNode> nodes = new ArrayList<>();
+        prefix.forEachRemaining(nodes::add);
+        suffix.forEachRemaining(nodes::add);
+        assertThat(nodes).containsExactly(SUM, PRODUCT, TWO, X, SIN, THREE);
+        assertThat(new ExpressionNodeSpliterator(X).trySplit()).isNull();
+    }
+
+    private static List<ExpressionNode> toList(final Iterator<ExpressionNode> iterator) {
+        List<ExpressionNode> list = new ArrayList<>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
+
+    private static int count(final Iterator<ExpressionNode> iterator) {
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,90 @@
+package co.uk.cogitolearning.calculator.tree;
+
+import co.uk.cogitolearning.calculator.lexer.Lexer;
+import co.uk.cogitolearning.calculator.parser.Parser;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+public class HashConsingNodeFactoryTest {
+    private static final String EXPRESSION = "sin(a*t+b)*sin(a*t+b)+sin(a*t+b)/sin(a*t+b)";
+
+    @Test
+    public void shouldShareIdenticalSubtreesWhileParsing() {
+        // Given
+        HashConsingNodeFactory factory = new HashConsingNodeFactory();
+
+        // When
+        AdditionNode tree = (AdditionNode) Parser.parse(Lexer.getInstance().tokenize(EXPRESSION), factory);
+
+        // Then
+        MultiplicationNode product = (MultiplicationNode) tree.getAddendLeft();
+        DivNode quotient = (DivNode) tree.getAddendRight();
+        assertThat(product.getMultiplicand()).isSameAs(product.getMultiplier()).isSameAs(quotient.getNumerator())
+                .isSameAs(quotient.getDenominator());
+        // 4 copies of the 6 nodes of sin(a*t+b) and 3 operators, the 6 nodes exist once
+        assertThat(factory.getRequestedNodes()).isEqualTo(27);
+        assertThat(factory.getUniqueNodes()).isEqualTo(9);
+        assertThat(factory.getSharedNodes()).isEqualTo(18);
+        // every copy saves 3 variable nodes and 3 other nodes
+        assertThat(factory.getBytesSaved()).isEqualTo(3 * (3 * 16 + 3 * 24));
+    }
+
+    @Test
+    public void shouldInternExistingTrees() {
+        // Given
+        ExpressionNode tree = Parser.parse(Lexer.getInstance().tokenize("(x+1)*(x+1)+2*x"));
+        HashConsingNodeFactory factory = new HashConsingNodeFactory();
+
+        // When
+        ExpressionNode dag = factory.intern(tree);
+
+        // Then
+        assertThat(dag).isEqualTo(tree);
+        MultiplicationNode product = (MultiplicationNode) ((AdditionNode) dag).getAddendLeft();
+        assertThat(product.getMultiplicand()).isSameAs(product.getMultiplier());
+        assertThat(factory.getUniqueNodes()).isEqualTo(7);
+        assertThat(factory.intern(tree)).isSameAs(dag);
+    }
+
+    @Test
+    public void shouldInternSharedNodesOnce() {
+        // Given
+        ExpressionNode dag = new VariableNode("x");
+        for (int i = 0; i < 64; i++) {
+            // a tree of 2^65 - 1 nodes
+            dag = new MultiplicationNode(dag, dag);
+        }
+        ExpressionNode square = dag;
+        HashConsingNodeFactory factory = new HashConsingNodeFactory();
+
+        // When
+        ExpressionNode interned = assertTimeoutPreemptively(Duration.ofSeconds(5), () -> factory.intern(square));
+
+        // Then
+        assertThat(interned).isSameAs(square);
+        assertThat(factory.getUniqueNodes()).isEqualTo(65);
+    }
+
+    @Test
+    public void shouldKeepTreesWithoutDuplicates() {
+        // Given
+        ExpressionNode tree = Parser.parse(Lexer.getInstance().tokenize("x*y+sin(z)"));
+
+        // When
+        ExpressionNode dag = new HashConsingNodeFactory().intern(tree);
+
+        // Then
+        assertThat(dag).isSameAs(tree);
+    }
+
+    @Test
+    public void shouldDistinguishSignedZeros() {
+        HashConsingNodeFactory factory = new HashConsingNodeFactory();
+        assertThat(factory.constant(0.0)).isNotSameAs(factory.constant(-0.0));
+        assertThat(factory.constant(Double.NaN)).isSameAs(factory.constant(Double.NaN));
+    }
+}
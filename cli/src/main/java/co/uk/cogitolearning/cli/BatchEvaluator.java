@@ -0,0 +1,162 @@
+package co.uk.cogitolearning.cli;
+
+import co.uk.cogitolearning.calculator.Calculator;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates a stream of expressions, one per line, on a pool of worker threads.
+ *
+ * <p>Lines are read and handed to the workers as long as fewer than maxInFlight of
+ * them are pending; after that the oldest result is written before the next line is
+ * read. The results are therefore written in input order and memory use does not
+ * depend on the length of the input.
+ *
+ * <p>Every input line gives exactly one output line: the value, an empty line for an
+ * empty input line, or ERROR followed by the message if the line cannot be
+ * evaluated. Errors are also reported with their line number to the error writer,
+ * and the run continues with the next line. An Error thrown by a worker, like an
+ * OutOfMemoryError, is not a problem of the line and is rethrown unwrapped by run.
+ */
+public final class BatchEvaluator {
+    private final Calculator calculator;
+    private final int threads;
+    private final int maxInFlight;
+
+    /**
+     * The outcome of a run.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static final class Summary {
+        /**
+         * The number of lines read.
+         */
+        private final long lines;
+        /**
+         * The number of lines that could not be evaluated.
+         */
+        private final long errors;
+    }
+
+    /**
+     * Create an evaluator.
+     *
+     * @param calculator  the calculator, shared by all workers
+     * @param threads     the number of worker threads
+     * @param maxInFlight the largest number of lines read but not written yet
+     */
+    public BatchEvaluator(final Calculator calculator, final int threads, final int maxInFlight) {
+        if (threads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("threads and maxInFlight must be positive");
+        }
+        this.calculator = calculator;
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Evaluate every line of the input.
+     *
+     * @param in     the expressions, one per line
+     * @param out    receives the results, one line per input line
+     * @param errors receives the errors with their line numbers
+     * @return the number of lines and errors
+     * @throws IOException if reading or writing fails
+     */
+    public Summary run(final BufferedReader in, final Writer out, final PrintWriter errors) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "calculator-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<Future<Result>> pending = new ArrayDeque<>(maxInFlight);
+        long lines = 0;
+        long failures = 0;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (pending.size() == maxInFlight) {
+                    failures += write(pending.removeFirst(), out, errors);
+                }
+                String expression = line.trim();
+                long number = ++lines;
+                pending.addLast(pool.submit(() -> evaluate(number, expression)));
+            }
+            while (!pending.isEmpty()) {
+                failures += write(pending.removeFirst(), out, errors);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        out.flush();
+        errors.flush();
+        return new Summary(lines, failures);
+    }
+
+    private Result evaluate(final long line, final String expression) {
+        if (expression.isEmpty()) {
+            return new Result(line, "", null);
+        }
+        try {
+            return new Result(line, Double.toString(calculator.calculate(expression)), null);
+        } catch (RuntimeException e) {
+            return new Result(line, null, e.getMessage() == null ? e.toString() : e.getMessage());
+        }
+    }
+
+    /**
+     * Wait for a result and write it.
+     *
+     * @return 1 if the line failed, 0 otherwise
+     */
+    private static int write(final Future<Result> future, final Writer out, final PrintWriter errors)
+            throws IOException {
+        Result result = join(future);
+        if (result.error == null) {
+            out.write(result.value);
+            out.write('\n');
+            return 0;
+        }
+        out.write("ERROR ");
+        out.write(result.error);
+        out.write('\n');
+        errors.println("Line " + result.line + ": " + result.error);
+        return 1;
+    }
+
+    private static Result join(final Future<Result> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a result", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException("A worker failed", e.getCause());
+        }
+    }
+
+    /**
+     * The value or the error message of one line.
+     */
+    @AllArgsConstructor
+    private static final class Result {
+        private final long line;
+        private final String value;
+        private final String error;
+    }
+}
@@ -1,19 +1,68 @@
 package co.uk.cogitolearning.cli;
 
 import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.CompiledExpression;
 import co.uk.cogitolearning.calculator.EvaluationException;
 import co.uk.cogitolearning.calculator.ParserException;
 import lombok.experimental.UtilityClass;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * Command line interface for calculator.
+ *
+ * <p>Usage:
+ * <pre>
+ * CalculatorCli [expression]
+ * CalculatorCli --batch [file] [--threads n]
+ * CalculatorCli --csv expression input.csv [output.csv]
+ * </pre>
+ * The batch mode reads one expression per line from the file, or from the standard
+ * input if no file or - is given, and writes one result per line, see BatchEvaluator.
+ * The csv mode evaluates one expression for every row of a CSV file and writes the
+ * rows with a result column to the output file or the standard output, see CsvEvaluator.
  */
 @UtilityClass
 public class CalculatorCli {
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * Lines read ahead per worker thread in batch mode.
+     */
+    private static final int IN_FLIGHT_PER_THREAD = 64;
+
     /**
      * The main method to test the functionality of the parser.
      */
     public static void main(final String[] args) {
+        if (args.length > 0 && "--batch".equals(args[0])) {
+            batch(args);
+            return;
+        }
+        if (args.length > 0 && "--csv".equals(args[0])) {
+            csv(args);
+            return;
+        }
 
         String expresion = "2*(1+sin(0.5 * pi))^2"; //=8  with pi/2 is problem because DivExpressionNode was introduced. Parser has to be fixed.
         if (args.length > 0) {
@@ -21,12 +70,150 @@ public class CalculatorCli {
         }
 
         try {
-            Calculator calculator = new Calculator()
-                    .withVariable("pi", Math.PI);
+            Calculator calculator = newCalculator();
             System.out.println("The value of the expression is " + calculator.calculate(expresion));
         } catch (ParserException | EvaluationException e) {
             System.err.println(e.getMessage());
         }
     }
 
+    private static Calculator newCalculator() {
+        return new Calculator()
+                .withVariable("pi", Math.PI);
+    }
+
+    private static Map<String, Double> constants() {
+        return Collections.singletonMap("pi", Math.PI);
+    }
+
+    private static void batch(final String[] args) {
+        String file = "-";
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i < args.length; i++) {
+            if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = parseThreads(args[++i]);
+                if (threads < 1) {
+                    System.err.println("The number of threads must be a positive integer: " + args[i]);
+                    System.err.println("Usage: CalculatorCli --batch [file] [--threads n]");
+                    return;
+                }
+            } else {
+                file = args[i];
+            }
+        }
+
+        BatchEvaluator evaluator = new BatchEvaluator(newCalculator(), threads, threads * IN_FLIGHT_PER_THREAD);
+        PrintWriter errors = new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8), true);
+        try (BufferedReader in = "-".equals(file)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), BUFFER_SIZE)
+                : Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+             Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out),
+                     StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            BatchEvaluator.Summary summary = evaluator.run(in, out, errors);
+            errors.println("Evaluated " + summary.getLines() + " lines, " + summary.getErrors() + " errors");
+        } catch (IOException e) {
+            errors.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Parse the value of --threads.
+     *
+     * @return the number of threads, or 0 if the value is not an integer
+     */
+    private static int parseThreads(final String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void csv(final String[] args) {
+        PrintWriter errors = new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8), true);
+        if (args.length < 3) {
+            errors.println("Usage: CalculatorCli --csv expression input.csv [output.csv]");
+            return;
+        }
+        String output = args.length > 3 ? args[3] : "-";
+        if (!"-".equals(output) && isSameFile(args[2], output)) {
+            // opening the output truncates it before the input is read
+            errors.println("The output file must not be the input file: " + output);
+            return;
+        }
+        CompiledExpression expression;
+        try {
+            expression = newCalculator().compile(args[1]);
+        } catch (ParserException | EvaluationException e) {
+            errors.println(e.getMessage());
+            return;
+        }
+        // the output file is opened by the first write, so that it stays untouched if the
+        // columns of the expression cannot be resolved from the header
+        try (ReadableByteChannel in = FileChannel.open(Paths.get(args[2]), StandardOpenOption.READ);
+             WritableByteChannel out = "-".equals(output)
+                     ? Channels.newChannel(new FileOutputStream(FileDescriptor.out))
+                     : new OutputFile(Paths.get(output))) {
+            CsvEvaluator.Summary summary = new CsvEvaluator(expression, constants(), "result").run(in, out, errors);
+            if (out instanceof OutputFile) {
+                ((OutputFile) out).open();
+            }
+            errors.printf("Evaluated %d rows, %d errors in %.3f s (%.0f rows/s)%n", summary.getRows(),
+                    summary.getErrors(), summary.getNanos() / 1e9, summary.getRowsPerSecond());
+        } catch (EvaluationException | IOException e) {
+            errors.println(e.getMessage());
+        }
+    }
+
+    private static boolean isSameFile(final String first, final String second) {
+        Path firstPath = Paths.get(first);
+        Path secondPath = Paths.get(second);
+        try {
+            return Files.exists(firstPath) && Files.exists(secondPath) && Files.isSameFile(firstPath, secondPath);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A file that is created or truncated only when it is first written to or opened.
+     */
+    private static final class OutputFile implements WritableByteChannel {
+        private final Path path;
+        private FileChannel channel;
+        private boolean closed;
+
+        OutputFile(final Path path) {
+            this.path = path;
+        }
+
+        FileChannel open() throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            return channel;
+        }
+
+        @Override
+        public int write(final ByteBuffer source) throws IOException {
+            return open().write(source);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
 }
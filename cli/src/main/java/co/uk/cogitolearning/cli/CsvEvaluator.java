@@ -0,0 +1,486 @@
+package co.uk.cogitolearning.cli;
+
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.EvaluationException;
+import co.uk.cogitolearning.calculator.program.Program;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Evaluates an expression for every row of a CSV file and writes the rows with the
+ * result appended as a new column.
+ *
+ * <p>The first line is the header, a column whose name is a variable of the expression
+ * supplies the values of that variable; variables without a column take their value
+ * from the constants. Fields are separated by commas and are not quoted.
+ *
+ * <p>The input is read in large chunks straight into a byte array, the numbers are
+ * parsed from the bytes without creating strings, and the rows of a chunk are
+ * evaluated together with Program.evaluateBatch. Each output row is the input line
+ * copied byte for byte plus the result, so the cost per row is a handful of array
+ * operations. A row with a field that is not a number or with more or fewer fields
+ * than the header gets an empty result and is reported with its line number; the
+ * run continues. A UTF-8 byte order mark in front of the header is dropped.
+ */
+public final class CsvEvaluator {
+    private static final int BUFFER_SIZE = 1 << 20;
+    /**
+     * The most rows evaluated together.
+     */
+    private static final int MAX_ROWS = 1 << 14;
+    /**
+     * Exactly representable powers of ten, used by the exact fast path of parseDouble.
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    /**
+     * Integers with at most this many significant digits are exact doubles.
+     */
+    private static final int EXACT_DIGITS = 15;
+    /**
+     * The UTF-8 encoding of U+FEFF, which some programs write in front of a CSV file.
+     */
+    private static final byte[] BYTE_ORDER_MARK = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    private final CompiledExpression expression;
+    private final Map<String, Double> constants;
+    private final String resultColumn;
+
+    /**
+     * The outcome of a run.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static final class Summary {
+        /**
+         * The number of data rows.
+         */
+        private final long rows;
+        /**
+         * The number of rows that could not be evaluated.
+         */
+        private final long errors;
+        /**
+         * The duration of the run in nanoseconds.
+         */
+        private final long nanos;
+
+        /**
+         * Get the throughput of the run.
+         *
+         * @return the number of rows per second
+         */
+        public double getRowsPerSecond() {
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+    }
+
+    /**
+     * Create an evaluator.
+     *
+     * @param expression   the expression to evaluate for every row
+     * @param constants    the values of variables that have no column
+     * @param resultColumn the header of the appended column
+     */
+    public CsvEvaluator(final CompiledExpression expression, final Map<String, Double> constants,
+                        final String resultColumn) {
+        this.expression = expression;
+        this.constants = constants;
+        this.resultColumn = resultColumn;
+    }
+
+    /**
+     * Evaluate every row of the input.
+     *
+     * @param in     the CSV input
+     * @param out    receives the CSV output
+     * @param errors receives the rows that could not be evaluated with their line numbers
+     * @return the number of rows and errors and the duration
+     * @throws IOException         if reading or writing fails
+     * @throws EvaluationException if a variable has neither a column nor a constant
+     */
+    public Summary run(final ReadableByteChannel in, final WritableByteChannel out, final PrintWriter errors)
+            throws IOException {
+        long start = System.nanoTime();
+        Run run = new Run(in, out, errors);
+        run.readAll();
+        errors.flush();
+        return new Summary(run.rows, run.failedRows, System.nanoTime() - start);
+    }
+
+    /**
+     * The buffers and position of one run.
+     */
+    private final class Run {
+        private final ReadableByteChannel in;
+        private final WritableByteChannel out;
+        private final PrintWriter errors;
+        private final Program program = expression.getProgram();
+        private final double[][] blockStack = program.newBlockStack();
+
+        private byte[] buffer = new byte[BUFFER_SIZE];
+        private int start;
+        private int limit;
+        private final ByteBuffer output = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final byte[] digits = new byte[20];
+
+        /**
+         * The slot of the variable of every input column, -1 for other columns, null
+         * until the header has been read.
+         */
+        private int[] columnSlots;
+        private String[] columnNames;
+        private double[][] columns;
+        private final double[] results = new double[MAX_ROWS];
+        private final int[] lineStarts = new int[MAX_ROWS];
+        private final int[] lineEnds = new int[MAX_ROWS];
+        private final boolean[] failed = new boolean[MAX_ROWS];
+        private int blockRows;
+
+        private long lineNumber;
+        private long rows;
+        private long failedRows;
+
+        Run(final ReadableByteChannel in, final WritableByteChannel out, final PrintWriter errors) {
+            this.in = in;
+            this.out = out;
+            this.errors = errors;
+        }
+
+        void readAll() throws IOException {
+            boolean eof = false;
+            while (!eof) {
+                eof = fill();
+                int end = eof ? limit : lastLineEnd();
+                processLines(end);
+                flushBlock();
+                start = end;
+            }
+            flushOutput();
+        }
+
+        /**
+         * Move the unprocessed bytes to the front and read more.
+         *
+         * @return true at the end of the input
+         */
+        private boolean fill() throws IOException {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            start = 0;
+            if (limit == buffer.length) {
+                // a line longer than the buffer
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = in.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+            if (read > 0) {
+                limit += read;
+            }
+            return read < 0;
+        }
+
+        private int lastLineEnd() {
+            for (int i = limit - 1; i >= start; i--) {
+                if (buffer[i] == '\n') {
+                    return i + 1;
+                }
+            }
+            return start;
+        }
+
+        private void processLines(final int end) throws IOException {
+            int lineStart = start;
+            while (lineStart < end) {
+                int lineEnd = lineStart;
+                while (lineEnd < end && buffer[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                int next = lineEnd + 1;
+                if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                lineNumber++;
+                if (lineEnd > lineStart) {
+                    if (columnSlots == null) {
+                        readHeader(skipByteOrderMark(lineStart, lineEnd), lineEnd);
+                    } else {
+                        readRow(lineStart, lineEnd);
+                    }
+                }
+                lineStart = next;
+            }
+        }
+
+        /**
+         * Skip a UTF-8 byte order mark, so that it does not become part of the first column name.
+         */
+        private int skipByteOrderMark(final int from, final int to) {
+            if (to - from >= BYTE_ORDER_MARK.length && buffer[from] == BYTE_ORDER_MARK[0]
+                    && buffer[from + 1] == BYTE_ORDER_MARK[1] && buffer[from + 2] == BYTE_ORDER_MARK[2]) {
+                return from + BYTE_ORDER_MARK.length;
+            }
+            return from;
+        }
+
+        private void readHeader(final int from, final int to) throws IOException {
+            columnNames = new String(buffer, from, to - from, StandardCharsets.UTF_8).split(",", -1);
+            columnSlots = new int[columnNames.length];
+            boolean[] hasColumn = new boolean[program.getVariableCount()];
+            for (int i = 0; i < columnNames.length; i++) {
+                columnNames[i] = unquote(columnNames[i].trim());
+                columnSlots[i] = expression.slotOf(columnNames[i]);
+                if (columnSlots[i] >= 0) {
+                    if (hasColumn[columnSlots[i]]) {
+                        columnSlots[i] = -1;
+                    } else {
+                        hasColumn[columnSlots[i]] = true;
+                    }
+                }
+            }
+            columns = new double[program.getVariableCount()][MAX_ROWS];
+            for (int slot = 0; slot < hasColumn.length; slot++) {
+                if (!hasColumn[slot]) {
+                    Double value = constants.get(program.getVariable(slot));
+                    if (value == null) {
+                        throw new EvaluationException("Variable '" + program.getVariable(slot)
+                                + "' is neither a column nor a constant.");
+                    }
+                    Arrays.fill(columns[slot], value);
+                }
+            }
+            write(buffer, from, to - from);
+            byte[] name = ("," + resultColumn + "\n").getBytes(StandardCharsets.UTF_8);
+            write(name, 0, name.length);
+        }
+
+        private void readRow(final int from, final int to) throws IOException {
+            int row = blockRows;
+            lineStarts[row] = from;
+            lineEnds[row] = to;
+            failed[row] = false;
+            int fieldStart = from;
+            int column = 0;
+            // whether a field starts at fieldStart, false after the last field of the line
+            boolean moreFields = true;
+            while (column < columnSlots.length) {
+                int fieldEnd = fieldStart;
+                while (fieldEnd < to && buffer[fieldEnd] != ',') {
+                    fieldEnd++;
+                }
+                int slot = columnSlots[column];
+                if (slot >= 0) {
+                    try {
+                        columns[slot][row] = parseDouble(buffer, fieldStart, fieldEnd);
+                    } catch (NumberFormatException e) {
+                        fail(row, "not a number in column '" + columnNames[column] + "': "
+                                + new String(buffer, fieldStart, fieldEnd - fieldStart, StandardCharsets.UTF_8));
+                        columns[slot][row] = Double.NaN;
+                    }
+                }
+                column++;
+                if (fieldEnd >= to) {
+                    moreFields = false;
+                    break;
+                }
+                fieldStart = fieldEnd + 1;
+            }
+            int fields = column;
+            if (moreFields) {
+                fields++;
+                for (int i = fieldStart; i < to; i++) {
+                    fields += buffer[i] == ',' ? 1 : 0;
+                }
+            }
+            if (fields != columnSlots.length) {
+                fail(row, "expected " + columnSlots.length + " fields but got " + fields);
+            }
+            rows++;
+            if (++blockRows == MAX_ROWS) {
+                flushBlock();
+            }
+        }
+
+        private void fail(final int row, final String message) {
+            if (!failed[row]) {
+                failed[row] = true;
+                failedRows++;
+                errors.println("Line " + lineNumber + ": " + message);
+            }
+        }
+
+        /**
+         * Evaluate the pending rows and write them out.
+         */
+        private void flushBlock() throws IOException {
+            if (blockRows == 0) {
+                return;
+            }
+            program.evaluateBatch(columns, 0, blockRows, results, blockStack);
+            for (int row = 0; row < blockRows; row++) {
+                write(buffer, lineStarts[row], lineEnds[row] - lineStarts[row]);
+                ensureOutput(2 + 32);
+                output.put((byte) ',');
+                if (!failed[row]) {
+                    writeDouble(results[row]);
+                }
+                output.put((byte) '\n');
+            }
+            blockRows = 0;
+        }
+
+        private void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (length > output.capacity()) {
+                flushOutput();
+                ByteBuffer wrapped = ByteBuffer.wrap(bytes, offset, length);
+                while (wrapped.hasRemaining()) {
+                    out.write(wrapped);
+                }
+                return;
+            }
+            ensureOutput(length);
+            output.put(bytes, offset, length);
+        }
+
+        private void ensureOutput(final int length) throws IOException {
+            if (output.remaining() < length) {
+                flushOutput();
+            }
+        }
+
+        private void flushOutput() throws IOException {
+            output.flip();
+            while (output.hasRemaining()) {
+                out.write(output);
+            }
+            output.clear();
+        }
+
+        /**
+         * Write a double like Double.toString, integral values without creating a string.
+         */
+        private void writeDouble(final double value) {
+            long integral = (long) value;
+            if (integral == value && Math.abs(value) < 1e7 && (value != 0 || 1 / value > 0)) {
+                if (integral < 0) {
+                    output.put((byte) '-');
+                    integral = -integral;
+                }
+                int length = 0;
+                do {
+                    digits[length++] = (byte) ('0' + integral % 10);
+                    integral /= 10;
+                } while (integral != 0);
+                while (length > 0) {
+                    output.put(digits[--length]);
+                }
+                output.put((byte) '.').put((byte) '0');
+                return;
+            }
+            String text = Double.toString(value);
+            for (int i = 0; i < text.length(); i++) {
+                output.put((byte) text.charAt(i));
+            }
+        }
+    }
+
+    private static String unquote(final String name) {
+        if (name.length() >= 2 && name.charAt(0) == '"' && name.charAt(name.length() - 1) == '"') {
+            return name.substring(1, name.length() - 1);
+        }
+        return name;
+    }
+
+    /**
+     * Parse a decimal number from ASCII bytes.
+     *
+     * <p>Numbers with at most 15 significant digits and a decimal exponent of at most
+     * 22 are computed exactly from a long and a power of ten, which gives the correctly
+     * rounded result without creating a string. Everything else, including NaN and
+     * Infinity, is left to Double.parseDouble.
+     *
+     * @param bytes the bytes
+     * @param from  the first byte of the number
+     * @param to    the end of the number, exclusive
+     * @return the number
+     * @throws NumberFormatException if the bytes are not a number
+     */
+    static double parseDouble(final byte[] bytes, final int from, final int to) {
+        int begin = from;
+        int end = to;
+        while (begin < end && bytes[begin] == ' ') {
+            begin++;
+        }
+        while (end > begin && bytes[end - 1] == ' ') {
+            end--;
+        }
+        int i = begin;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        while (i < end && isDigit(bytes[i])) {
+            if (significantDigits <= EXACT_DIGITS) {
+                mantissa = mantissa * 10 + (bytes[i] - '0');
+                significantDigits += mantissa == 0 ? 0 : 1;
+            } else {
+                exponent++;
+            }
+            anyDigit = true;
+            i++;
+        }
+        if (i < end && bytes[i] == '.') {
+            i++;
+            while (i < end && isDigit(bytes[i])) {
+                if (significantDigits <= EXACT_DIGITS) {
+                    mantissa = mantissa * 10 + (bytes[i] - '0');
+                    significantDigits += mantissa == 0 ? 0 : 1;
+                    exponent--;
+                }
+                anyDigit = true;
+                i++;
+            }
+        }
+        if (anyDigit && i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            int explicit = 0;
+            boolean exponentDigit = false;
+            while (i < end && isDigit(bytes[i]) && explicit < 1000) {
+                explicit = explicit * 10 + (bytes[i] - '0');
+                exponentDigit = true;
+                i++;
+            }
+            anyDigit = exponentDigit;
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (!anyDigit || i != end || significantDigits > EXACT_DIGITS
+                || exponent < -(POWERS_OF_TEN.length - 1) || exponent > POWERS_OF_TEN.length - 1) {
+            return Double.parseDouble(new String(bytes, begin, end - begin, StandardCharsets.ISO_8859_1));
+        }
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    private static boolean isDigit(final byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
@@ -0,0 +1,59 @@
+package co.uk.cogitolearning.cli;
+
+import co.uk.cogitolearning.calculator.Calculator;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchEvaluatorTest {
+
+    @Test
+    public void shouldWriteResultsInInputOrder() throws Exception {
+        // Given more lines than can be in flight
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            input.append(i).append("*x\n");
+            expected.append((double) i * 2).append('\n');
+        }
+        BatchEvaluator evaluator = new BatchEvaluator(new Calculator().withVariable("x", 2), 4, 8);
+        StringWriter out = new StringWriter();
+        StringWriter errors = new StringWriter();
+
+        // When
+        BatchEvaluator.Summary summary = evaluator.run(new BufferedReader(new StringReader(input.toString())), out,
+                new PrintWriter(errors));
+
+        // Then
+        assertThat(out.toString()).isEqualTo(expected.toString());
+        assertThat(summary.getLines()).isEqualTo(1000);
+        assertThat(summary.getErrors()).isZero();
+        assertThat(errors.toString()).isEmpty();
+    }
+
+    @Test
+    public void shouldReportErrorsPerLineAndContinue() throws Exception {
+        // Given
+        String input = "1+2\n1+\n\ny\n  2*3  \n";
+        BatchEvaluator evaluator = new BatchEvaluator(new Calculator(), 2, 2);
+        StringWriter out = new StringWriter();
+        StringWriter errors = new StringWriter();
+
+        // When
+        BatchEvaluator.Summary summary = evaluator.run(new BufferedReader(new StringReader(input)), out,
+                new PrintWriter(errors));
+
+        // Then
+        assertThat(out.toString()).isEqualTo("3.0\nERROR Unexpected end of input\n\n"
+                + "ERROR Variable 'y' was not initialized.\n6.0\n");
+        assertThat(summary.getLines()).isEqualTo(5);
+        assertThat(summary.getErrors()).isEqualTo(2);
+        assertThat(errors.toString()).contains("Line 2: Unexpected end of input")
+                .contains("Line 4: Variable 'y' was not initialized.");
+    }
+}
@@ -0,0 +1,47 @@
+package co.uk.cogitolearning.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CalculatorCliTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void shouldNotTouchOutputOfInvalidExpression() throws Exception {
+        // Given
+        Path input = Files.write(directory.resolve("input.csv"), "x,y\n1,2\n".getBytes(StandardCharsets.UTF_8));
+        Path output = Files.write(directory.resolve("output.csv"), "old results\n".getBytes(StandardCharsets.UTF_8));
+
+        // When
+        CalculatorCli.main(new String[]{"--csv", "x+", input.toString(), output.toString()});
+        CalculatorCli.main(new String[]{"--csv", "x+z", input.toString(), output.toString()});
+
+        // Then
+        assertThat(output).hasContent("old results");
+    }
+
+    @Test
+    public void shouldWriteResultsToOutputFile() throws Exception {
+        // Given
+        Path input = Files.write(directory.resolve("input.csv"), "x,y\n1,2\n".getBytes(StandardCharsets.UTF_8));
+        Path output = Files.write(directory.resolve("output.csv"), "old results\n".getBytes(StandardCharsets.UTF_8));
+        Path empty = Files.write(directory.resolve("empty.csv"), new byte[0]);
+        Path emptyOutput = Files.write(directory.resolve("empty-output.csv"), "old".getBytes(StandardCharsets.UTF_8));
+
+        // When
+        CalculatorCli.main(new String[]{"--csv", "x*y", input.toString(), output.toString()});
+        CalculatorCli.main(new String[]{"--csv", "x*y", empty.toString(), emptyOutput.toString()});
+
+        // Then
+        assertThat(output).hasContent("x,y,result\n1,2,2.0");
+        assertThat(emptyOutput).hasContent("");
+    }
+}
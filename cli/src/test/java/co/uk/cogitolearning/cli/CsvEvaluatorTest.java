@@ -0,0 +1,145 @@
+package co.uk.cogitolearning.cli;
+
+import co.uk.cogitolearning.calculator.Calculator;
+import co.uk.cogitolearning.calculator.CompiledExpression;
+import co.uk.cogitolearning.calculator.EvaluationException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CsvEvaluatorTest {
+
+    @Test
+    public void shouldAppendResultColumn() throws Exception {
+        // Given
+        String input = "id,x,name,y\r\n1,2,a,3\r\n2,0.5,b,-1e1\r\n\r\n3,x,c,1\r\n4,1,d\r\n5,1e400,e,0";
+        CompiledExpression expression = new Calculator().compile("x*y+k");
+        StringWriter errors = new StringWriter();
+
+        // When
+        String output = run(expression, input, errors);
+
+        // Then
+        assertThat(output).isEqualTo("id,x,name,y,value\n1,2,a,3,16.0\n2,0.5,b,-1e1,5.0\n3,x,c,1,\n4,1,d,\n"
+                + "5,1e400,e,0,NaN\n");
+        assertThat(errors.toString()).contains("Line 5: not a number in column 'x': x")
+                .contains("Line 6: expected 4 fields but got 3");
+    }
+
+    @Test
+    public void shouldReportRowsWithExtraFields() throws Exception {
+        // Given
+        String input = "x,y\n1,2\n1,2,3\n1,2,\n3,4\n";
+        CompiledExpression expression = new Calculator().compile("x+y");
+        StringWriter errors = new StringWriter();
+
+        // When
+        String output = run(expression, input, errors);
+
+        // Then
+        assertThat(output).isEqualTo("x,y,value\n1,2,3.0\n1,2,3,\n1,2,,\n3,4,7.0\n");
+        assertThat(errors.toString()).contains("Line 3: expected 2 fields but got 3")
+                .contains("Line 4: expected 2 fields but got 3");
+    }
+
+    @Test
+    public void shouldIgnoreByteOrderMark() throws Exception {
+        // Given
+        String input = "\uFEFFx,y\n1,2\n";
+        CompiledExpression expression = new Calculator().compile("x*y");
+        StringWriter errors = new StringWriter();
+
+        // When
+        String output = run(expression, input, errors);
+
+        // Then
+        assertThat(output).isEqualTo("x,y,value\n1,2,2.0\n");
+        assertThat(errors.toString()).isEmpty();
+    }
+
+    @Test
+    public void shouldEvaluateRowsAcrossChunks() throws Exception {
+        // Given more rows than fit in one read or one block
+        CompiledExpression expression = new Calculator().compile("a/b");
+        StringBuilder input = new StringBuilder("a,b\n");
+        StringBuilder expected = new StringBuilder("a,b,value\n");
+        Random random = new Random(3);
+        for (int i = 0; i < 200_000; i++) {
+            String a = Double.toString(random.nextDouble() * 1000);
+            int b = 1 + random.nextInt(9);
+            input.append(a).append(',').append(b).append('\n');
+            expected.append(a).append(',').append(b).append(',').append(Double.parseDouble(a) / b).append('\n');
+        }
+        StringWriter errors = new StringWriter();
+
+        // When
+        String output = run(expression, input.toString(), errors);
+
+        // Then
+        assertThat(output).isEqualTo(expected.toString());
+        assertThat(errors.toString()).isEmpty();
+    }
+
+    @Test
+    public void shouldReportMissingVariable() {
+        // Given
+        CompiledExpression expression = new Calculator().compile("x+z");
+
+        // When
+        EvaluationException exception = assertThrows(EvaluationException.class,
+                () -> run(expression, "x,y\n1,2\n", new StringWriter()));
+
+        // Then
+        assertThat(exception.getMessage()).isEqualTo("Variable 'z' is neither a column nor a constant.");
+    }
+
+    @Test
+    public void shouldParseNumbersLikeDouble() {
+        // Given
+        Random random = new Random(5);
+        String[] fixed = {"0", "-0", "+1", "1.", ".5", "007", "1e22", "1e23", "123456789012345678", "0.1", "-2.5E-3",
+                "4.9e-324", "1.7976931348623157e308", "NaN", "-Infinity", " 42 ", "0.30000000000000004"};
+        for (String text : fixed) {
+            assertParsed(text);
+        }
+        for (int i = 0; i < 100_000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (i % 2 == 0) {
+                value = (random.nextInt(2_000_000) - 1_000_000) / Math.pow(10, random.nextInt(8));
+            }
+            assertParsed(Double.toString(value));
+        }
+        assertThrows(NumberFormatException.class, () -> parse("1.2.3"));
+        assertThrows(NumberFormatException.class, () -> parse(""));
+        assertThrows(NumberFormatException.class, () -> parse("1e"));
+    }
+
+    private static void assertParsed(final String text) {
+        assertThat(Double.doubleToLongBits(parse(text))).as(text)
+                .isEqualTo(Double.doubleToLongBits(Double.parseDouble(text)));
+    }
+
+    private static double parse(final String text) {
+        byte[] bytes = ("#" + text + "#").getBytes(StandardCharsets.ISO_8859_1);
+        return CsvEvaluator.parseDouble(bytes, 1, bytes.length - 1);
+    }
+
+    private static String run(final CompiledExpression expression, final String input, final StringWriter errors)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CsvEvaluator(expression, Collections.singletonMap("k", 10.0), "value").run(
+                Channels.newChannel(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))),
+                Channels.newChannel(out), new PrintWriter(errors));
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}